@@ -0,0 +1,274 @@
+package de.mhellmann.net.fluenthttp.benchmarks;
+
+import de.mhellmann.net.fluenthttp.FluentHttpClient;
+import de.mhellmann.net.fluenthttp.LocalTestServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load and soak test harness for FluentHttpClient against LocalTestServer or any other url.
+ *
+ * Closed loop: each of the threads sends the next request as soon as the previous one is done.
+ * Open loop: requests are due at a constant rate, no matter how fast the responses come. The latency is measured
+ * from the time a request was due, so a stalled client or server shows up in the histogram instead of silently
+ * lowering the load (coordinated omission).
+ *
+ * Every report interval it prints throughput, latency percentiles, errors, pool saturation, open server connections
+ * and heap after GC, which is what to watch in hour-long soaks for connection leaks and heap growth.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar de.mhellmann.net.fluenthttp.benchmarks.LoadGenerator \
+ *     mode=open rate=2000 threads=64 duration=3600 getRatio=0.8 bodySize=4096 pool=32 report=10
+ * </pre>
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class LoadGenerator {
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final String mode;
+    private final int threads;
+    private final double rate;
+    private final long durationNanos;
+    private final double getRatio;
+    private final int bodySize;
+    private final int pool;
+    private final long reportNanos;
+    private final String url;
+
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    private final Histogram total = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+    private final AtomicLong nextRequest = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> errorsByType = new ConcurrentHashMap<String, AtomicLong>();
+
+    private LoadGenerator(Map<String, String> options) {
+        mode = option(options, "mode", "closed");
+        threads = Integer.parseInt(option(options, "threads", "16"));
+        rate = Double.parseDouble(option(options, "rate", "1000"));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "duration", "60")));
+        getRatio = Double.parseDouble(option(options, "getRatio", "1.0"));
+        bodySize = Integer.parseInt(option(options, "bodySize", "1024"));
+        pool = Integer.parseInt(option(options, "pool", String.valueOf(threads)));
+        reportNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "report", "10")));
+        url = options.get("url");
+        if (!"closed".equals(mode) && !"open".equals(mode)) {
+            throw new IllegalArgumentException("mode must be closed or open: " + mode);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals<0) {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value==null ? defaultValue : value;
+    }
+
+    private void run() throws Exception {
+        LocalTestServer server = null;
+        String getUrl = url;
+        String postUrl = url;
+        if (url==null) {
+            server = LocalTestServer.start().withoutRecording();
+            server.when("/get", LocalTestServer.Response.ok(new byte[bodySize]));
+            server.when("/post", LocalTestServer.Response.ok("ok"));
+            getUrl = server.url("/get");
+            postUrl = server.url("/post");
+        }
+        FluentHttpClient client = new FluentHttpClient()
+                .withConnectionPool(pool, pool)
+                .withRethrowingExceptions(true);
+        char[] postBody = new char[bodySize];
+        Arrays.fill(postBody, 'x');
+
+        System.out.printf("%s loop, %d threads, %s, %d s, %.0f%% GET, %d byte bodies, pool %d%n", mode, threads,
+                "open".equals(mode) ? rate + " req/s" : "no rate limit", TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                getRatio * 100, bodySize, pool);
+        System.out.println("   time      req/s     p50 ms     p90 ms     p99 ms   p99.9 ms     max ms   errors   leased  pending  avail  srvConn  heapMB");
+
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + durationNanos;
+        List<Thread> workers = new ArrayList<Thread>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Worker(client, getUrl, postUrl, new String(postBody), startNanos, endNanos), "LoadGenerator-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        long lastReportNanos = startNanos;
+        long lastRequests = 0;
+        long lastErrors = 0;
+        while (System.nanoTime()<endNanos) {
+            Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(reportNanos, endNanos - System.nanoTime()))));
+            long now = System.nanoTime();
+            long requests = requestCount.get();
+            long errors = errorCount.get();
+            report(now - startNanos, (requests - lastRequests) / ((now - lastReportNanos) / 1e9), errors - lastErrors, client, server);
+            lastReportNanos = now;
+            lastRequests = requests;
+            lastErrors = errors;
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        System.out.printf("%nTotal: %d requests, %d errors (%.3f%%), %.0f req/s%n", requestCount.get(), errorCount.get(),
+                100.0 * errorCount.get() / Math.max(1, requestCount.get()), requestCount.get() / (durationNanos / 1e9));
+        for (Map.Entry<String, AtomicLong> error : errorsByType.entrySet()) {
+            System.out.printf("  %8d %s%n", error.getValue().get(), error.getKey());
+        }
+        total.add(recorder.getIntervalHistogram());
+        total.outputPercentileDistribution(System.out, 1e6);
+
+        PoolStats poolStats = client.getPoolStats();
+        if (poolStats!=null && poolStats.getLeased()>0) {
+            System.out.println("LEAK: " + poolStats.getLeased() + " connections still leased after all requests finished");
+        }
+        client.shutdown();
+        if (server!=null) {
+            server.close();
+        }
+    }
+
+    private void report(long elapsedNanos, double throughput, long errors, FluentHttpClient client, LocalTestServer server) {
+        Histogram interval = recorder.getIntervalHistogram();
+        total.add(interval);
+        PoolStats poolStats = client.getPoolStats();
+        System.out.printf("%6ds %10.0f %10.2f %10.2f %10.2f %10.2f %10.2f %8d %8d %8d %6d %8d %7d%n",
+                TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), throughput,
+                interval.getValueAtPercentile(50) / 1e6, interval.getValueAtPercentile(90) / 1e6,
+                interval.getValueAtPercentile(99) / 1e6, interval.getValueAtPercentile(99.9) / 1e6,
+                interval.getMaxValue() / 1e6, errors,
+                poolStats==null ? 0 : poolStats.getLeased(), poolStats==null ? 0 : poolStats.getPending(),
+                poolStats==null ? 0 : poolStats.getAvailable(),
+                server==null ? -1 : server.getOpenConnectionCount(),
+                heapAfterLastGc() / (1024 * 1024));
+    }
+
+    /** Live heap without the garbage, so growth over a soak shows up without forcing a GC into the measurement */
+    private static long heapAfterLastGc() {
+        long used = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage collectionUsage = memoryPool.getCollectionUsage();
+            if (memoryPool.getType()==MemoryType.HEAP && collectionUsage!=null) {
+                used += collectionUsage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    private final class Worker implements Runnable {
+
+        private final FluentHttpClient client;
+        private final String getUrl;
+        private final String postUrl;
+        private final String postBody;
+        private final long startNanos;
+        private final long endNanos;
+        private final Random random = new Random();
+        private final byte[] buffer = new byte[8192];
+
+        private Worker(FluentHttpClient client, String getUrl, String postUrl, String postBody, long startNanos, long endNanos) {
+            this.client = client;
+            this.getUrl = getUrl;
+            this.postUrl = postUrl;
+            this.postBody = postBody;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+
+        @Override
+        public void run() {
+            double intervalNanos = 1e9 / rate;
+            while (true) {
+                long dueNanos;
+                if ("open".equals(mode)) {
+                    dueNanos = startNanos + (long) (nextRequest.getAndIncrement() * intervalNanos);
+                    if (dueNanos>=endNanos) {
+                        return;
+                    }
+                    long waitNanos = dueNanos - System.nanoTime();
+                    if (waitNanos>0) {
+                        sleepNanos(waitNanos);
+                    }
+                } else {
+                    dueNanos = System.nanoTime();
+                    if (dueNanos>=endNanos) {
+                        return;
+                    }
+                }
+                try {
+                    if (random.nextDouble()<getRatio) {
+                        InputStream inputStream = client.get(getUrl).asStream();
+                        try {
+                            while (inputStream.read(buffer)!=-1) {
+                                // consume
+                            }
+                        } finally {
+                            inputStream.close();
+                        }
+                    } else {
+                        client.post(postUrl).withRequestBody(postBody, "text/plain").asBytes();
+                    }
+                } catch (IOException e) {
+                    errorCount.incrementAndGet();
+                    countError(e.getClass().getName());
+                } catch (RuntimeException e) {
+                    errorCount.incrementAndGet();
+                    countError(e.getClass().getName());
+                }
+                // open loop: from the time the request was due, closed loop: from the time it was sent
+                recorder.recordValue(Math.min(System.nanoTime() - dueNanos, HIGHEST_TRACKABLE_NANOS));
+                requestCount.incrementAndGet();
+            }
+        }
+
+        private void countError(String type) {
+            AtomicLong count = errorsByType.get(type);
+            if (count==null) {
+                AtomicLong newCount = new AtomicLong();
+                count = errorsByType.putIfAbsent(type, newCount);
+                if (count==null) {
+                    count = newCount;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        private void sleepNanos(long nanos) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package de.mhellmann.net.fluenthttp.benchmarks;
+
+import de.mhellmann.net.fluenthttp.FluentHttpClient;
+import de.mhellmann.net.fluenthttp.FluentHttpMethodBuilder;
+import de.mhellmann.net.fluenthttp.LocalTestServer;
+import org.apache.http.StatusLine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of the result methods against LocalTestServer.
+ *
+ * Run e.g. with 1 and 8 threads and the allocation profiler:
+ * java -jar benchmarks/target/benchmarks.jar RequestBenchmark -t 1 -prof gc
+ * java -jar benchmarks/target/benchmarks.jar RequestBenchmark -t 8 -prof gc -p scheme=http -p pooled=true
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+
+    /** small JSON-like response versus a big download */
+    @Param({"256", "1048576"})
+    public int bodySize;
+
+    @Param({"http", "https"})
+    public String scheme;
+
+    @Param({"false", "true"})
+    public boolean cookies;
+
+    @Param({"false", "true"})
+    public boolean auth;
+
+    /** unpooled is the client's default: a new connection per request */
+    @Param({"true"})
+    public boolean pooled;
+
+    private LocalTestServer server;
+    private FluentHttpClient client;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = ("https".equals(scheme) ? LocalTestServer.startHttps() : LocalTestServer.start()).withoutRecording();
+        server.when("/bytes", body(bodySize));
+        client = new FluentHttpClient().withAvoidingSSLPeerUnverifiedException();
+        if (pooled) {
+            client.withConnectionPool(256, 256);
+        }
+        url = server.url("/bytes");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.shutdown();
+        server.close();
+    }
+
+    /** @return bodySize bytes with a session cookie, which is only kept if the benchmark uses cookies */
+    static LocalTestServer.Response body(int bodySize) {
+        byte[] body = new byte[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        return LocalTestServer.Response.ok(body)
+                .withHeader("Content-Type", "text/plain; charset=US-ASCII")
+                .withCookie("session", "benchmark");
+    }
+
+    private FluentHttpMethodBuilder get() {
+        FluentHttpMethodBuilder get = client.get(url).withIgnoringCookies(!cookies);
+        if (auth) {
+            get.withBaseAuthentication("benchmark", "secret");
+        }
+        return get;
+    }
+
+    @Benchmark
+    public byte[] asBytes() throws IOException {
+        return get().asBytes();
+    }
+
+    @Benchmark
+    public String asString() throws IOException {
+        return get().asString();
+    }
+
+    @Benchmark
+    public long asStream() throws IOException {
+        InputStream inputStream = get().asStream();
+        try {
+            byte[] buffer = new byte[8192];
+            long length = 0;
+            int n;
+            while ((n = inputStream.read(buffer))!=-1) {
+                length += n;
+            }
+            return length;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Benchmark
+    public StatusLine asStatusLine() throws IOException {
+        return get().asStatusLine();
+    }
+}
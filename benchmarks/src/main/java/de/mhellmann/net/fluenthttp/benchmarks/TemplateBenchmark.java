@@ -0,0 +1,80 @@
+package de.mhellmann.net.fluenthttp.benchmarks;
+
+import de.mhellmann.net.fluenthttp.FluentHttpClient;
+import de.mhellmann.net.fluenthttp.FluentHttpMethodBuilder;
+import de.mhellmann.net.fluenthttp.FluentHttpRequestTemplate;
+import de.mhellmann.net.fluenthttp.LocalTestServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of preparing a request with headers and system proxy, built from scratch versus expanded from a template,
+ * and both sent against LocalTestServer. Compare the allocation rates:
+ * java -jar benchmarks/target/benchmarks.jar TemplateBenchmark -prof gc
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateBenchmark {
+
+    private LocalTestServer server;
+    private FluentHttpClient client;
+    private String baseUrl;
+    private FluentHttpRequestTemplate<FluentHttpMethodBuilder> template;
+    private int size = 256;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, URISyntaxException {
+        server = LocalTestServer.start().withoutRecording();
+        server.when("/bytes/" + size, RequestBenchmark.body(size));
+        client = new FluentHttpClient().withConnectionPool(256, 256);
+        baseUrl = server.url("/bytes/");
+        template = client.template(client.get(baseUrl + "{size}?client={client}")
+                .withHeader("Accept", "application/octet-stream")
+                .withHeader("X-Request-Source", "benchmark")
+                .withAutoSystemProxy());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.shutdown();
+        server.close();
+    }
+
+    private FluentHttpMethodBuilder build() throws URISyntaxException {
+        return client.get(baseUrl + size + "?client=fluent%20http")
+                .withHeader("Accept", "application/octet-stream")
+                .withHeader("X-Request-Source", "benchmark")
+                .withAutoSystemProxy();
+    }
+
+    @Benchmark
+    public FluentHttpMethodBuilder prepareBuilt() throws URISyntaxException {
+        return build();
+    }
+
+    @Benchmark
+    public FluentHttpMethodBuilder prepareFromTemplate() {
+        return template.expand(size, "fluent http");
+    }
+
+    @Benchmark
+    public byte[] sendBuilt() throws IOException, URISyntaxException {
+        return build().asBytes();
+    }
+
+    @Benchmark
+    public byte[] sendFromTemplate() throws IOException {
+        return template.expand(size, "fluent http").asBytes();
+    }
+}
@@ -0,0 +1,109 @@
+package de.mhellmann.net.fluenthttp.benchmarks;
+
+import de.mhellmann.net.fluenthttp.FluentHttpClient;
+import de.mhellmann.net.fluenthttp.LocalTestServer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts n blocking asBytes() calls at once, each on its own thread from FluentHttpClient.newExecutorService(),
+ * against LocalTestServers which hold every response back for the given delay, so all of them are in flight
+ * at the same time. Reports the peak heap and thread counts, which must stay bounded with virtual threads.
+ *
+ * <pre>
+ * ulimit -n 250000
+ * java -Xmx2g -cp benchmarks/target/benchmarks.jar de.mhellmann.net.fluenthttp.benchmarks.VirtualThreadLoad \
+ *     requests=100000 delay=5000 servers=4
+ * </pre>
+ * Several servers are needed because one loopback address and port only offer about 28000 ephemeral client ports.
+ * Before Java 21 it runs on platform threads, so keep the number of requests in the low thousands there.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class VirtualThreadLoad {
+
+    private VirtualThreadLoad() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int requests = 100000;
+        long delayMillis = 5000;
+        int servers = 4;
+        for (String arg : args) {
+            if (arg.startsWith("requests=")) {
+                requests = Integer.parseInt(arg.substring("requests=".length()));
+            } else if (arg.startsWith("delay=")) {
+                delayMillis = Long.parseLong(arg.substring("delay=".length()));
+            } else if (arg.startsWith("servers=")) {
+                servers = Integer.parseInt(arg.substring("servers=".length()));
+            } else {
+                throw new IllegalArgumentException("Expected requests=, delay= or servers=: " + arg);
+            }
+        }
+
+        List<LocalTestServer> localTestServers = new ArrayList<LocalTestServer>(servers);
+        for (int i = 0; i < servers; i++) {
+            LocalTestServer server = LocalTestServer.start().withoutRecording();
+            server.when("/held", LocalTestServer.Response.ok("ok").withDelayMillis(delayMillis));
+            localTestServers.add(server);
+        }
+        final FluentHttpClient client = new FluentHttpClient()
+                .withVirtualThreads()
+                .withSocketTimeoutMillis((int) (delayMillis + 60000))
+                .withConnectionTimeoutMillis(60000);
+        System.out.printf("%d requests held for %d ms by %d servers, virtual threads %s%n", requests, delayMillis, servers,
+                FluentHttpClient.isVirtualThreadsSupported() ? "supported" : "NOT supported, using platform threads");
+
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(requests);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        long startNanos = System.nanoTime();
+        ExecutorService executorService = client.newExecutorService();
+        try {
+            for (int i = 0; i < requests; i++) {
+                final String url = localTestServers.get(i % servers).url("/held");
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            client.get(url).withIgnoringCookies(true).asBytes();
+                        } catch (Exception e) {
+                            if (errors.getAndIncrement()==0) {
+                                e.printStackTrace();
+                            }
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            long peakHeap = 0;
+            int peakThreads = 0;
+            while (!done.await(500, TimeUnit.MILLISECONDS)) {
+                peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+                peakThreads = Math.max(peakThreads, ManagementFactory.getThreadMXBean().getThreadCount());
+                System.out.printf("in flight %6d, heap %5d MB, platform threads %d%n", done.getCount(),
+                        memory.getHeapMemoryUsage().getUsed() / (1024 * 1024), ManagementFactory.getThreadMXBean().getThreadCount());
+            }
+            System.out.printf("%nDone in %d ms, %d errors, peak heap %d MB (%d MB before), peak platform threads %d, %.1f KB heap per request%n",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), errors.get(),
+                    peakHeap / (1024 * 1024), heapBefore / (1024 * 1024), peakThreads,
+                    (peakHeap - heapBefore) / 1024.0 / requests);
+        } finally {
+            executorService.shutdown();
+            for (LocalTestServer server : localTestServers) {
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package de.mhellmann.net.fluenthttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Converts request and response bodies from and to objects, see FluentHttpMethodBuilder.as(BodyCodec)
+ * and FluentHttpGenericMethodBuilder.withEncodedBody(Object, BodyCodec).
+ *
+ * Implementations read from and write to the streams directly, so a body never has to exist
+ * as an intermediate byte array or String. They must be thread safe.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public interface BodyCodec<T> {
+
+    /**
+     * @param charset the charset of the response's Content-Type, null if there is none
+     */
+    T decode(InputStream inputStream, Charset charset) throws IOException;
+
+    /** Must not close the stream. */
+    void encode(T value, OutputStream outputStream) throws IOException;
+
+    /**
+     * @return the exact number of bytes encode() will write for the value, sent as Content-Length,
+     * or -1 if it is only known after encoding, then the body is sent with chunked transfer encoding
+     */
+    long getContentLength(T value);
+
+    /** @return the Content-Type of encoded request bodies, e.g. "application/json; charset=UTF-8" */
+    String getContentType();
+
+}
@@ -0,0 +1,66 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Request entity encoding an object with a BodyCodec straight into the connection while sending.
+ * It is sent with a Content-Length if the codec knows the encoded size up front, otherwise chunked.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+class BodyCodecEntity<T> extends AbstractHttpEntity {
+
+    private final T value;
+    private final BodyCodec<T> codec;
+
+    BodyCodecEntity(T value, BodyCodec<T> codec) {
+        this.value = value;
+        this.codec = codec;
+        setContentType(codec.getContentType());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return codec.getContentLength(value);
+    }
+
+    @Override
+    public boolean isChunked() {
+        return getContentLength()<0;
+    }
+
+    /** Only for callers needing the content as stream, sending uses writeTo() */
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        codec.encode(value, outputStream);
+        return new ByteArrayInputStream(outputStream.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        if (outstream==null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        codec.encode(value, outstream);
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
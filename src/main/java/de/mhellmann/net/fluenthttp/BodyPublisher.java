@@ -0,0 +1,161 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.http.conn.EofSensorInputStream;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emits the body of a response as ByteBuffers of at most chunkSize bytes, see FluentHttpMethodBuilder.asPublisher().
+ *
+ * Every subscription sends its own request, but only on the first request(n). The socket is only read while
+ * there is demand, so a slow subscriber leaves the data in the socket buffers and TCP flow control slows the
+ * server down. At most n chunks are in memory, plus the 8 KB buffer of the connection.
+ * Reading is done on the executor, and only while there is demand, no thread waits for request(n).
+ * cancel() aborts the connection instead of downloading the rest of the body.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+final class BodyPublisher implements Publisher<ByteBuffer> {
+
+    private final FluentHttpMethodBuilder methodBuilder;
+    private final Executor executor;
+    private final int chunkSize;
+
+    BodyPublisher(FluentHttpMethodBuilder methodBuilder, Executor executor, int chunkSize) {
+        if (chunkSize<1) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.methodBuilder = methodBuilder;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber==null) {
+            throw new NullPointerException("subscriber");
+        }
+        subscriber.onSubscribe(new BodySubscription(subscriber));
+    }
+
+    private final class BodySubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        /** Number of signals to handle, the drain loop runs while it is not 0, so only one thread reads at a time */
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile IllegalArgumentException invalidRequest;
+
+        // only used by the draining thread
+        private InputStream inputStream;
+        private boolean done = false;
+
+        private BodySubscription(Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n<=0) {
+                invalidRequest = new IllegalArgumentException("Rule 3.9: request(" + n + ") must be positive.");
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                } while (!demand.compareAndSet(current, current + n<0 ? Long.MAX_VALUE : current + n));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement()==0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    done = true;
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while (missed!=0);
+        }
+
+        private void drain() {
+            if (done) {
+                return;
+            }
+            try {
+                while (!cancelled && invalidRequest==null && demand.get()>0) {
+                    if (inputStream==null) {
+                        inputStream = methodBuilder.asStream();
+                        if (inputStream==null) {
+                            throw new IOException("Request to " + methodBuilder.url + " failed, see the log.");
+                        }
+                    }
+                    byte[] chunk = new byte[chunkSize];
+                    int length = inputStream.read(chunk);
+                    if (length==-1) {
+                        done = true;
+                        // the connection has been released at EOF already
+                        inputStream.close();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    demand.decrementAndGet();
+                    subscriber.onNext(ByteBuffer.wrap(chunk, 0, length));
+                }
+                if (cancelled) {
+                    done = true;
+                    abort();
+                } else if (invalidRequest!=null) {
+                    done = true;
+                    abort();
+                    subscriber.onError(invalidRequest);
+                }
+            } catch (IOException e) {
+                done = true;
+                abort();
+                subscriber.onError(e);
+            } catch (RuntimeException e) {
+                done = true;
+                abort();
+                subscriber.onError(e);
+            }
+        }
+
+        private void abort() {
+            if (inputStream instanceof EofSensorInputStream) {
+                try {
+                    ((EofSensorInputStream) inputStream).abortConnection();
+                } catch (IOException e) {
+                    methodBuilder.logger.debug("BodyPublisher: aborting {} failed", methodBuilder.url, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Repeatable request entity sending the remaining bytes of a ByteBuffer.
+ * Heap buffers are written without copying, direct buffers in chunks through a small transfer buffer.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+class ByteBufferEntity extends AbstractHttpEntity {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final ByteBuffer byteBuffer;
+
+    ByteBufferEntity(ByteBuffer byteBuffer, ContentType contentType) {
+        if (byteBuffer==null) {
+            throw new IllegalArgumentException("ByteBuffer may not be null");
+        }
+        // our own position and limit, the caller's buffer stays untouched
+        this.byteBuffer = byteBuffer.slice();
+        if (contentType!=null) {
+            setContentType(contentType.toString());
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return byteBuffer.remaining();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteBuffer buffer = byteBuffer.duplicate();
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        if (outstream==null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        ByteBuffer buffer = byteBuffer.duplicate();
+        if (buffer.hasArray()) {
+            outstream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                outstream.write(chunk, 0, length);
+            }
+        }
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+package de.mhellmann.net.fluenthttp;
+
+import de.mhellmann.util.BoundedRingBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Thread safe pool of ByteBuffers in power of two size classes, used by FluentHttpClient for reading
+ * response bodies without allocating new buffers for every request.
+ *
+ * Each size class keeps at most about maxBytesPerSizeClass bytes, so the memory held by the pool is bounded.
+ * Bigger buffers than maxBufferSize are allocated unpooled and left to the garbage collector.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public class ByteBufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_BYTES_PER_SIZE_CLASS = 1024 * 1024;
+    private static final int MAX_BUFFERS_PER_SIZE_CLASS = 256;
+
+    /** Shared heap buffer pool used by all FluentHttpClients without their own pool */
+    public static final ByteBufferPool DEFAULT = new ByteBufferPool(false);
+
+    /** Shared off-heap buffer pool, e.g. for OffHeapBody segments */
+    public static final ByteBufferPool DEFAULT_DIRECT = new ByteBufferPool(true, DEFAULT_MAX_BUFFER_SIZE, 16 * DEFAULT_MAX_BYTES_PER_SIZE_CLASS);
+
+    private final boolean direct;
+    private final int maxBufferSize;
+    private final BoundedRingBuffer<ByteBuffer>[] sizeClasses;
+
+    public ByteBufferPool(boolean direct) {
+        this(direct, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_BYTES_PER_SIZE_CLASS);
+    }
+
+    /**
+     * @param direct               true for off-heap buffers
+     * @param maxBufferSize        the biggest pooled buffer, rounded up to a power of two
+     * @param maxBytesPerSizeClass how much memory each size class may keep, at least two buffers are kept
+     */
+    public ByteBufferPool(boolean direct, int maxBufferSize, int maxBytesPerSizeClass) {
+        this.direct = direct;
+        this.maxBufferSize = sizeClassSize(Math.max(maxBufferSize, MIN_BUFFER_SIZE));
+        int count = sizeClassIndex(this.maxBufferSize) + 1;
+        sizeClasses = newSizeClasses(count);
+        for (int i = 0; i < count; i++) {
+            int buffers = Math.max(2, Math.min(MAX_BUFFERS_PER_SIZE_CLASS, maxBytesPerSizeClass / (MIN_BUFFER_SIZE << i)));
+            sizeClasses[i] = new BoundedRingBuffer<ByteBuffer>(buffers);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BoundedRingBuffer<ByteBuffer>[] newSizeClasses(int count) {
+        return (BoundedRingBuffer<ByteBuffer>[]) new BoundedRingBuffer<?>[count];
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * @return a cleared buffer with at least the given capacity, which should be given back with release()
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int size = sizeClassSize(Math.max(minCapacity, MIN_BUFFER_SIZE));
+        if (size>maxBufferSize || size<minCapacity) {
+            return allocate(minCapacity);
+        }
+        ByteBuffer buffer = sizeClasses[sizeClassIndex(size)].poll();
+        if (buffer==null) {
+            return allocate(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Buffers not acquired from this pool or not matching a size class are ignored. */
+    public void release(ByteBuffer buffer) {
+        if (buffer==null || buffer.isDirect()!=direct) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (capacity<MIN_BUFFER_SIZE || capacity>maxBufferSize || Integer.bitCount(capacity)!=1) {
+            return;
+        }
+        // if the size class is full, the buffer is simply garbage collected
+        sizeClasses[sizeClassIndex(capacity)].offer(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /** @return the next power of two, or a negative value on overflow */
+    private static int sizeClassSize(int capacity) {
+        int size = Integer.highestOneBit(capacity);
+        return size==capacity ? size : size << 1;
+    }
+
+    private static int sizeClassIndex(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,221 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Computes digests of a response body while it is read by whatever sink consumes it, so there is no extra
+ * pass over the data. At the end of the stream the results are published and compared with the
+ * Content-MD5 and Digest (RFC 3230) headers of the response.
+ *
+ * Supports "CRC32" and all MessageDigest algorithms like "MD5", "SHA-1" or "SHA-256".
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+class DigestingInputStream extends FilterInputStream {
+
+    static final String CRC32 = "CRC32";
+
+    private final String url;
+    private final String[] algorithms;
+    private final MessageDigest[] messageDigests;
+    private final CRC32 crc32;
+    private final Map<String, String> expectedDigests;
+    private final Map<String, String> results;
+    private boolean finished = false;
+
+    /**
+     * @param results gets the hex encoded digests per algorithm at the end of the stream
+     */
+    DigestingInputStream(InputStream in, String url, String[] algorithms, Map<String, String> expectedDigests, Map<String, String> results) throws IOException {
+        super(in);
+        this.url = url;
+        this.algorithms = algorithms;
+        this.expectedDigests = expectedDigests;
+        this.results = results;
+        this.messageDigests = new MessageDigest[algorithms.length];
+        CRC32 crc32 = null;
+        for (int i = 0; i < algorithms.length; i++) {
+            if (CRC32.equalsIgnoreCase(algorithms[i])) {
+                crc32 = new CRC32();
+            } else {
+                try {
+                    messageDigests[i] = MessageDigest.getInstance(algorithms[i]);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException("Unknown digest algorithm: " + algorithms[i], e);
+                }
+            }
+        }
+        this.crc32 = crc32;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b==-1) {
+            finish();
+        } else {
+            update(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int n = in.read(bytes, offset, length);
+        if (n==-1) {
+            finish();
+        } else if (n>0) {
+            update(bytes, offset, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes must be digested, too
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped<n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read==-1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void update(int b) {
+        if (crc32!=null) {
+            crc32.update(b);
+        }
+        for (MessageDigest messageDigest : messageDigests) {
+            if (messageDigest!=null) {
+                messageDigest.update((byte) b);
+            }
+        }
+    }
+
+    private void update(byte[] bytes, int offset, int length) {
+        if (crc32!=null) {
+            crc32.update(bytes, offset, length);
+        }
+        for (MessageDigest messageDigest : messageDigests) {
+            if (messageDigest!=null) {
+                messageDigest.update(bytes, offset, length);
+            }
+        }
+    }
+
+    private void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        for (int i = 0; i < algorithms.length; i++) {
+            byte[] digest;
+            if (messageDigests[i]==null) {
+                long value = crc32.getValue();
+                digest = new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+            } else {
+                digest = messageDigests[i].digest();
+            }
+            String algorithm = normalize(algorithms[i]);
+            results.put(algorithm, Hex.encodeHexString(digest));
+            String expected = expectedDigests.get(algorithm);
+            if (expected!=null) {
+                String actual = Base64.encodeBase64String(digest);
+                if (!expected.equals(actual)) {
+                    throw new FluentHttpClientDigestException(url, algorithm, expected, actual);
+                }
+            }
+        }
+    }
+
+    static String normalize(String algorithm) {
+        String name = algorithm.toUpperCase(Locale.ENGLISH);
+        // RFC 3230 calls SHA-1 "SHA"
+        return "SHA".equals(name) ? "SHA-1" : name;
+    }
+
+    /** @return the base64 digests of the Content-MD5 and Digest headers per normalized algorithm */
+    static Map<String, String> expectedDigests(HttpResponse response) {
+        Map<String, String> expectedDigests = new LinkedHashMap<String, String>();
+        Header contentMd5 = response.getFirstHeader("Content-MD5");
+        if (contentMd5!=null) {
+            expectedDigests.put("MD5", contentMd5.getValue().trim());
+        }
+        expectedDigests.putAll(instanceDigests(response));
+        return expectedDigests;
+    }
+
+    /**
+     * @return the base64 digests of the Digest headers per normalized algorithm. Unlike Content-MD5, which only
+     *         covers the range sent with a 206, they are digests of the whole resource.
+     */
+    static Map<String, String> instanceDigests(HttpResponse response) {
+        Map<String, String> expectedDigests = new LinkedHashMap<String, String>();
+        for (Header digest : response.getHeaders("Digest")) {
+            for (String instance : digest.getValue().split(",")) {
+                int separator = instance.indexOf('=');
+                if (separator>0) {
+                    expectedDigests.put(normalize(instance.substring(0, separator).trim()), instance.substring(separator + 1).trim());
+                }
+            }
+        }
+        return expectedDigests;
+    }
+
+    /** Entity wrapper digesting its content while it is read */
+    static final class DigestingEntity extends HttpEntityWrapper {
+
+        private final String url;
+        private final String[] algorithms;
+        private final Map<String, String> expectedDigests;
+        private final Map<String, String> results;
+        private InputStream content;
+
+        DigestingEntity(HttpEntity wrapped, String url, String[] algorithms, Map<String, String> expectedDigests, Map<String, String> results) {
+            super(wrapped);
+            this.url = url;
+            this.algorithms = algorithms;
+            this.expectedDigests = expectedDigests;
+            this.results = results;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (content==null) {
+                content = new DigestingInputStream(wrappedEntity.getContent(), url, algorithms, expectedDigests, results);
+            }
+            return content;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads response bodies with as few allocations and copies as possible:
+ * bodies of known length up to the pool's max buffer size are read straight into a buffer of the right size,
+ * others grow through the size classes of a ByteBufferPool. The Content-Length is only trusted that far,
+ * a huge one followed by a short body must not allocate its announced size up front.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+final class EntityReader {
+
+    private static final int DEFAULT_INITIAL_SIZE = 8192;
+    private static final int TRANSFER_CHUNK_SIZE = 8192;
+
+    private EntityReader() {}
+
+    /** @return the whole stream in a byte array of exactly the right size */
+    static byte[] toByteArray(InputStream inputStream, long contentLength, ByteBufferPool pool) throws IOException {
+        if (contentLength>=0 && contentLength<=pool.getMaxBufferSize()) {
+            // one allocation and no copy in the common case
+            byte[] bytes = new byte[(int) contentLength];
+            int length = readFully(inputStream, bytes, 0, bytes.length);
+            if (length<bytes.length) {
+                return Arrays.copyOf(bytes, length);
+            }
+            int next = inputStream.read();
+            if (next==-1) {
+                return bytes;
+            }
+            // Content-Length was wrong, e.g. of a compressed body: continue with a pooled buffer
+            ByteBuffer buffer = pool.acquire(bytes.length + DEFAULT_INITIAL_SIZE);
+            buffer.put(bytes).put((byte) next);
+            return toByteArray(inputStream, buffer, pool);
+        }
+        return toByteArray(inputStream, pool.acquire(initialSize(contentLength, pool)), pool);
+    }
+
+    private static byte[] toByteArray(InputStream inputStream, ByteBuffer buffer, ByteBufferPool pool) throws IOException {
+        buffer = readRemaining(inputStream, buffer, pool);
+        try {
+            buffer.flip();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /** @return a buffer from the pool, flipped for reading the whole stream */
+    static PooledByteBuffer toPooledBuffer(InputStream inputStream, long contentLength, ByteBufferPool pool) throws IOException {
+        ByteBuffer buffer = readRemaining(inputStream, pool.acquire(initialSize(contentLength, pool)), pool);
+        buffer.flip();
+        return new PooledByteBuffer(pool, buffer);
+    }
+
+    /**
+     * Reads the whole stream into direct buffers of the pool. Bodies up to the pool's max buffer size get
+     * one segment of the right size class, bigger ones a list of max sized segments.
+     */
+    static OffHeapBody toOffHeapBody(InputStream inputStream, long contentLength, ByteBufferPool directPool, Logger logger) throws IOException {
+        int segmentSize = contentLength>=0 ? initialSize(contentLength, directPool) : directPool.getMaxBufferSize();
+        List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+        ByteBuffer chunk = ByteBufferPool.DEFAULT.acquire(TRANSFER_CHUNK_SIZE);
+        long size = 0;
+        try {
+            byte[] bytes = chunk.array();
+            ByteBuffer segment = directPool.acquire(segmentSize);
+            segments.add(segment);
+            int n;
+            while ((n = inputStream.read(bytes, chunk.arrayOffset(), TRANSFER_CHUNK_SIZE))!=-1) {
+                int offset = chunk.arrayOffset();
+                while (n>0) {
+                    if (!segment.hasRemaining()) {
+                        segment = directPool.acquire(directPool.getMaxBufferSize());
+                        segments.add(segment);
+                    }
+                    int length = Math.min(n, segment.remaining());
+                    segment.put(bytes, offset, length);
+                    offset += length;
+                    n -= length;
+                    size += length;
+                }
+            }
+        } catch (IOException e) {
+            releaseAll(segments, directPool);
+            throw e;
+        } catch (RuntimeException e) {
+            releaseAll(segments, directPool);
+            throw e;
+        } finally {
+            ByteBufferPool.DEFAULT.release(chunk);
+        }
+        ByteBuffer[] buffers = segments.toArray(new ByteBuffer[segments.size()]);
+        for (ByteBuffer buffer : buffers) {
+            buffer.flip();
+        }
+        return new OffHeapBody(directPool, buffers, size, logger);
+    }
+
+    /** @return room for the announced body plus the end of stream check, at most the pool's max buffer size */
+    private static int initialSize(long contentLength, ByteBufferPool pool) {
+        if (contentLength<0) {
+            return DEFAULT_INITIAL_SIZE;
+        }
+        return (int) Math.min(contentLength + 1, pool.getMaxBufferSize());
+    }
+
+    private static void releaseAll(List<ByteBuffer> buffers, ByteBufferPool pool) {
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+    }
+
+    /** Reads until end of stream, replacing full buffers by bigger ones from the pool */
+    private static ByteBuffer readRemaining(InputStream inputStream, ByteBuffer buffer, ByteBufferPool pool) throws IOException {
+        try {
+            if (buffer.hasArray()) {
+                while (true) {
+                    if (!buffer.hasRemaining()) {
+                        buffer = grow(buffer, pool);
+                    }
+                    int n = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    if (n==-1) {
+                        return buffer;
+                    }
+                    buffer.position(buffer.position() + n);
+                }
+            } else {
+                // off-heap buffers are filled through a pooled heap chunk
+                ByteBuffer chunk = ByteBufferPool.DEFAULT.acquire(TRANSFER_CHUNK_SIZE);
+                try {
+                    byte[] bytes = chunk.array();
+                    while (true) {
+                        int n = inputStream.read(bytes, chunk.arrayOffset(), TRANSFER_CHUNK_SIZE);
+                        if (n==-1) {
+                            return buffer;
+                        }
+                        while (buffer.remaining()<n) {
+                            buffer = grow(buffer, pool);
+                        }
+                        buffer.put(bytes, chunk.arrayOffset(), n);
+                    }
+                } finally {
+                    ByteBufferPool.DEFAULT.release(chunk);
+                }
+            }
+        } catch (IOException e) {
+            pool.release(buffer);
+            throw e;
+        } catch (RuntimeException e) {
+            pool.release(buffer);
+            throw e;
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, ByteBufferPool pool) {
+        if (buffer.capacity()>=Integer.MAX_VALUE / 2) {
+            throw new OutOfMemoryError("Response body too big for a ByteBuffer");
+        }
+        ByteBuffer bigger = pool.acquire(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        pool.release(buffer);
+        return bigger;
+    }
+
+    private static int readFully(InputStream inputStream, byte[] bytes, int offset, int length) throws IOException {
+        int read = 0;
+        while (read<length) {
+            int n = inputStream.read(bytes, offset + read, length - read);
+            if (n==-1) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+}
@@ -1,12 +1,14 @@
 package de.mhellmann.net.fluenthttp;
 
 import de.mhellmann.util.Log4JUtils;
+import de.mhellmann.util.VirtualThreads;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.http.*;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.client.params.CookiePolicy;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.conn.ClientConnectionManager;
@@ -16,13 +18,17 @@ import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.apache.log4j.Level;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,8 +37,14 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import java.io.*;
 import java.net.ConnectException;
+import java.net.URI;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -50,6 +62,7 @@ public class FluentHttpClient {
 
     public static final String USER_AGENT_MOZILLA = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10.8; rv:24.0) Firefox/24.0";
     public static final int DEFAULT_TIMEOUT = 20000;
+    public static final int DEFAULT_PUBLISHER_CONCURRENCY = 8;
     private static final int HTTPS_PORT = 443;
 
     // http://www.whatsmyuseragent.com/
@@ -57,6 +70,7 @@ public class FluentHttpClient {
     private Integer connectionTimeoutMillis = DEFAULT_TIMEOUT;
     private Integer socketTimeoutMillis = DEFAULT_TIMEOUT;
     private Boolean tcpNoDelay = true;
+    private HttpVersion protocolVersion = HttpVersion.HTTP_1_1;
     private boolean handleRedirects = true;
     private int retryCount = 0;
     protected boolean rethrowExceptions = true;
@@ -67,6 +81,30 @@ public class FluentHttpClient {
     private boolean logHeaders = false;
     private boolean logDebugToSysOut = false;
     private boolean logErrorToSysOut = false;
+    /** Headers and cookies of every n-th request are logged, 0 means only slow or failed ones */
+    private int logSampleRate = 1;
+    private long logSlowRequestsMillis = 0;
+    private boolean logFailedRequests = false;
+    private boolean logRedacted = true;
+    private final AtomicLong logSampleCounter = new AtomicLong();
+
+    /** 0 means every request gets its own connection manager, which is shut down afterwards */
+    private int maxConnectionsTotal = 0;
+    private int maxConnectionsPerRoute = 0;
+    private volatile PoolingClientConnectionManager connectionManager;
+
+    private ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+    private StreamLeakReaper streamLeakReaper;
+    private final RouteAuthCache authCache = new RouteAuthCache();
+    private FluentHttpTokenProvider tokenProvider;
+    private final Map<String, FluentHttpLoadBalancer> loadBalancers = new ConcurrentHashMap<String, FluentHttpLoadBalancer>();
+    private boolean virtualThreads = false;
+    /** Runs the blocking reads of asPublisher() and execute(Publisher), created on first use */
+    private ExecutorService publisherExecutor;
+
+    /** Copy-on-write, so dispatching needs neither locking nor an iterator */
+    private volatile FluentHttpListener[] listeners = NO_LISTENERS;
+    private static final FluentHttpListener[] NO_LISTENERS = new FluentHttpListener[0];
 
     /**
      * This can be used to login and keep the session for subsequent calls.
@@ -99,6 +137,33 @@ public class FluentHttpClient {
         return this;
     }
 
+    /**
+     * Limits header and cookie logging to every n-th request, e.g. 100 logs 1 in 100 requests.
+     * 0 logs only requests matching withLoggingSlowRequests() or withLoggingFailedRequests().
+     */
+    public FluentHttpClient withLoggingSampleRate(int oneInN) {
+        this.logSampleRate = oneInN;
+        return this;
+    }
+
+    /** Additionally logs headers and cookies of requests taking longer than this until the response headers arrived. */
+    public FluentHttpClient withLoggingSlowRequests(long slowerThanMillis) {
+        this.logSlowRequestsMillis = slowerThanMillis;
+        return this;
+    }
+
+    /** Additionally logs headers and cookies of requests failing with an exception or a status code that is not allowed. */
+    public FluentHttpClient withLoggingFailedRequests() {
+        this.logFailedRequests = true;
+        return this;
+    }
+
+    /** Authorization and cookie values are logged as "***" by default, false logs them in clear text. */
+    public FluentHttpClient withLoggingRedacted(boolean redacted) {
+        this.logRedacted = redacted;
+        return this;
+    }
+
     public FluentHttpClient withLoggingToSysOut(boolean debugAndErrorToSysOut) {
         return withLoggingToSysOut(debugAndErrorToSysOut, debugAndErrorToSysOut);
     }
@@ -114,6 +179,187 @@ public class FluentHttpClient {
         return this;
     }
 
+    /** Registers a listener getting callbacks for the lifecycle of each request. */
+    public FluentHttpClient withListener(FluentHttpListener listener) {
+        if (listener!=null) {
+            synchronized (this) {
+                FluentHttpListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+                newListeners[listeners.length] = listener;
+                listeners = newListeners;
+            }
+        }
+        return this;
+    }
+
+    public FluentHttpClient withAsyncLoggingToSysOut(boolean debugAndErrorToSysOut) {
+        return withAsyncLoggingToSysOut(debugAndErrorToSysOut, debugAndErrorToSysOut);
+    }
+
+    /**
+     * Like withLoggingToSysOut(), but System.out is written by a background thread,
+     * so requests don't wait for the console. Lines are dropped (and counted) if it can't keep up.
+     */
+    public FluentHttpClient withAsyncLoggingToSysOut(boolean debugToSysOut, boolean errorToSysOut) {
+        this.logDebugToSysOut = debugToSysOut;
+        this.logErrorToSysOut = errorToSysOut;
+        if (debugToSysOut) {
+            Log4JUtils.addAsyncConsoleAppender(logger, Level.DEBUG);
+        } else if (errorToSysOut) {
+            Log4JUtils.addAsyncConsoleAppender(logger, Level.ERROR);
+        }
+        return this;
+    }
+
+    /**
+     * Keeps connections open and reuses them for subsequent requests of this client instead of
+     * connecting for every request. Call shutdown() when the client is not used anymore.
+     */
+    public FluentHttpClient withConnectionPool(int maxTotal, int maxPerRoute) {
+        this.maxConnectionsTotal = maxTotal;
+        this.maxConnectionsPerRoute = maxPerRoute;
+        return this;
+    }
+
+    /** Buffers for reading response bodies are taken from this pool, default is the shared ByteBufferPool.DEFAULT. */
+    public FluentHttpClient withBufferPool(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    public ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Aborts the connection of streams returned by asStream() which have been neither read nor closed
+     * for idleTimeoutMillis, and logs each leak as an error. With debug logging the log entry includes
+     * the stack trace where the stream was opened.
+     */
+    public FluentHttpClient withStreamLeakDetection(long idleTimeoutMillis) {
+        return withStreamLeakDetection(idleTimeoutMillis, 1);
+    }
+
+    /** @param allocationSiteSampleRate with debug logging, one in n streams records its allocation site, 0 none */
+    public FluentHttpClient withStreamLeakDetection(long idleTimeoutMillis, int allocationSiteSampleRate) {
+        if (streamLeakReaper!=null) {
+            streamLeakReaper.shutdown();
+        }
+        this.streamLeakReaper = new StreamLeakReaper(logger, idleTimeoutMillis, allocationSiteSampleRate);
+        return this;
+    }
+
+    /** @return the number of streams reaped by withStreamLeakDetection() */
+    public long getLeakedStreamCount() {
+        return streamLeakReaper==null ? 0 : streamLeakReaper.getLeakCount();
+    }
+
+    StreamLeakReaper getStreamLeakReaper() {
+        return streamLeakReaper;
+    }
+
+    RouteAuthCache getAuthCache() {
+        return authCache;
+    }
+
+    /**
+     * Every request without other authentication sends a bearer token of the provider, cached and refreshed
+     * in the background. A 401 invalidates the token and the request is retried once with a new one.
+     */
+    public FluentHttpClient withBearerTokens(FluentHttpTokenProvider tokenProvider) {
+        this.tokenProvider = tokenProvider;
+        return this;
+    }
+
+    /** @see #withBearerTokens(FluentHttpTokenProvider) */
+    public FluentHttpClient withBearerTokens(FluentHttpTokenProvider.TokenFetcher tokenFetcher) {
+        return withBearerTokens(new FluentHttpTokenProvider(tokenFetcher));
+    }
+
+    public FluentHttpTokenProvider getTokenProvider() {
+        return tokenProvider;
+    }
+
+    /**
+     * Urls starting with service + "://" are sent to one of the endpoints, chosen by power of two choices
+     * on latency and requests in flight, see FluentHttpLoadBalancer.
+     */
+    public FluentHttpClient withEndpoints(String service, List<URI> endpoints) {
+        return withEndpoints(service, endpoints, FluentHttpLoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+    }
+
+    /** @param service e.g. "users" for urls like "users://4711/profile" */
+    public FluentHttpClient withEndpoints(String service, List<URI> endpoints, FluentHttpLoadBalancer.Strategy strategy) {
+        if ("http".equalsIgnoreCase(service) || "https".equalsIgnoreCase(service)) {
+            throw new IllegalArgumentException("Service name must not be a url scheme: " + service);
+        }
+        loadBalancers.put(service, new FluentHttpLoadBalancer(service, endpoints, strategy));
+        return this;
+    }
+
+    /** @return the load balancer of the service, e.g. for withEjection() or its endpoint statistics */
+    public FluentHttpLoadBalancer getLoadBalancer(String service) {
+        return loadBalancers.get(service);
+    }
+
+    FluentHttpLoadBalancer getLoadBalancerFor(String url) {
+        if (loadBalancers.isEmpty() || url==null) {
+            return null;
+        }
+        int schemeEnd = url.indexOf("://");
+        return schemeEnd<=0 ? null : loadBalancers.get(url.substring(0, schemeEnd));
+    }
+
+    /**
+     * Threads started by the client, e.g. for segmented downloads, and the threads of newExecutorService()
+     * are virtual threads on Java 21 and later. Older JVMs fall back to platform threads, see isVirtualThreadsSupported().
+     */
+    public FluentHttpClient withVirtualThreads() {
+        this.virtualThreads = true;
+        return this;
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return VirtualThreads.isSupported();
+    }
+
+    /**
+     * Executor for running many blocking requests like asBytes() concurrently: a new virtual thread per task
+     * with withVirtualThreads() on Java 21+, otherwise a cached pool of daemon threads.
+     * The caller has to shut it down.
+     */
+    public ExecutorService newExecutorService() {
+        return virtualThreads ? VirtualThreads.newThreadPerTaskExecutor("FluentHttpClient-")
+                : Executors.newCachedThreadPool(VirtualThreads.newDaemonThreadFactory("FluentHttpClient-"));
+    }
+
+    ThreadFactory newThreadFactory(String namePrefix) {
+        return virtualThreads ? VirtualThreads.newThreadFactory(namePrefix) : VirtualThreads.newDaemonThreadFactory(namePrefix);
+    }
+
+    synchronized ExecutorService getPublisherExecutor() {
+        if (publisherExecutor==null) {
+            publisherExecutor = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor("FluentHttpClient-publisher-")
+                    : Executors.newCachedThreadPool(VirtualThreads.newDaemonThreadFactory("FluentHttpClient-publisher-"));
+        }
+        return publisherExecutor;
+    }
+
+    /**
+     * Sends the requests with at most maxConcurrency at a time and emits the responses as they complete.
+     * Requests are only taken from the publisher as responses are requested, so a slow subscriber holds back
+     * the whole batch. A failed request is emitted as FluentHttpResponse with its exception.
+     *
+     * @param requests e.g. client.get(url) for each url, without calling as...() on them
+     */
+    public Publisher<FluentHttpResponse> execute(Publisher<? extends FluentHttpMethodBuilder> requests, int maxConcurrency) {
+        return new ResponsePublisher(requests, getPublisherExecutor(), maxConcurrency);
+    }
+
+    /** Like execute(requests, maxConcurrency) with the maximum number of pooled connections, or 8 without pooling */
+    public Publisher<FluentHttpResponse> execute(Publisher<? extends FluentHttpMethodBuilder> requests) {
+        return execute(requests, isPooling() ? maxConnectionsTotal : DEFAULT_PUBLISHER_CONCURRENCY);
+    }
+
     public FluentHttpClient withRetries(int retryCount) {
         this.retryCount = retryCount;
         return this;
@@ -144,6 +390,22 @@ public class FluentHttpClient {
         return this;
     }
 
+    /**
+     * HTTP/1.1 is the default, HTTP/1.0 is for old servers that can't handle persistent connections or chunking.
+     * With HTTP/1.0 request bodies of unknown length (streams, encoded or multipart bodies) are buffered
+     * to send a Content-Length instead of chunks.
+     *
+     * HTTP/2 is not supported: it needs ALPN and a multiplexing transport, which HttpClient 4.2 doesn't provide.
+     * To keep the connection count low under fan-out use withConnectionPool(), which reuses a few connections per origin.
+     */
+    public FluentHttpClient withProtocolVersion(HttpVersion protocolVersion) {
+        if (protocolVersion==null || protocolVersion.getMajor()!=1) {
+            throw new IllegalArgumentException("Unsupported protocol version " + protocolVersion + ", only HTTP/1.0 and HTTP/1.1 are available");
+        }
+        this.protocolVersion = protocolVersion;
+        return this;
+    }
+
     public FluentHttpClient withRethrowingExceptions(boolean rethrowExceptions) {
         this.rethrowExceptions = rethrowExceptions;
         return this;
@@ -194,21 +456,32 @@ public class FluentHttpClient {
                 .append("connectionTimeoutMillis", connectionTimeoutMillis)
                 .append("socketTimeoutMillis", socketTimeoutMillis)
                 .append("tcpNoDelay", tcpNoDelay)
+                .append("protocolVersion", protocolVersion)
                 .append("handleRedirects", handleRedirects)
                 .append("retryCount", retryCount)
                 .append("rethrowExceptions", rethrowExceptions)
                 .append("avoidSSLPeerUnverifiedException", avoidSSLPeerUnverifiedException)
                 .append("logCookies", logCookies)
                 .append("logHeaders", logHeaders)
+                .append("logSampleRate", logSampleRate)
+                .append("logSlowRequestsMillis", logSlowRequestsMillis)
+                .append("logFailedRequests", logFailedRequests)
+                .append("logRedacted", logRedacted)
                 .append("logDebugToSysOut", logDebugToSysOut)
                 .append("logErrorToSysOut", logErrorToSysOut)
                 .append("cookieStore", cookieStore)
                 .append("reuseLastCookieStore", reuseLastCookieStore)
+                .append("maxConnectionsTotal", maxConnectionsTotal)
+                .append("maxConnectionsPerRoute", maxConnectionsPerRoute)
+                .append("listeners", listeners.length)
+                .append("virtualThreads", virtualThreads)
+                .append("bearerTokens", tokenProvider!=null)
+                .append("loadBalancers", loadBalancers.values())
                 .toString();
     }
 
     //################################################################
-    //### The client calls this to execute http get or post methods
+    //### The client calls this to execute http get, post or other methods
     //################################################################
 
     public FluentHttpGetMethodBuilder get(String url) {
@@ -219,11 +492,117 @@ public class FluentHttpClient {
        return new FluentHttpPostMethodBuilder(this, logger, url);
     }
 
+    public FluentHttpGenericMethodBuilder put(String url) {
+       return method("PUT", url);
+    }
+
+    public FluentHttpGenericMethodBuilder patch(String url) {
+       return method("PATCH", url);
+    }
+
+    public FluentHttpGenericMethodBuilder delete(String url) {
+       return method("DELETE", url);
+    }
+
+    /** HEAD doesn't transfer a response body, e.g. for cheap checks with asStatusLine() */
+    public FluentHttpGenericMethodBuilder head(String url) {
+       return method("HEAD", url);
+    }
+
+    public FluentHttpGenericMethodBuilder options(String url) {
+       return method("OPTIONS", url);
+    }
+
+    /**
+     * Status-only health check: sends a HEAD, and a GET if the server doesn't allow HEAD.
+     * A response body is never downloaded beyond the drain limit.
+     */
+    public FluentHttpProbeMethodBuilder probe(String url) {
+       return new FluentHttpProbeMethodBuilder(this, logger, url);
+    }
+
+    /**
+     * Compiles the configured builder into a template for repeated calls, e.g.
+     * client.template(client.get("http://host/users/{id}").withHeader("Accept", "application/json")).expand(4711).asString()
+     *
+     * @param prototype must not be used afterwards
+     */
+    public <B extends FluentHttpMethodBuilder> FluentHttpRequestTemplate<B> template(B prototype) {
+        return new FluentHttpRequestTemplate<B>(prototype);
+    }
+
+    /** @param method any http method name like "PROPFIND" */
+    public FluentHttpGenericMethodBuilder method(String method, String url) {
+       return new FluentHttpGenericMethodBuilder(this, logger, url, method);
+    }
+
+
+    /**
+     * Closes the pooled connections, if withConnectionPool() has been used, stops the stream leak detection,
+     * the threads of running publishers and the token refresh.
+     */
+    public void shutdown() {
+        if (streamLeakReaper!=null) {
+            streamLeakReaper.shutdown();
+        }
+        if (tokenProvider!=null) {
+            tokenProvider.shutdown();
+        }
+        PoolingClientConnectionManager connectionManager;
+        ExecutorService publisherExecutor;
+        synchronized (this) {
+            connectionManager = this.connectionManager;
+            this.connectionManager = null;
+            publisherExecutor = this.publisherExecutor;
+            this.publisherExecutor = null;
+        }
+        if (connectionManager!=null) {
+            connectionManager.shutdown();
+        }
+        if (publisherExecutor!=null) {
+            publisherExecutor.shutdown();
+        }
+    }
+
 
     //#############################################################
     //### internal impls ..
     //#############################################################
 
+    /**
+     * @return leased, pending, available and max connections of the pool, e.g. to watch for saturation or leaks,
+     *         null without withConnectionPool() or before the first request
+     */
+    public PoolStats getPoolStats() {
+        PoolingClientConnectionManager connectionManager = this.connectionManager;
+        return connectionManager==null ? null : connectionManager.getTotalStats();
+    }
+
+    protected boolean isPooling() {
+        return maxConnectionsTotal > 0;
+    }
+
+    /** HTTP/1.0 has no chunked transfer encoding */
+    protected boolean isChunkingSupported() {
+        return protocolVersion.greaterEquals(HttpVersion.HTTP_1_1);
+    }
+
+    protected ClientConnectionManager getPooledConnectionManager() {
+        PoolingClientConnectionManager connectionManager = this.connectionManager;
+        if (connectionManager==null) {
+            synchronized (this) {
+                connectionManager = this.connectionManager;
+                if (connectionManager==null) {
+                    connectionManager = new PoolingClientConnectionManager();
+                    connectionManager.setMaxTotal(maxConnectionsTotal);
+                    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute>0 ? maxConnectionsPerRoute : maxConnectionsTotal);
+                    this.connectionManager = connectionManager;
+                }
+            }
+        }
+        return connectionManager;
+    }
+
     /** This uses http.proxyHost and https.proxyHost etc. system properties */
     protected DefaultHttpClient newHttpClient(FluentHttpMethodBuilder.ProxyInfo systemProxyInfo, Boolean ignoreCookies) {
         String proxyHost = systemProxyInfo==null ? null : systemProxyInfo.getProxyHost();
@@ -265,7 +644,18 @@ public class FluentHttpClient {
 
     private DefaultHttpClient newHttpClient(String proxyHost, int proxyPort, Boolean ignoreCookies) {
 
-        DefaultHttpClient httpClient = new DefaultHttpClient();
+        ClientConnectionManager pooledConnectionManager = isPooling() ? getPooledConnectionManager() : null;
+        DefaultHttpClient httpClient;
+        if (hasListeners()) {
+            httpClient = new DefaultHttpClient(pooledConnectionManager) {
+                @Override
+                protected HttpRequestExecutor createRequestExecutor() {
+                    return new ListeningHttpRequestExecutor(FluentHttpClient.this);
+                }
+            };
+        } else {
+            httpClient = new DefaultHttpClient(pooledConnectionManager);
+        }
 
         if (avoidSSLPeerUnverifiedException) {
             avoidSSLPeerUnverifiedException(httpClient);
@@ -281,6 +671,10 @@ public class FluentHttpClient {
         if (tcpNoDelay!=null) {
             HttpConnectionParams.setTcpNoDelay(httpParams, tcpNoDelay);
         }
+        if (pooledConnectionManager!=null && connectionTimeoutMillis!=null) {
+            // waiting for a free pooled connection
+            HttpClientParams.setConnectionManagerTimeout(httpParams, connectionTimeoutMillis);
+        }
 
         if (StringUtils.isNotEmpty(proxyHost) && proxyPort>0) {
             HttpHost proxy = new HttpHost(proxyHost, proxyPort);
@@ -291,7 +685,7 @@ public class FluentHttpClient {
         }
 
         httpClient.getParams().setParameter("http.useragent", userAgent);
-        httpClient.getParams().setParameter(CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_1);
+        httpClient.getParams().setParameter(CoreProtocolPNames.PROTOCOL_VERSION, protocolVersion);
         httpClient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, handleRedirects);
 
         if (ignoreCookies!=null) {
@@ -351,12 +745,101 @@ public class FluentHttpClient {
             boolean idempotent = !(request instanceof HttpEntityEnclosingRequest);
             logger.debug("idempotent = {}", idempotent);
             // Retry if the request is considered idempotent
+            if (idempotent && hasListeners()) {
+                fireRequestRetried(ListeningHttpRequestExecutor.original(request), exception, executionCount, context);
+            }
             return idempotent;
         }
 
     };
 
 
+    //##################################################
+    //### Listener callbacks
+    //##################################################
+
+    protected boolean hasListeners() {
+        return listeners.length > 0;
+    }
+
+    protected void fireRequestStarted(HttpRequest request, HttpContext httpContext) {
+        FluentHttpListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].requestStarted(request, httpContext);
+            } catch (RuntimeException e) {
+                logger.error("Error in FluentHttpListener.requestStarted() of {}", listeners[i], e);
+            }
+        }
+    }
+
+    protected void fireConnectionAcquired(HttpRequest request, HttpClientConnection connection, HttpContext httpContext) {
+        FluentHttpListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].connectionAcquired(request, connection, httpContext);
+            } catch (RuntimeException e) {
+                logger.error("Error in FluentHttpListener.connectionAcquired() of {}", listeners[i], e);
+            }
+        }
+    }
+
+    protected void fireRequestHeadersSent(HttpRequest request, HttpContext httpContext) {
+        FluentHttpListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].requestHeadersSent(request, httpContext);
+            } catch (RuntimeException e) {
+                logger.error("Error in FluentHttpListener.requestHeadersSent() of {}", listeners[i], e);
+            }
+        }
+    }
+
+    protected void fireResponseHeadersReceived(HttpRequest request, HttpResponse response, HttpContext httpContext) {
+        FluentHttpListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].responseHeadersReceived(request, response, httpContext);
+            } catch (RuntimeException e) {
+                logger.error("Error in FluentHttpListener.responseHeadersReceived() of {}", listeners[i], e);
+            }
+        }
+    }
+
+    protected void fireResponseBodyCompleted(HttpRequest request, HttpResponse response, HttpContext httpContext) {
+        FluentHttpListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].responseBodyCompleted(request, response, httpContext);
+            } catch (RuntimeException e) {
+                logger.error("Error in FluentHttpListener.responseBodyCompleted() of {}", listeners[i], e);
+            }
+        }
+    }
+
+    protected void fireRequestFailed(HttpRequest request, IOException exception, HttpContext httpContext) {
+        FluentHttpListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].requestFailed(request, exception, httpContext);
+            } catch (RuntimeException e) {
+                logger.error("Error in FluentHttpListener.requestFailed() of {}", listeners[i], e);
+            }
+        }
+    }
+
+    protected void fireRequestRetried(HttpRequest request, IOException exception, int executionCount, HttpContext httpContext) {
+        FluentHttpListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].requestRetried(request, exception, executionCount, httpContext);
+            } catch (RuntimeException e) {
+                logger.error("Error in FluentHttpListener.requestRetried() of {}", listeners[i], e);
+            }
+        }
+    }
+
+
     //##################################################
     //### Logging & Debugging stuff
     //##################################################
@@ -396,42 +879,103 @@ public class FluentHttpClient {
         logger.error(msg);
     }*/
 
+    /**
+     * Decides once per request whether headers and cookies are logged, so the cost is only paid for sampled,
+     * slow or failed requests. This is cheap if debug logging is disabled.
+     *
+     * @param startedNanos System.nanoTime() when the request was started
+     * @param failed       the request failed or returned a status code that is not allowed
+     */
+    protected boolean isLoggingWire(long startedNanos, boolean failed) {
+        if ((!logHeaders && !logCookies) || !logger.isDebugEnabled()) {
+            return false;
+        }
+        if (failed && logFailedRequests) {
+            return true;
+        }
+        if (logSlowRequestsMillis>0 && System.nanoTime() - startedNanos >= logSlowRequestsMillis * 1000000L) {
+            return true;
+        }
+        if (logSampleRate<=1) {
+            return logSampleRate==1;
+        }
+        return logSampleCounter.incrementAndGet() % logSampleRate == 0;
+    }
+
+    /**
+     * Logs cookies and headers of a request if it has been selected by isLoggingWire()
+     *
+     * @return whether it has been logged
+     */
+    protected boolean logWire(HttpRequest request, HttpResponse response, HttpContext httpContext, long startedNanos, boolean failed) {
+        if (isLoggingWire(startedNanos, failed)) {
+            logCookies(httpContext);
+            logRequestHeaders(request);
+            logResponseHeaders(response);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * For a request failing after logWire() didn't select it, e.g. while reading the body:
+     * logged with withLoggingFailedRequests() only, and not counted for sampling again.
+     */
+    protected void logWireFailure(HttpRequest request, HttpContext httpContext) {
+        if (logFailedRequests && (logHeaders || logCookies) && logger.isDebugEnabled()) {
+            logCookies(httpContext);
+            logRequestHeaders(request);
+        }
+    }
+
     protected void logRequestHeaders(HttpRequest request) {
-        if (logHeaders && request!=null) {
-            Header[] headers = request.getAllHeaders();
-            logger.debug("Request Headers: ");
-            if (headers!=null && headers.length>0) {
-                for (Header header : headers) {
-                    logger.debug(" RequestHeader {} = {} / header.elements.length={}", header.getName(), header.getValue(), header.getElements().length);
-                }
-            } else {
-                logger.debug("No headers found.");
-            }
+        if (logHeaders && request!=null && logger.isDebugEnabled()) {
+            logHeaders("RequestHeader", request.getAllHeaders());
         }
     }
 
     protected void logResponseHeaders(HttpResponse response) {
-        if (logHeaders && response!=null) {
-            Header[] headers = response.getAllHeaders();
-            logger.debug("Response Headers: ");
-            if (headers!=null && headers.length>0) {
-                for (Header header : headers) {
-                    logger.debug(" ResponseHeader {} = {} / header.elements.length={}", header.getName(), header.getValue(), header.getElements().length);
+        if (logHeaders && response!=null && logger.isDebugEnabled()) {
+            logHeaders("ResponseHeader", response.getAllHeaders());
+        }
+    }
+
+    private void logHeaders(String kind, Header[] headers) {
+        logger.debug("{}s: ", kind);
+        if (headers!=null && headers.length>0) {
+            for (Header header : headers) {
+                String value = header.getValue();
+                if (logRedacted && isRedactedHeader(header.getName())) {
+                    value = REDACTED;
                 }
-            } else {
-                logger.debug("No headers found.");
+                logger.debug(" {} {} = {}", kind, header.getName(), value);
             }
+        } else {
+            logger.debug("No headers found.");
         }
     }
 
+    private static final String REDACTED = "***";
+
+    private static boolean isRedactedHeader(String headerName) {
+        return "Authorization".equalsIgnoreCase(headerName)
+                || "Proxy-Authorization".equalsIgnoreCase(headerName)
+                || "Cookie".equalsIgnoreCase(headerName)
+                || "Set-Cookie".equalsIgnoreCase(headerName);
+    }
+
     protected void logCookies(HttpContext httpContext) {
-        if (logCookies && httpContext!=null) {
+        if (logCookies && httpContext!=null && logger.isDebugEnabled()) {
             CookieStore cookieStore = (CookieStore)httpContext.getAttribute(ClientContext.COOKIE_STORE);
             logger.debug("Cookies: ");
             List<Cookie> cookies = cookieStore==null ? null : cookieStore.getCookies();
             if (cookies!=null && cookies.size()>0) {
                 for (Cookie cookie : cookies) {
-                    logger.debug(" Cookie {} = {} / {}", cookie.getName(), cookie.getValue(), cookie);
+                    if (logRedacted) {
+                        logger.debug(" Cookie {} = {} / domain={}, path={}", cookie.getName(), REDACTED, cookie.getDomain(), cookie.getPath());
+                    } else {
+                        logger.debug(" Cookie {} = {} / {}", cookie.getName(), cookie.getValue(), cookie);
+                    }
                 }
             } else {
                 logger.debug("No cookies found.");
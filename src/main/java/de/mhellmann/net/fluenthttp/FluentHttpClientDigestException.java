@@ -0,0 +1,40 @@
+package de.mhellmann.net.fluenthttp;
+
+import java.io.IOException;
+
+/**
+ * Thrown at the end of a response body if its digest doesn't match the Content-MD5 or Digest header.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public class FluentHttpClientDigestException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String algorithm;
+    private final String expected;
+    private final String actual;
+
+    public FluentHttpClientDigestException(String url, String algorithm, String expected, String actual) {
+        super(algorithm + " digest mismatch for " + url + ": expected " + expected + " but was " + actual);
+        this.algorithm = algorithm;
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /** @return the base64 value of the header */
+    public String getExpected() {
+        return expected;
+    }
+
+    /** @return the base64 value computed from the body */
+    public String getActual() {
+        return actual;
+    }
+}
@@ -0,0 +1,617 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Downloads a response body into a file, see FluentHttpGetMethodBuilder.asFile().
+ *
+ * If the server supports range requests, the file is preallocated and split into segments, which are downloaded
+ * by concurrent range requests and written at their offsets. The progress of each segment is saved in a state
+ * file next to the target ("&lt;file&gt;.download"), so a failed segment is retried from its last written byte,
+ * and a download interrupted for good continues where it stopped when download() is called again.
+ * The state file is deleted when the download is complete.
+ *
+ * The state file keeps the ETag or Last-Modified date of the first response, which is sent as If-Range
+ * with every range request. If the resource changed in between, the download starts from scratch.
+ * A segment answered with 503 is retried after the Retry-After delay.
+ *
+ * The digests requested by withDigest() on the builder are available from its getDigest() after the download.
+ * A body sent as a whole is digested while it is written and checked against Content-MD5 and Digest headers.
+ * With range requests the finished file is digested in one more pass, because the segments arrive out of order,
+ * and checked against the Digest header, which covers the whole resource unlike the Content-MD5 of a range.
+ * A resumed download without any missing segment has no response to check against.
+ * On a mismatch FluentHttpClientDigestException is thrown and the next download() starts from scratch.
+ *
+ * With FluentHttpClient.withConnectionPool(), maxPerRoute limits the number of concurrent segments.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public class FluentHttpFileDownload {
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    static final String STATE_FILE_SUFFIX = ".download";
+
+    private static final int HTTP_200 = 200;
+    private static final int HTTP_206 = 206;
+    private static final int HTTP_416 = 416;
+    private static final int HTTP_503 = 503;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** the progress of a segment is saved at least every this many bytes */
+    private static final long SAVE_INTERVAL = 1024 * 1024;
+    /** wait for a 503 without Retry-After header */
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+    private static final long MAX_RETRY_AFTER_MILLIS = 60 * 1000;
+
+    private final FluentHttpClient fluentHttpClient;
+    private final Logger logger;
+    private final FluentHttpGetMethodBuilder template;
+    private final File file;
+    private final File stateFile;
+    private int segments = 1;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    /** the Digest header of a range response, null if none has been received */
+    private volatile Map<String, String> instanceDigests;
+
+    FluentHttpFileDownload(FluentHttpClient fluentHttpClient, Logger logger, FluentHttpGetMethodBuilder template, File file) {
+        this.fluentHttpClient = fluentHttpClient;
+        this.logger = logger;
+        this.template = template;
+        this.file = file;
+        this.stateFile = new File(file.getPath() + STATE_FILE_SUFFIX);
+    }
+
+    /**
+     * @param segments number of concurrent range requests, reduced so no segment is smaller than MIN_SEGMENT_SIZE.
+     *                 Ignored if the server doesn't support ranges.
+     */
+    public FluentHttpFileDownload withSegments(int segments) {
+        if (segments<1) {
+            throw new IllegalArgumentException("segments must be positive: " + segments);
+        }
+        this.segments = segments;
+        return this;
+    }
+
+    /** @param maxRetries per segment, a retry which made progress doesn't count. Also the number of restarts of a changed resource. */
+    public FluentHttpFileDownload withMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * @return the file, or null if the download failed and the client doesn't rethrow exceptions.
+     *         Call again to resume a failed download.
+     */
+    public File download() throws IOException {
+        try {
+            for (int restarts = 0; ; restarts++) {
+                try {
+                    downloadFile();
+                    return file;
+                } catch (ResourceChangedException e) {
+                    if (restarts>=maxRetries) {
+                        throw e;
+                    }
+                    logger.debug("FluentHttpClient.download({}): {}, starting from scratch", template.url, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            return (File) template.handleException(e, "Download to " + file + " failed.");
+        }
+    }
+
+    private void downloadFile() throws IOException {
+        template.digests = null;
+        instanceDigests = null;
+        DownloadState state = DownloadState.load(stateFile, file);
+        if (state==null) {
+            state = probe();
+            if (state==null) {
+                // no range support: the probe already downloaded the whole body
+                return;
+            }
+        } else {
+            logger.debug("FluentHttpClient.download({}): resuming at {} of {} bytes", template.url, state.getCompleted(), state.length);
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(state.length);
+            downloadSegments(state, randomAccessFile.getChannel());
+        } finally {
+            randomAccessFile.close();
+            state.close();
+        }
+        if (!stateFile.delete()) {
+            logger.error("FluentHttpClient.download({}): could not delete {}", template.url, stateFile);
+        }
+        if (template.digestAlgorithms!=null) {
+            digestFile();
+        }
+    }
+
+    /** Digests the finished file in one pass, the state file is gone already, so a mismatch restarts the download */
+    private void digestFile() throws IOException {
+        Map<String, String> digests = new LinkedHashMap<String, String>();
+        template.digests = digests;
+        Map<String, String> expectedDigests = instanceDigests==null ? Collections.<String, String>emptyMap() : instanceDigests;
+        InputStream in = new DigestingInputStream(new FileInputStream(file), template.url, template.digestAlgorithms, expectedDigests, digests);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer)!=-1) {
+                // digested while reading
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void rememberInstanceDigests(HttpResponse response) {
+        if (template.digestAlgorithms!=null && instanceDigests==null) {
+            Map<String, String> digests = DigestingInputStream.instanceDigests(response);
+            if (!digests.isEmpty()) {
+                instanceDigests = digests;
+            }
+        }
+    }
+
+    private int segmentCount(long length) {
+        return (int) Math.max(1, Math.min(segments, length / MIN_SEGMENT_SIZE));
+    }
+
+    //###################################################################
+    //### Requests
+    //#######################
+
+    /**
+     * Requests the first byte to learn the length, the validator and whether the server supports ranges.
+     *
+     * @return the new state, or null if the server sent the whole body, which is then written to the file
+     */
+    private DownloadState probe() throws IOException {
+        Object state = rangeRequest(0, 0, null).executeAroundHttpMethod(new FluentHttpMethodBuilder.ResponseHandler() {
+            @Override
+            public Object computeResult(DefaultHttpClient httpClient, HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode==HTTP_206 || statusCode==HTTP_416) {
+                    // 416 for an empty body: "bytes */0"
+                    long length = totalLength(response);
+                    if (length>=0) {
+                        rememberInstanceDigests(response);
+                        return DownloadState.create(stateFile, length, segmentCount(length), validator(response));
+                    }
+                } else if (statusCode==HTTP_200) {
+                    logger.debug("FluentHttpClient.download({}): no range support, using a single request", template.url);
+                    writeWholeBody(response);
+                    return Boolean.TRUE;
+                }
+                throw new FluentHttpClientStatusCodeException("Status line " + response.getStatusLine() + " was returned for " + template.url, statusCode);
+            }
+
+            @Override
+            public boolean isHandlingConnectionShutdown() {
+                return false;
+            }
+        });
+        if (state==null) {
+            throw new IOException("Probing " + template.url + " failed.");
+        }
+        return state instanceof DownloadState ? (DownloadState) state : null;
+    }
+
+    /** Digests the body on its way into the file, if withDigest() was called */
+    private void writeWholeBody(HttpResponse response) throws IOException {
+        HttpEntity httpEntity = response.getEntity();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (httpEntity!=null && template.digestAlgorithms!=null) {
+                Map<String, String> digests = new LinkedHashMap<String, String>();
+                template.digests = digests;
+                InputStream in = new DigestingInputStream(httpEntity.getContent(), template.url, template.digestAlgorithms,
+                        DigestingInputStream.expectedDigests(response), digests);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int n;
+                    while ((n = in.read(buffer))!=-1) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            } else if (httpEntity!=null) {
+                httpEntity.writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** @param validator sent as If-Range, so a changed resource is answered with 200 instead of a range of the new one */
+    private FluentHttpGetMethodBuilder rangeRequest(long first, long last, String validator) {
+        FluentHttpGetMethodBuilder builder = new FluentHttpGetMethodBuilder(fluentHttpClient, logger, template.url);
+        builder.copySettingsFrom(template);
+        builder.withHeader("Range", "bytes=" + first + "-" + last);
+        if (validator!=null) {
+            builder.withHeader("If-Range", validator);
+        }
+        builder.withAllowedStatusCodes(HTTP_206, HTTP_416);
+        return builder;
+    }
+
+    /** @return the strong ETag, otherwise the Last-Modified date, null if there is neither. Weak ETags are not allowed in If-Range. */
+    private static String validator(HttpResponse response) {
+        Header eTag = response.getFirstHeader("ETag");
+        if (eTag!=null && !eTag.getValue().startsWith("W/")) {
+            return eTag.getValue();
+        }
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified==null ? null : lastModified.getValue();
+    }
+
+    /** @return the delay of the Retry-After header in seconds or as date, limited to MAX_RETRY_AFTER_MILLIS */
+    private static long retryAfterMillis(HttpResponse response) {
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter==null) {
+            return DEFAULT_RETRY_AFTER_MILLIS;
+        }
+        String value = retryAfter.getValue().trim();
+        long millis;
+        try {
+            millis = Long.parseLong(value) * 1000;
+        } catch (NumberFormatException e) {
+            try {
+                millis = DateUtils.parseDate(value).getTime() - System.currentTimeMillis();
+            } catch (DateParseException e1) {
+                millis = DEFAULT_RETRY_AFTER_MILLIS;
+            }
+        }
+        return Math.max(0, Math.min(millis, MAX_RETRY_AFTER_MILLIS));
+    }
+
+    /** @return the total length from the Content-Range header or -1 if it is unknown */
+    private static long totalLength(HttpResponse response) {
+        Header contentRange = response.getFirstHeader("Content-Range");
+        if (contentRange!=null) {
+            String value = contentRange.getValue();
+            int slash = value.lastIndexOf('/');
+            if (slash>=0) {
+                try {
+                    return Long.parseLong(value.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    // "*": unknown length
+                }
+            }
+        }
+        return -1;
+    }
+
+    //###################################################################
+    //### Segments
+    //#######################
+
+    private void downloadSegments(final DownloadState state, final FileChannel channel) throws IOException {
+        List<Integer> openSegments = new ArrayList<Integer>();
+        for (int i = 0; i < state.count(); i++) {
+            if (state.getPosition(i)<=state.getEnd(i)) {
+                openSegments.add(i);
+            }
+        }
+        if (openSegments.isEmpty()) {
+            return;
+        }
+        ExecutorService executorService = Executors.newFixedThreadPool(openSegments.size(), fluentHttpClient.newThreadFactory("FluentHttpClient-download-"));
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(openSegments.size());
+            for (final int segment : openSegments) {
+                futures.add(executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException {
+                        downloadSegment(state, segment, channel);
+                        return null;
+                    }
+                }));
+            }
+            // wait for all segments, so each one saves its progress before we report the first failure
+            IOException failure = null;
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // a changed resource wins, it restarts the download
+                    if (failure==null || e.getCause() instanceof ResourceChangedException) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+            if (failure!=null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download of " + template.url + " interrupted");
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private void downloadSegment(DownloadState state, int segment, FileChannel channel) throws IOException {
+        int failures = 0;
+        while (true) {
+            long position = state.getPosition(segment);
+            long end = state.getEnd(segment);
+            IOException exception;
+            long retryAfterMillis = 0;
+            try {
+                Long reached = (Long) rangeRequest(position, end, state.validator).executeAroundHttpMethod(new SegmentWriter(state, segment, channel));
+                if (reached!=null && reached>end) {
+                    return;
+                }
+                exception = new IOException("Range request " + position + "-" + end + " for " + template.url + " failed.");
+            } catch (ServiceUnavailableException e) {
+                exception = e;
+                retryAfterMillis = e.retryAfterMillis;
+            } catch (FluentHttpClientStatusCodeException e) {
+                throw e;
+            } catch (ResourceChangedException e) {
+                throw e;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                exception = e;
+            }
+            if (state.getPosition(segment)==position && ++failures>maxRetries) {
+                throw exception;
+            }
+            logger.debug("FluentHttpClient.download({}): retrying segment {} at byte {} in {} ms", template.url, segment, state.getPosition(segment), retryAfterMillis, exception);
+            if (retryAfterMillis>0) {
+                try {
+                    Thread.sleep(retryAfterMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download of " + template.url + " interrupted");
+                }
+            }
+        }
+    }
+
+    /** Writes a 206 response at the offset of its segment and saves the progress, also when the body breaks off */
+    private final class SegmentWriter implements FluentHttpMethodBuilder.ResponseHandler {
+
+        private final DownloadState state;
+        private final int segment;
+        private final FileChannel channel;
+
+        private SegmentWriter(DownloadState state, int segment, FileChannel channel) {
+            this.state = state;
+            this.segment = segment;
+            this.channel = channel;
+        }
+
+        @Override
+        public Long computeResult(DefaultHttpClient httpClient, HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode==HTTP_503) {
+                throw new ServiceUnavailableException("Status line " + response.getStatusLine() + " was returned for a range of " + template.url, retryAfterMillis(response));
+            }
+            if (statusCode==HTTP_200) {
+                // If-Range didn't match or ranges are no longer supported: the server sends the whole resource
+                state.discard();
+                throw new ResourceChangedException(template.url + " was sent as a whole instead of a range");
+            }
+            if (statusCode!=HTTP_206) {
+                throw new FluentHttpClientStatusCodeException("Status line " + response.getStatusLine() + " was returned for a range of " + template.url, statusCode);
+            }
+            String validator = validator(response);
+            if (totalLength(response)!=state.length || (state.validator!=null && validator!=null && !state.validator.equals(validator))) {
+                // the resource changed since the download started, the written segments are useless
+                state.discard();
+                throw new ResourceChangedException(template.url + " changed to " + totalLength(response) + " bytes, " + validator);
+            }
+            rememberInstanceDigests(response);
+            long position = state.getPosition(segment);
+            long end = state.getEnd(segment);
+            long saved = position;
+            InputStream in = response.getEntity().getContent();
+            byte[] bytes = new byte[BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            try {
+                int n;
+                while (position<=end && (n = in.read(bytes, 0, (int) Math.min(bytes.length, end - position + 1)))!=-1) {
+                    buffer.clear().limit(n);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    if (position - saved>=SAVE_INTERVAL) {
+                        state.setPosition(segment, position);
+                        saved = position;
+                    }
+                }
+            } finally {
+                state.setPosition(segment, position);
+            }
+            if (position<=end) {
+                throw new EOFException("Range of " + template.url + " ended at byte " + position + " instead of " + end);
+            }
+            return position;
+        }
+
+        @Override
+        public boolean isHandlingConnectionShutdown() {
+            return false;
+        }
+    }
+
+    /** The resource changed while it was downloaded, the state has been discarded */
+    private static final class ResourceChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private ResourceChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /** 503 for a segment, thrown as status code exception if the retries are used up */
+    private static final class ServiceUnavailableException extends FluentHttpClientStatusCodeException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterMillis;
+
+        private ServiceUnavailableException(String statusLine, long retryAfterMillis) {
+            super(statusLine, HTTP_503);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    //###################################################################
+    //### State file
+    //#######################
+
+    /**
+     * Progress of the segments, persisted as: long length, int count, then per segment long position, long end,
+     * followed by the validator in modified UTF-8, empty if there is none.
+     * Each segment is only updated by its own thread, the positional writes of FileChannel are thread safe.
+     */
+    static final class DownloadState {
+
+        private static final int HEADER_SIZE = 8 + 4;
+        private static final int SEGMENT_SIZE = 8 + 8;
+
+        final long length;
+        /** ETag or Last-Modified date of the resource, null if the server sent neither */
+        final String validator;
+        private final long[] positions;
+        private final long[] ends;
+        private final File stateFile;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private volatile boolean discarded = false;
+
+        private DownloadState(File stateFile, long length, String validator, long[] positions, long[] ends) throws IOException {
+            this.stateFile = stateFile;
+            this.length = length;
+            this.validator = validator;
+            this.positions = positions;
+            this.ends = ends;
+            this.randomAccessFile = new RandomAccessFile(stateFile, "rw");
+            this.channel = randomAccessFile.getChannel();
+        }
+
+        static DownloadState create(File stateFile, long length, int count, String validator) throws IOException {
+            long[] positions = new long[count];
+            long[] ends = new long[count];
+            long segmentSize = length / count;
+            for (int i = 0; i < count; i++) {
+                positions[i] = i * segmentSize;
+                ends[i] = i==count - 1 ? length - 1 : (i + 1) * segmentSize - 1;
+            }
+            DownloadState state = new DownloadState(stateFile, length, validator, positions, ends);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + count * SEGMENT_SIZE + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(length);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(positions[i]);
+                out.writeLong(ends[i]);
+            }
+            out.writeUTF(validator==null ? "" : validator);
+            out.close();
+            state.write(ByteBuffer.wrap(bytes.toByteArray()), 0);
+            return state;
+        }
+
+        /** @return null if there is nothing to resume */
+        static DownloadState load(File stateFile, File file) throws IOException {
+            if (!stateFile.isFile() || !file.isFile()) {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            long length;
+            String validator;
+            long[] positions;
+            long[] ends;
+            try {
+                length = in.readLong();
+                int count = in.readInt();
+                positions = new long[count];
+                ends = new long[count];
+                for (int i = 0; i < count; i++) {
+                    positions[i] = in.readLong();
+                    ends[i] = in.readLong();
+                }
+                validator = in.readUTF();
+            } catch (EOFException e) {
+                // truncated state file: start from scratch
+                return null;
+            } finally {
+                in.close();
+            }
+            return file.length()==length ? new DownloadState(stateFile, length, validator.isEmpty() ? null : validator, positions, ends) : null;
+        }
+
+        int count() {
+            return positions.length;
+        }
+
+        long getPosition(int segment) {
+            return positions[segment];
+        }
+
+        long getEnd(int segment) {
+            return ends[segment];
+        }
+
+        long getCompleted() {
+            long completed = 0;
+            for (int i = 0; i < positions.length; i++) {
+                completed += positions[i] - (i==0 ? 0 : ends[i - 1] + 1);
+            }
+            return completed;
+        }
+
+        void setPosition(int segment, long position) throws IOException {
+            positions[segment] = position;
+            if (!discarded) {
+                write((ByteBuffer) ByteBuffer.allocate(8).putLong(position).flip(), HEADER_SIZE + segment * SEGMENT_SIZE);
+            }
+        }
+
+        /** The next download() starts from scratch */
+        void discard() throws IOException {
+            discarded = true;
+            channel.truncate(0);
+        }
+
+        private void write(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        void close() throws IOException {
+            randomAccessFile.close();
+            if (discarded && !stateFile.delete()) {
+                throw new IOException("Could not delete " + stateFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.commons.lang3.CharEncoding;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.params.HttpProtocolParams;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Builder for any http method like PUT, PATCH, DELETE, HEAD or OPTIONS, optionally with a request body.
+ * It shares the execution pipeline of FluentHttpMethodBuilder with GET and POST.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public class FluentHttpGenericMethodBuilder extends FluentHttpMethodBuilder {
+
+    public static final int DEFAULT_EXPECT_CONTINUE_WAIT_MILLIS = 3000;
+
+    protected final String method;
+    protected String requestBodyString;
+    protected String requestContentType;
+    /** A streamed request body like a file, set by one of the other withRequestBody() methods */
+    protected HttpEntity requestBodyEntity;
+    /** null means no Expect: 100-continue handshake */
+    protected Integer expectContinueWaitMillis;
+
+    FluentHttpGenericMethodBuilder(FluentHttpClient httpClient, Logger logger, String url, String method) {
+        super(httpClient, logger, url);
+        this.method = method.toUpperCase(Locale.ENGLISH);
+    }
+
+    public FluentHttpGenericMethodBuilder withRequestBody(String requestBodyString) {
+        return withRequestBody(requestBodyString, null);
+    }
+
+    /** @param contentType e.g. "application/json", the charset is always UTF-8 */
+    public FluentHttpGenericMethodBuilder withRequestBody(String requestBodyString, String contentType) {
+        this.requestBodyString = requestBodyString;
+        this.requestContentType = contentType;
+        this.requestBodyEntity = null;
+        return this;
+    }
+
+    /** The file is streamed while sending, so its size doesn't matter. */
+    public FluentHttpGenericMethodBuilder withRequestBody(File file) {
+        return withRequestBody(file, null);
+    }
+
+    public FluentHttpGenericMethodBuilder withRequestBody(File file, String contentType) {
+        return withRequestBodyEntity(new FileEntity(file, contentType(contentType)));
+    }
+
+    /**
+     * The stream is read while sending and must be closed by the caller afterwards.
+     * Such a request can't be retried.
+     *
+     * @param length -1 if unknown, then chunked transfer encoding is used
+     */
+    public FluentHttpGenericMethodBuilder withRequestBody(InputStream inputStream, long length) {
+        return withRequestBody(inputStream, length, null);
+    }
+
+    public FluentHttpGenericMethodBuilder withRequestBody(InputStream inputStream, long length, String contentType) {
+        return withRequestBodyEntity(new InputStreamEntity(inputStream, length, contentType(contentType)));
+    }
+
+    /** Sends the remaining bytes of the buffer without changing its position. */
+    public FluentHttpGenericMethodBuilder withRequestBody(ByteBuffer byteBuffer) {
+        return withRequestBody(byteBuffer, null);
+    }
+
+    public FluentHttpGenericMethodBuilder withRequestBody(ByteBuffer byteBuffer, String contentType) {
+        return withRequestBodyEntity(new ByteBufferEntity(byteBuffer, contentType(contentType)));
+    }
+
+    /** The value is encoded while sending, straight into the connection. */
+    public <T> FluentHttpGenericMethodBuilder withEncodedBody(T value, BodyCodec<T> codec) {
+        return withRequestBodyEntity(new BodyCodecEntity<T>(value, codec));
+    }
+
+    /** Sends the value as JSON, see JsonBodyCodec. A null value is sent as JSON null. */
+    @SuppressWarnings("unchecked")
+    public FluentHttpGenericMethodBuilder withJsonBody(Object value) {
+        Class<Object> type = value==null ? Object.class : (Class<Object>) value.getClass();
+        return withEncodedBody(value, new JsonBodyCodec<Object>(type));
+    }
+
+    /**
+     * Sends the request headers with "Expect: 100-continue" and the body only after the server agreed,
+     * so a rejected upload (401, 413, redirect..) costs one round trip instead of the whole payload.
+     * Waits up to 3 seconds for servers not supporting the handshake, then sends the body anyway.
+     */
+    public FluentHttpGenericMethodBuilder withExpectContinue() {
+        return withExpectContinue(DEFAULT_EXPECT_CONTINUE_WAIT_MILLIS);
+    }
+
+    public FluentHttpGenericMethodBuilder withExpectContinue(int waitMillis) {
+        this.expectContinueWaitMillis = waitMillis;
+        return this;
+    }
+
+    protected FluentHttpGenericMethodBuilder withRequestBodyEntity(HttpEntity requestBodyEntity) {
+        this.requestBodyEntity = requestBodyEntity;
+        this.requestBodyString = null;
+        this.requestContentType = null;
+        return this;
+    }
+
+    private static ContentType contentType(String contentType) {
+        return contentType==null ? ContentType.APPLICATION_OCTET_STREAM : ContentType.parse(contentType);
+    }
+
+    @Override
+    protected FluentHttpMethodBuilder newInstance(String url) {
+        return new FluentHttpGenericMethodBuilder(fluentHttpClient, logger, url, method);
+    }
+
+    /** A request body can only be shared if it can be sent more than once, unlike an InputStream */
+    @Override
+    void shareSettings() {
+        if (requestBodyEntity!=null && !requestBodyEntity.isRepeatable()) {
+            throw new IllegalArgumentException("A template can't share a streamed request body");
+        }
+        super.shareSettings();
+    }
+
+    /** The request body and its content type are immutable, so they're shared as they are */
+    @Override
+    protected void shareSettingsOf(FluentHttpMethodBuilder prototype) {
+        super.shareSettingsOf(prototype);
+        if (prototype instanceof FluentHttpGenericMethodBuilder) {
+            FluentHttpGenericMethodBuilder generic = (FluentHttpGenericMethodBuilder) prototype;
+            this.requestBodyString = generic.requestBodyString;
+            this.requestContentType = generic.requestContentType;
+            this.requestBodyEntity = generic.requestBodyEntity;
+            this.expectContinueWaitMillis = generic.expectContinueWaitMillis;
+        }
+    }
+
+    @Override
+    protected String getMethodName() {
+        return method.toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    protected HttpRequestBase newHttpMethod() throws IOException {
+        HttpEntity requestEntity = framed(newRequestEntity());
+        if (requestEntity==null) {
+            return new GenericHttpRequest(method, getRequestUri());
+        }
+        if ("HEAD".equals(method) || "TRACE".equals(method)) {
+            throw new IllegalStateException(method + " requests must not have a request body: " + url);
+        }
+        GenericHttpEntityRequest request = new GenericHttpEntityRequest(method, getRequestUri());
+        request.setEntity(requestEntity);
+        applyExpectContinue(request);
+        return request;
+    }
+
+    protected void applyExpectContinue(HttpEntityEnclosingRequestBase request) {
+        if (expectContinueWaitMillis!=null && request.getEntity()!=null) {
+            HttpProtocolParams.setUseExpectContinue(request.getParams(), true);
+            request.getParams().setIntParameter(CoreProtocolPNames.WAIT_FOR_CONTINUE, expectContinueWaitMillis);
+        }
+    }
+
+    /**
+     * @return the entity, buffered if it would be chunked but the client's protocol version doesn't support chunking.
+     *         It is buffered by writeTo() like sending would do, getContent() may need a thread for a streamed entity.
+     */
+    protected HttpEntity framed(HttpEntity requestEntity) throws IOException {
+        if (requestEntity!=null && !fluentHttpClient.isChunkingSupported()
+                && (requestEntity.isChunked() || requestEntity.getContentLength()<0)) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            requestEntity.writeTo(outputStream);
+            ByteArrayEntity bufferedEntity = new ByteArrayEntity(outputStream.toByteArray());
+            bufferedEntity.setContentType(requestEntity.getContentType());
+            bufferedEntity.setContentEncoding(requestEntity.getContentEncoding());
+            return bufferedEntity;
+        }
+        return requestEntity;
+    }
+
+    /** @return the request body or null if the request has no body */
+    protected HttpEntity newRequestEntity() throws IOException {
+        if (requestBodyEntity!=null) {
+            return requestBodyEntity;
+        }
+        if (requestBodyString!=null) {
+            if (requestContentType!=null) {
+                return new StringEntity(requestBodyString, ContentType.create(requestContentType, CharEncoding.UTF_8));
+            }
+            return new StringEntity(requestBodyString, CharEncoding.UTF_8);
+        }
+        return null;
+    }
+
+    static final class GenericHttpRequest extends HttpRequestBase {
+
+        private final String method;
+
+        GenericHttpRequest(String method, URI uri) {
+            this.method = method;
+            setURI(uri);
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+    }
+
+    static final class GenericHttpEntityRequest extends HttpEntityEnclosingRequestBase {
+
+        private final String method;
+
+        GenericHttpEntityRequest(String method, URI uri) {
+            this.method = method;
+            setURI(uri);
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+    }
+}
@@ -1,13 +1,11 @@
 package de.mhellmann.net.fluenthttp;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.protocol.HttpContext;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.slf4j.Logger;
 
-import java.io.IOException;
-import java.net.UnknownHostException;
+import java.io.File;
+import java.util.Map;
 
 /**
  * Created with IntelliJ IDEA.
@@ -18,66 +16,91 @@ import java.net.UnknownHostException;
  */
 public class FluentHttpGetMethodBuilder extends FluentHttpMethodBuilder {
 
+    private static final int ESTIMATED_PARAMS_LENGTH = 64;
+
+    /** The url and the query parameters added so far, becomes the url once before sending */
+    private StringBuilder urlWithQuery;
+    /** e.g. "#top", kept behind the query parameters */
+    private String fragment;
+
     FluentHttpGetMethodBuilder(FluentHttpClient httpClient, Logger logger, String url) {
         super(httpClient, logger, url);
     }
 
-    /** Applying the execute-around-pattern to avoid duplicated code */
-    protected Object executeAroundHttpMethod(ResponseHandler responseHandler) throws IOException {
-        if (login==null) {
-            logger.debug("FluentHttpClient.get({}, {}, {})", url, proxyInfo, ignoreCookies);
-        } else {
-            logger.debug("FluentHttpClient.get({}, {}, {}, {}, {})", url, proxyInfo, ignoreCookies, login, password);
-        }
-        DefaultHttpClient httpClient = null;
-        try {
-            httpClient = fluentHttpClient.newHttpClient(proxyInfo, ignoreCookies);
-            HttpGet get = new HttpGet(url);
-            HttpContext httpContext = handleAuthenticationCookiesAndHeaders(httpClient, get);
-
-            HttpResponse response;
-            if (httpContext==null) {
-                response = httpClient.execute(get);
-            } else {
-                response = httpClient.execute(get, httpContext);
-                if (ignoreCookies==null || !ignoreCookies) {
-                    fluentHttpClient.logCookies(httpContext);
-                }
+    /**
+     * Appends name=value to the query, both percent-encoded as UTF-8, e.g. withQueryParam("q", "a&b c")
+     * becomes "?q=a%26b%20c". A null value adds the name only. Several parameters with the same name are kept.
+     */
+    public FluentHttpGetMethodBuilder withQueryParam(String name, Object value) {
+        if (urlWithQuery==null) {
+            int fragmentStart = url.indexOf('#');
+            String withoutFragment = fragmentStart<0 ? url : url.substring(0, fragmentStart);
+            fragment = fragmentStart<0 ? null : url.substring(fragmentStart);
+            urlWithQuery = new StringBuilder(url.length() + ESTIMATED_PARAMS_LENGTH).append(withoutFragment);
+            if (withoutFragment.indexOf('?')<0) {
+                urlWithQuery.append('?');
             }
-            fluentHttpClient.logRequestHeaders(get);
-            fluentHttpClient.logResponseHeaders(response);
-
-            return responseHandler.computeResult(httpClient, response);
-        } catch (java.net.SocketTimeoutException e) {
-            return handleException(e, null);
-        } catch (UnknownHostException e) {
-            return handleException(e, "Unknown host or Offline.");
-        } catch (IOException e) {
-            return handleException(e, null);
-        } finally {
-            closeConnection(httpClient, responseHandler);
         }
+        char last = urlWithQuery.charAt(urlWithQuery.length() - 1);
+        if (last!='?' && last!='&') {
+            urlWithQuery.append('&');
+        }
+        PercentEncoder.appendQueryValue(urlWithQuery, name);
+        if (value!=null) {
+            urlWithQuery.append('=');
+            PercentEncoder.appendQueryValue(urlWithQuery, value instanceof CharSequence ? (CharSequence) value : String.valueOf(value));
+        }
+        return this;
     }
 
-    protected Object handleException(IOException e, String msg) throws IOException {
-        if (fluentHttpClient.rethrowExceptions) {
-            throw e;
-        } else {
-            logger.error("FluentHttpClient.get({}): {}", url, (msg==null ? "" : msg), e);
+    /** Appends all parameters in the iteration order of the map, see withQueryParam() */
+    public FluentHttpGetMethodBuilder withQueryParams(Map<String, ?> params) {
+        for (Map.Entry<String, ?> param : params.entrySet()) {
+            withQueryParam(param.getKey(), param.getValue());
         }
-        return null;
+        return this;
+    }
+
+    /** Also digests downloads, see asFile() */
+    @Override
+    public FluentHttpGetMethodBuilder withDigest(String... algorithms) {
+        super.withDigest(algorithms);
+        return this;
     }
 
-    private void closeConnection(DefaultHttpClient httpClient, ResponseHandler responseHandler) {
-        try {
-            // When HttpClient instance is no longer needed,
-            // shut down the connection manager to ensure
-            // immediate deallocation of all system resources
-            if (httpClient!=null && !responseHandler.isHandlingConnectionShutdown()) {
-                httpClient.getConnectionManager().shutdown();
+    /**
+     * Downloads the body into a file, optionally with concurrent range requests, see FluentHttpFileDownload.
+     * Nothing is sent before download() is called.
+     */
+    public FluentHttpFileDownload asFile(File file) {
+        completeUrl();
+        return new FluentHttpFileDownload(fluentHttpClient, logger, this, file);
+    }
+
+    @Override
+    protected HttpRequestBase newHttpMethod() {
+        return new HttpGet(getRequestUri());
+    }
+
+    @Override
+    protected void completeUrl() {
+        if (urlWithQuery!=null) {
+            if (fragment!=null) {
+                urlWithQuery.append(fragment);
             }
-        } catch (Exception e) {
-            logger.error("HttpClient4.get({}): Error in newHttpClient.getConnectionManager().shutdown()", url, e);
+            setUrl(urlWithQuery.toString());
+            urlWithQuery = null;
+            fragment = null;
         }
     }
+
+    @Override
+    protected FluentHttpMethodBuilder newInstance(String url) {
+        return new FluentHttpGetMethodBuilder(fluentHttpClient, logger, url);
+    }
+
+    @Override
+    protected String getMethodName() {
+        return "get";
+    }
 }
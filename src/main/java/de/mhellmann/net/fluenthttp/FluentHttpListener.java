@@ -0,0 +1,46 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Callback interface for the lifecycle of each request executed by a {@link FluentHttpClient}.
+ * Register it with {@link FluentHttpClient#withListener(FluentHttpListener)} to plug in
+ * tracing, metrics or custom authentication headers.
+ *
+ * The callbacks are invoked on the requesting thread, so implementations should be fast
+ * and must be thread safe if the client is shared. Extend {@link FluentHttpListenerAdapter}
+ * if you are only interested in some of the callbacks.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public interface FluentHttpListener {
+
+    /** Called before the request is executed. Headers added to the request here will be sent. */
+    void requestStarted(HttpRequest request, HttpContext httpContext);
+
+    /** Called when a connection to the target (or proxy) has been established for the request. */
+    void connectionAcquired(HttpRequest request, HttpClientConnection connection, HttpContext httpContext);
+
+    /** Called after the request line, headers and (if any) the request body have been sent. */
+    void requestHeadersSent(HttpRequest request, HttpContext httpContext);
+
+    /** Called after the status line and the response headers have been received. */
+    void responseHeadersReceived(HttpRequest request, HttpResponse response, HttpContext httpContext);
+
+    /** Called after the response has been processed, i.e. the body was read or the stream was closed. */
+    void responseBodyCompleted(HttpRequest request, HttpResponse response, HttpContext httpContext);
+
+    /** Called if the request failed, including responses with status codes that are not allowed. */
+    void requestFailed(HttpRequest request, IOException e, HttpContext httpContext);
+
+    /** Called if the retry handler decided to execute the request once more. */
+    void requestRetried(HttpRequest request, IOException e, int executionCount, HttpContext httpContext);
+
+}
@@ -0,0 +1,46 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Empty implementation of {@link FluentHttpListener}, override only the callbacks you need.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public abstract class FluentHttpListenerAdapter implements FluentHttpListener {
+
+    @Override
+    public void requestStarted(HttpRequest request, HttpContext httpContext) {
+    }
+
+    @Override
+    public void connectionAcquired(HttpRequest request, HttpClientConnection connection, HttpContext httpContext) {
+    }
+
+    @Override
+    public void requestHeadersSent(HttpRequest request, HttpContext httpContext) {
+    }
+
+    @Override
+    public void responseHeadersReceived(HttpRequest request, HttpResponse response, HttpContext httpContext) {
+    }
+
+    @Override
+    public void responseBodyCompleted(HttpRequest request, HttpResponse response, HttpContext httpContext) {
+    }
+
+    @Override
+    public void requestFailed(HttpRequest request, IOException e, HttpContext httpContext) {
+    }
+
+    @Override
+    public void requestRetried(HttpRequest request, IOException e, int executionCount, HttpContext httpContext) {
+    }
+}
@@ -0,0 +1,291 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side load balancing of a service, see FluentHttpClient.withEndpoints(): a url like "svc://users/4711"
+ * is sent to one of the endpoints of the service "svc", e.g. http://10.0.0.1:8080/api/users/4711.
+ *
+ * An endpoint failing maxFailures times in a row (connection errors, timeouts or 5xx) is ejected for
+ * ejectionMillis. Afterwards a single request is let through as probe: if it succeeds the endpoint is back,
+ * otherwise it is ejected again. If all endpoints are ejected, the one whose ejection ends first is used anyway.
+ *
+ * Latency is the time until the response headers arrive, smoothed by an exponentially weighted moving average.
+ * The endpoint is chosen each time a request is executed, so a builder or template executed repeatedly,
+ * e.g. client.get("svc://path").asString(), is spread over the endpoints like separate requests.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class FluentHttpLoadBalancer {
+
+    public enum Strategy {
+        ROUND_ROBIN,
+        LEAST_IN_FLIGHT,
+        /** Picks two endpoints at random and takes the one with the lower EWMA latency * (requests in flight + 1) */
+        POWER_OF_TWO_CHOICES
+    }
+
+    public static final int DEFAULT_MAX_FAILURES = 3;
+    public static final long DEFAULT_EJECTION_MILLIS = 30000;
+    private static final double EWMA_WEIGHT = 0.3;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final String service;
+    private final Strategy strategy;
+    private final Endpoint[] endpoints;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final Random random = new Random();
+    private volatile int maxFailures = DEFAULT_MAX_FAILURES;
+    private volatile long ejectionNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EJECTION_MILLIS);
+
+    FluentHttpLoadBalancer(String service, List<URI> uris, Strategy strategy) {
+        if (uris==null || uris.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints for service " + service);
+        }
+        this.service = service;
+        this.strategy = strategy;
+        this.endpoints = new Endpoint[uris.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new Endpoint(uris.get(i));
+        }
+    }
+
+    /**
+     * @param maxFailures consecutive failures after which an endpoint gets no requests for ejectionMillis
+     */
+    public FluentHttpLoadBalancer withEjection(int maxFailures, long ejectionMillis) {
+        this.maxFailures = maxFailures;
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+        return this;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(Arrays.asList(endpoints));
+    }
+
+    Endpoint select() {
+        long now = System.nanoTime();
+        Endpoint probe = probeCandidate(now);
+        if (probe!=null) {
+            return probe;
+        }
+        Endpoint selected;
+        switch (strategy) {
+            case ROUND_ROBIN:
+                selected = roundRobin();
+                break;
+            case LEAST_IN_FLIGHT:
+                selected = leastInFlight();
+                break;
+            default:
+                selected = powerOfTwoChoices();
+        }
+        return selected==null ? soonestBack() : selected;
+    }
+
+    //#############################################################
+    //### internal impls ..
+    //#############################################################
+
+    /**
+     * An ejected endpoint whose time is up gets exactly one request. If that one is never sent,
+     * another one is let through after the next ejection period.
+     */
+    private Endpoint probeCandidate(long now) {
+        for (Endpoint endpoint : endpoints) {
+            long ejectedUntil = endpoint.ejectedUntilNanos;
+            long probeStarted = endpoint.probeStartedNanos.get();
+            if (ejectedUntil!=0 && now - ejectedUntil>=0
+                    && (probeStarted==0 || now - probeStarted>ejectionNanos)
+                    && endpoint.probeStartedNanos.compareAndSet(probeStarted, now==0 ? 1 : now)) {
+                logger.debug("FluentHttpLoadBalancer {}: probing {}", service, endpoint.base);
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    private Endpoint roundRobin() {
+        int start = nextIndex.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < endpoints.length; i++) {
+            Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+            if (endpoint.isHealthy()) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    private Endpoint leastInFlight() {
+        // starting at a random endpoint spreads the ties
+        int start = random.nextInt(endpoints.length);
+        Endpoint best = null;
+        for (int i = 0; i < endpoints.length; i++) {
+            Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+            if (endpoint.isHealthy() && (best==null || endpoint.inFlight.get()<best.inFlight.get())) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+
+    private Endpoint powerOfTwoChoices() {
+        if (endpoints.length==1) {
+            return endpoints[0].isHealthy() ? endpoints[0] : null;
+        }
+        int first = random.nextInt(endpoints.length);
+        int second = random.nextInt(endpoints.length - 1);
+        if (second>=first) {
+            second++;
+        }
+        Endpoint a = endpoints[first];
+        Endpoint b = endpoints[second];
+        if (a.isHealthy() && b.isHealthy()) {
+            return a.cost()<=b.cost() ? a : b;
+        }
+        if (a.isHealthy()) {
+            return a;
+        }
+        if (b.isHealthy()) {
+            return b;
+        }
+        return leastInFlight();
+    }
+
+    private Endpoint soonestBack() {
+        Endpoint soonest = endpoints[0];
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.ejectedUntilNanos - soonest.ejectedUntilNanos<0) {
+                soonest = endpoint;
+            }
+        }
+        return soonest;
+    }
+
+    @Override
+    public String toString() {
+        return "FluentHttpLoadBalancer[" + service + ", " + strategy + ", " + Arrays.toString(endpoints) + "]";
+    }
+
+    /** A backend instance with its load and health */
+    public final class Endpoint {
+
+        private final String base;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        /** Double.doubleToLongBits() of the EWMA latency in nanoseconds, 0 until the first response */
+        private final AtomicLong ewmaNanosBits = new AtomicLong();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        /** System.nanoTime() when the probe request was let through, 0 if none */
+        private final AtomicLong probeStartedNanos = new AtomicLong();
+        /** System.nanoTime() when the ejection ends, 0 if healthy */
+        private volatile long ejectedUntilNanos = 0;
+
+        private Endpoint(URI uri) {
+            String base = uri.toString();
+            this.base = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+        }
+
+        public URI getUri() {
+            return URI.create(base);
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public double getEwmaLatencyMillis() {
+            return Double.longBitsToDouble(ewmaNanosBits.get()) / 1e6;
+        }
+
+        public long getRequestCount() {
+            return requests.get();
+        }
+
+        public long getFailureCount() {
+            return failures.get();
+        }
+
+        public boolean isEjected() {
+            return ejectedUntilNanos!=0;
+        }
+
+        /** "svc://users/4711" becomes base + "/users/4711" */
+        String resolve(String url) {
+            String path = url.substring(url.indexOf("://") + 3);
+            if (path.length()==0) {
+                return base;
+            }
+            return path.charAt(0)=='/' || path.charAt(0)=='?' ? base + path : base + '/' + path;
+        }
+
+        void requestStarted() {
+            inFlight.incrementAndGet();
+            requests.incrementAndGet();
+        }
+
+        void requestCompleted(long latencyNanos, boolean failed) {
+            inFlight.decrementAndGet();
+            long bits;
+            double ewma;
+            do {
+                bits = ewmaNanosBits.get();
+                double previous = Double.longBitsToDouble(bits);
+                ewma = previous==0 ? latencyNanos : previous + EWMA_WEIGHT * (latencyNanos - previous);
+            } while (!ewmaNanosBits.compareAndSet(bits, Double.doubleToLongBits(ewma)));
+
+            if (failed) {
+                failures.incrementAndGet();
+                int failuresInARow = consecutiveFailures.incrementAndGet();
+                if (failuresInARow>=maxFailures) {
+                    long until = System.nanoTime() + ejectionNanos;
+                    ejectedUntilNanos = until==0 ? 1 : until;
+                    logger.error("FluentHttpLoadBalancer {}: ejecting {} for {} ms after {} failures in a row",
+                            service, base, TimeUnit.NANOSECONDS.toMillis(ejectionNanos), failuresInARow);
+                }
+            } else {
+                consecutiveFailures.set(0);
+                if (ejectedUntilNanos!=0) {
+                    ejectedUntilNanos = 0;
+                    logger.debug("FluentHttpLoadBalancer {}: {} is back", service, base);
+                }
+            }
+            probeStartedNanos.set(0);
+        }
+
+        private boolean isHealthy() {
+            return ejectedUntilNanos==0;
+        }
+
+        private double cost() {
+            return Double.longBitsToDouble(ewmaNanosBits.get()) * (inFlight.get() + 1);
+        }
+
+        @Override
+        public String toString() {
+            return base + "[inFlight=" + inFlight.get() + ", ewmaMillis=" + getEwmaLatencyMillis()
+                    + ", failures=" + failures.get() + ", ejected=" + isEjected() + "]";
+        }
+    }
+}
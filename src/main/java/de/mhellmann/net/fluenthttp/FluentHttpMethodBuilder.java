@@ -1,28 +1,31 @@
 package de.mhellmann.net.fluenthttp;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.http.*;
 import org.apache.http.auth.*;
-import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.client.utils.URIUtils;
 import org.apache.http.conn.EofSensorInputStream;
 import org.apache.http.conn.EofSensorWatcher;
-import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.CRC32;
 
 
@@ -36,10 +39,13 @@ import java.util.zip.CRC32;
 public abstract class FluentHttpMethodBuilder {
 
     private static final int HTTP_200 = 200;
+    public static final long DEFAULT_DRAIN_LIMIT = 8 * 1024;
+    public static final int DEFAULT_PUBLISHER_CHUNK_SIZE = 8 * 1024;
+    private static final String BEARER = "Bearer ";
 
     protected final FluentHttpClient fluentHttpClient;
     protected final Logger logger;
-    protected final String url;
+    protected String url;
     protected ProxyInfo proxyInfo;
     protected Integer statusCode;
     protected Boolean ignoreCookies;
@@ -47,8 +53,22 @@ public abstract class FluentHttpMethodBuilder {
     protected String password;
     protected Map<String, String> headers;
     protected Set<Integer> allowedStatusCodes;
+    protected long drainLimit = DEFAULT_DRAIN_LIMIT;
+    protected String[] digestAlgorithms;
+    protected Map<String, String> digests;
 
     protected byte[] bytes;
+    /**
+     * The backend chosen for the current execution of a "service://path" url, see FluentHttpClient.withEndpoints().
+     * The url itself stays unresolved, so every execution selects again.
+     */
+    protected FluentHttpLoadBalancer.Endpoint endpoint;
+    /** headers and allowedStatusCodes belong to a FluentHttpRequestTemplate and are copied before changing them */
+    private boolean headersShared = false;
+    private boolean allowedStatusCodesShared = false;
+    /** url parsed once for the request, proxy lookup and authentication, see getRequestUri() */
+    private URI requestUri;
+    private HttpHost route;
     
     FluentHttpMethodBuilder(FluentHttpClient fluentHttpClient, Logger logger, String url) {
         this.fluentHttpClient = fluentHttpClient;
@@ -56,24 +76,307 @@ public abstract class FluentHttpMethodBuilder {
         this.url = url;
     }
 
+    /**
+     * Takes over headers, authentication, proxy and cookie settings, e.g. for the range requests of a download.
+     * The digest algorithms are not taken over, a download digests the whole file instead of each range.
+     */
+    protected void copySettingsFrom(FluentHttpMethodBuilder other) {
+        this.proxyInfo = other.proxyInfo;
+        this.ignoreCookies = other.ignoreCookies;
+        this.login = other.login;
+        this.password = other.password;
+        this.headers = other.headers==null ? null : new LinkedHashMap<String, String>(other.headers);
+        this.allowedStatusCodes = other.allowedStatusCodes==null ? null : new HashSet<Integer>(other.allowedStatusCodes);
+        this.drainLimit = other.drainLimit;
+    }
+
+    /**
+     * Shares headers, authentication, proxy and the other settings of the template's prototype instead of copying them.
+     */
+    protected void shareSettingsOf(FluentHttpMethodBuilder prototype) {
+        this.proxyInfo = prototype.proxyInfo;
+        this.ignoreCookies = prototype.ignoreCookies;
+        this.login = prototype.login;
+        this.password = prototype.password;
+        this.headers = prototype.headers;
+        this.allowedStatusCodes = prototype.allowedStatusCodes;
+        this.drainLimit = prototype.drainLimit;
+        this.digestAlgorithms = prototype.digestAlgorithms;
+        this.headersShared = true;
+        this.allowedStatusCodesShared = true;
+    }
+
+    /**
+     * Marks headers and allowedStatusCodes as shared, see FluentHttpRequestTemplate
+     *
+     * @throws IllegalArgumentException if a setting can't be shared by the expanded builders
+     */
+    void shareSettings() {
+        this.headersShared = true;
+        this.allowedStatusCodesShared = true;
+    }
+
+    /**
+     * @return an empty builder of the same kind for the url, for FluentHttpClient.template()
+     */
+    protected abstract FluentHttpMethodBuilder newInstance(String url);
+
     public FluentHttpMethodBuilder withHeader(Map<String, String> headers) {
         this.headers = headers;
+        this.headersShared = false;
         return this;
     }
 
     public FluentHttpMethodBuilder withHeader(String headerName, String headerValue) {
         if (headers==null) {
             headers = new LinkedHashMap<String, String>();
+        } else if (headersShared) {
+            headers = new LinkedHashMap<String, String>(headers);
+            headersShared = false;
         }
         headers.put(headerName, headerValue);
         return this;
     }
 
+    /** Replaces the url, e.g. after adding query parameters, and drops the parsed URI and route */
+    protected void setUrl(String url) {
+        this.url = url;
+        this.requestUri = null;
+        this.route = null;
+    }
+
+    /** Called before the url is used for a request, e.g. to append pending query parameters */
+    protected void completeUrl() {
+    }
+
+    /** The url including what has been added since, e.g. query parameters, for FluentHttpRequestTemplate */
+    String getUnresolvedUrl() {
+        completeUrl();
+        return url;
+    }
+
+    /**
+     * Selects the endpoint of a service url for the next execution. Only then, so builders which are never executed,
+     * e.g. template prototypes, don't take an endpoint's probe, and executing again doesn't stick to an ejected one.
+     */
+    private void selectEndpoint() {
+        FluentHttpLoadBalancer loadBalancer = fluentHttpClient.getLoadBalancerFor(url);
+        FluentHttpLoadBalancer.Endpoint selected = loadBalancer==null ? null : loadBalancer.select();
+        if (selected!=endpoint) {
+            endpoint = selected;
+            requestUri = null;
+            route = null;
+        }
+    }
+
+    /** @return the url, resolved against the selected endpoint, parsed into a URI only once per endpoint */
+    protected URI getRequestUri() {
+        if (requestUri==null) {
+            requestUri = URI.create(endpoint==null ? url : endpoint.resolve(url));
+        }
+        return requestUri;
+    }
+
+    /** @return scheme, host and port of the url, the key of the connection pool and the RouteAuthCache */
+    protected HttpHost getRoute() {
+        if (route==null) {
+            route = URIUtils.extractHost(getRequestUri());
+        }
+        return route;
+    }
+
     //###################################################################
     //### Load & get result
     //#######################
     
-    protected abstract Object executeAroundHttpMethod(ResponseHandler responseHandler) throws IOException;
+    /** @return the http method to execute, including its request entity if any */
+    protected abstract HttpRequestBase newHttpMethod() throws IOException;
+
+    /** @return the method name used for logging, e.g. "get" */
+    protected abstract String getMethodName();
+
+    /**
+     * Applying the execute-around-pattern, so all http methods share the same pipeline
+     * and only differ in newHttpMethod().
+     */
+    protected Object executeAroundHttpMethod(ResponseHandler responseHandler) throws IOException {
+        completeUrl();
+        selectEndpoint();
+        if (logger.isDebugEnabled()) {
+            if (login==null) {
+                logger.debug("FluentHttpClient.{}({}, {}, {})", getMethodName(), url, proxyInfo, ignoreCookies);
+            } else {
+                logger.debug("FluentHttpClient.{}({}, {}, {}, {}, {})", getMethodName(), url, proxyInfo, ignoreCookies, login, password);
+            }
+        }
+        long startedNanos = System.nanoTime();
+        DefaultHttpClient httpClient = null;
+        HttpRequestBase httpMethod = null;
+        HttpContext httpContext = null;
+        HttpResponse response = null;
+        boolean connectionHandedOver = false;
+        /** null until logWire() has decided whether to log the exchange */
+        Boolean wireLogged = null;
+        boolean endpointStarted = false;
+        boolean endpointCompleted = false;
+        try {
+            httpClient = fluentHttpClient.newHttpClient(proxyInfo, ignoreCookies);
+            httpMethod = newHttpMethod();
+            httpContext = handleAuthenticationCookiesAndHeaders(httpClient, httpMethod);
+            if (fluentHttpClient.hasListeners()) {
+                if (httpContext==null) {
+                    httpContext = new BasicHttpContext();
+                }
+                fluentHttpClient.fireRequestStarted(httpMethod, httpContext);
+            }
+
+            String bearerToken = applyBearerToken(httpMethod);
+            if (endpoint!=null) {
+                endpoint.requestStarted();
+                endpointStarted = true;
+            }
+            response = execute(httpClient, httpMethod, httpContext);
+            if (bearerToken!=null && response.getStatusLine().getStatusCode()==HttpStatus.SC_UNAUTHORIZED && isRepeatable(httpMethod)) {
+                // revoked or expired early: retry once with a new token
+                logger.debug("FluentHttpClient.{}({}): 401 with bearer token, retrying with a new one", getMethodName(), url);
+                EntityUtils.consume(response.getEntity());
+                FluentHttpTokenProvider tokenProvider = fluentHttpClient.getTokenProvider();
+                tokenProvider.invalidate(bearerToken);
+                httpMethod.setHeader(AUTH.WWW_AUTH_RESP, BEARER + tokenProvider.getAccessToken());
+                response = execute(httpClient, httpMethod, httpContext);
+            }
+            if (endpoint!=null) {
+                endpointCompleted = true;
+                endpoint.requestCompleted(System.nanoTime() - startedNanos,
+                        response.getStatusLine().getStatusCode()>=HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            }
+            boolean failed = response==null || !isAllowedStatusCode(response.getStatusLine().getStatusCode());
+            wireLogged = fluentHttpClient.logWire(httpMethod, response, ignoreCookies==null || !ignoreCookies ? httpContext : null, startedNanos, failed);
+            if (digestAlgorithms!=null && response!=null && response.getEntity()!=null) {
+                digests = new LinkedHashMap<String, String>();
+                response.setEntity(new DigestingInputStream.DigestingEntity(response.getEntity(), url, digestAlgorithms,
+                        DigestingInputStream.expectedDigests(response), digests));
+            }
+
+            Object result = computeResult(responseHandler, httpClient, httpMethod, response, httpContext);
+            // from now on the returned stream is responsible for the connection
+            connectionHandedOver = responseHandler.isHandlingConnectionShutdown();
+            return result;
+        } catch (UnknownHostException e) {
+            requestFailed(httpMethod, e, httpContext, startedNanos, wireLogged);
+            return handleException(e, "Unknown host or Offline.");
+        } catch (IOException e) {
+            requestFailed(httpMethod, e, httpContext, startedNanos, wireLogged);
+            return handleException(e, null);
+        } finally {
+            if (endpointStarted && !endpointCompleted) {
+                // no response at all, e.g. connection refused or timed out
+                endpoint.requestCompleted(System.nanoTime() - startedNanos, true);
+            }
+            if (!connectionHandedOver) {
+                closeConnection(httpClient, httpMethod, response);
+            }
+        }
+    }
+
+    private static HttpResponse execute(DefaultHttpClient httpClient, HttpRequestBase httpMethod, HttpContext httpContext) throws IOException {
+        if (httpContext==null) {
+            return httpClient.execute(httpMethod);
+        }
+        return httpClient.execute(httpMethod, httpContext);
+    }
+
+    /**
+     * Sets the token of FluentHttpClient.withBearerTokens(), unless the request authenticates otherwise.
+     *
+     * @return the token sent, or null
+     */
+    protected String applyBearerToken(HttpRequestBase httpMethod) throws IOException {
+        FluentHttpTokenProvider tokenProvider = fluentHttpClient.getTokenProvider();
+        if (tokenProvider==null || login!=null || httpMethod.containsHeader(AUTH.WWW_AUTH_RESP)) {
+            return null;
+        }
+        String bearerToken = tokenProvider.getAccessToken();
+        httpMethod.setHeader(AUTH.WWW_AUTH_RESP, BEARER + bearerToken);
+        return bearerToken;
+    }
+
+    private static boolean isRepeatable(HttpRequestBase httpMethod) {
+        if (httpMethod instanceof HttpEntityEnclosingRequest) {
+            HttpEntity requestEntity = ((HttpEntityEnclosingRequest) httpMethod).getEntity();
+            return requestEntity==null || requestEntity.isRepeatable();
+        }
+        return true;
+    }
+
+    protected Object handleException(IOException e, String msg) throws IOException {
+        if (fluentHttpClient.rethrowExceptions) {
+            throw e;
+        } else {
+            logger.error("FluentHttpClient.{}({}): {}", getMethodName(), url, (msg==null ? "" : msg), e);
+        }
+        return null;
+    }
+
+    private void closeConnection(DefaultHttpClient httpClient, HttpRequestBase httpMethod, HttpResponse response) {
+        try {
+            if (fluentHttpClient.isPooling()) {
+                releaseConnection(httpMethod, response);
+            } else if (httpClient!=null) {
+                // When HttpClient instance is no longer needed,
+                // shut down the connection manager to ensure
+                // immediate deallocation of all system resources
+                httpClient.getConnectionManager().shutdown();
+            }
+        } catch (Exception e) {
+            logger.error("HttpClient4.{}({}): Error in newHttpClient.getConnectionManager().shutdown()", getMethodName(), url, e);
+        }
+    }
+
+    /**
+     * Gives a pooled connection back. A response body which has not been read yet is drained if its Content-Length
+     * is known and not bigger than the drain limit, so the connection can be reused. Otherwise the connection is
+     * discarded, which is cheaper than downloading a big or chunked body nobody is interested in.
+     */
+    protected void releaseConnection(HttpRequestBase httpMethod, HttpResponse response) throws IOException {
+        HttpEntity httpEntity = response==null ? null : response.getEntity();
+        if (httpEntity==null) {
+            // HttpClient already released the connection
+            return;
+        }
+        long contentLength = httpEntity.getContentLength();
+        if (contentLength>=0 && contentLength<=drainLimit) {
+            EntityUtils.consume(httpEntity);
+        } else {
+            // no-op if the body has been read completely and the connection is already back in the pool
+            httpMethod.abort();
+        }
+    }
+
+    protected Object computeResult(ResponseHandler responseHandler, DefaultHttpClient httpClient,
+                                   HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException {
+        Object result = responseHandler.computeResult(httpClient, request, response, httpContext);
+        // streams report the completion by themselves when they get closed
+        if (!responseHandler.isHandlingConnectionShutdown() && fluentHttpClient.hasListeners()) {
+            fluentHttpClient.fireResponseBodyCompleted(request, response, httpContext);
+        }
+        return result;
+    }
+
+    /**
+     * @param wireLogged null if the request failed before logWire(), otherwise whether it has been logged,
+     *                   e.g. before reading the body failed, so the request is neither logged nor sampled twice
+     */
+    protected void requestFailed(HttpRequest request, IOException e, HttpContext httpContext, long startedNanos, Boolean wireLogged) {
+        if (wireLogged==null) {
+            fluentHttpClient.logWire(request, null, httpContext, startedNanos, true);
+        } else if (!wireLogged) {
+            fluentHttpClient.logWireFailure(request, httpContext);
+        }
+        if (fluentHttpClient.hasListeners()) {
+            fluentHttpClient.fireRequestFailed(request, e, httpContext);
+        }
+    }
 
     /**
      * @return the HttpResponse as a byte array
@@ -82,7 +385,7 @@ public abstract class FluentHttpMethodBuilder {
     public byte[] asBytes() throws IOException {
         ResponseHandler getBytes = new ResponseHandler() {
             @Override
-            public byte[] computeResult(DefaultHttpClient httpClient, HttpResponse response) throws IOException {
+            public byte[] computeResult(DefaultHttpClient httpClient, HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException {
                 if (response==null) {
                     logger.debug("{}.asBytes({}) loaded: HttpResponse is null.", getClass().getSimpleName(), url);
                     throw new IOException("HttpResponse is null.");
@@ -93,7 +396,7 @@ public abstract class FluentHttpMethodBuilder {
                     if (isAllowedStatusCode(statusCode)) {
                         HttpEntity httpEntity = response.getEntity();
                         if (httpEntity != null) {
-                            return IOUtils.toByteArray(httpEntity.getContent());
+                            return EntityReader.toByteArray(httpEntity.getContent(), httpEntity.getContentLength(), fluentHttpClient.getBufferPool());
                         }
                     }
 
@@ -111,6 +414,132 @@ public abstract class FluentHttpMethodBuilder {
         return (byte[]) executeAroundHttpMethod(getBytes);
     }
 
+    /**
+     * Like asBytes(), but the body is read into a buffer of the client's ByteBufferPool,
+     * so repeated calls don't allocate new buffers.
+     *
+     * @return the body, which must be released after use
+     */
+    public PooledByteBuffer asBuffer() throws IOException {
+        ResponseHandler getBuffer = new ResponseHandler() {
+            @Override
+            public PooledByteBuffer computeResult(DefaultHttpClient httpClient, HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException {
+                if (response==null) {
+                    logger.debug("{}.asBuffer({}) loaded: HttpResponse is null.", getClass().getSimpleName(), url);
+                    throw new IOException("HttpResponse is null.");
+                } else {
+                    logger.debug("{}.asBuffer({}) loaded: {}", getClass().getSimpleName(), url, response.getStatusLine());
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    if (isAllowedStatusCode(statusCode)) {
+                        HttpEntity httpEntity = response.getEntity();
+                        if (httpEntity != null) {
+                            return EntityReader.toPooledBuffer(httpEntity.getContent(), httpEntity.getContentLength(), fluentHttpClient.getBufferPool());
+                        }
+                    }
+
+                    // we return the status code with the exception for further processing by the calling client
+                    throw new FluentHttpClientStatusCodeException("Status line " + response.getStatusLine() + " was returned for " + url, response.getStatusLine().getStatusCode());
+                }
+            }
+
+            @Override
+            public boolean isHandlingConnectionShutdown() {
+                return false;
+            }
+        };
+
+        return (PooledByteBuffer) executeAroundHttpMethod(getBuffer);
+    }
+
+    /**
+     * Reads the body into direct memory instead of the heap, e.g. for forwarding big payloads.
+     * Uses the client's buffer pool if it is off-heap, otherwise ByteBufferPool.DEFAULT_DIRECT.
+     *
+     * @return the read-only body, which must be released after use
+     */
+    public OffHeapBody asOffHeapBody() throws IOException {
+        ResponseHandler getOffHeapBody = new ResponseHandler() {
+            @Override
+            public OffHeapBody computeResult(DefaultHttpClient httpClient, HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException {
+                if (response==null) {
+                    logger.debug("{}.asOffHeapBody({}) loaded: HttpResponse is null.", getClass().getSimpleName(), url);
+                    throw new IOException("HttpResponse is null.");
+                } else {
+                    logger.debug("{}.asOffHeapBody({}) loaded: {}", getClass().getSimpleName(), url, response.getStatusLine());
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    if (isAllowedStatusCode(statusCode)) {
+                        HttpEntity httpEntity = response.getEntity();
+                        if (httpEntity != null) {
+                            ByteBufferPool pool = fluentHttpClient.getBufferPool();
+                            if (!pool.isDirect()) {
+                                pool = ByteBufferPool.DEFAULT_DIRECT;
+                            }
+                            return EntityReader.toOffHeapBody(httpEntity.getContent(), httpEntity.getContentLength(), pool, logger);
+                        }
+                    }
+
+                    // we return the status code with the exception for further processing by the calling client
+                    throw new FluentHttpClientStatusCodeException("Status line " + response.getStatusLine() + " was returned for " + url, response.getStatusLine().getStatusCode());
+                }
+            }
+
+            @Override
+            public boolean isHandlingConnectionShutdown() {
+                return false;
+            }
+        };
+
+        return (OffHeapBody) executeAroundHttpMethod(getOffHeapBody);
+    }
+
+    /**
+     * Parses the JSON response straight from the connection into an object of the given type.
+     */
+    public <T> T as(Class<T> type) throws IOException {
+        return as(new JsonBodyCodec<T>(type));
+    }
+
+    /**
+     * Decodes the response straight from the connection, the body never exists as byte array or String.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T as(final BodyCodec<T> codec) throws IOException {
+        ResponseHandler decode = new ResponseHandler() {
+            @Override
+            public T computeResult(DefaultHttpClient httpClient, HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException {
+                if (response==null) {
+                    logger.debug("{}.as({}) loaded: HttpResponse is null.", getClass().getSimpleName(), url);
+                    throw new IOException("HttpResponse is null.");
+                } else {
+                    logger.debug("{}.as({}) loaded: {}", getClass().getSimpleName(), url, response.getStatusLine());
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    if (isAllowedStatusCode(statusCode)) {
+                        HttpEntity httpEntity = response.getEntity();
+                        if (httpEntity != null) {
+                            ContentType contentType = ContentType.get(httpEntity);
+                            InputStream inputStream = httpEntity.getContent();
+                            try {
+                                return codec.decode(inputStream, contentType==null ? null : contentType.getCharset());
+                            } finally {
+                                inputStream.close();
+                            }
+                        }
+                    }
+
+                    // we return the status code with the exception for further processing by the calling client
+                    throw new FluentHttpClientStatusCodeException("Status line " + response.getStatusLine() + " was returned for " + url, response.getStatusLine().getStatusCode());
+                }
+            }
+
+            @Override
+            public boolean isHandlingConnectionShutdown() {
+                return false;
+            }
+        };
+
+        return (T) executeAroundHttpMethod(decode);
+    }
+
     protected boolean isAllowedStatusCode(int statusCode) {
         return statusCode == HTTP_200 || (allowedStatusCodes!=null && allowedStatusCodes.contains(statusCode));
     }
@@ -120,7 +549,7 @@ public abstract class FluentHttpMethodBuilder {
 
         if (login!=null && password!=null) {
             //simpleBaseAuthentication(httpClient, url, login, password);
-            httpContext = preemptiveBaseAuthentication(httpClient, login, password);
+            httpContext = preemptiveAuthentication(httpClient, getOrPostMethod, login, password);
         }
 
         boolean getCookies = ignoreCookies==null || !ignoreCookies;
@@ -138,12 +567,13 @@ public abstract class FluentHttpMethodBuilder {
     }
 
     /**
-     * Executes an HttpGet to the specified url and returns the status code without actually loading the content.
+     * Executes the request and returns the status line without actually loading the content.
+     * Use FluentHttpClient.probe() for cheap health checks.
      */
     public StatusLine asStatusLine() throws IOException {
         ResponseHandler getStatusLine = new ResponseHandler() {
             @Override
-            public StatusLine computeResult(DefaultHttpClient httpClient, HttpResponse response) throws IOException {
+            public StatusLine computeResult(DefaultHttpClient httpClient, HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException {
                 if (response==null) {
                     logger.debug("{}.asStatusLine({}) loaded: HttpResponse is null.", getClass().getSimpleName(), url);
                     throw new IOException("HttpResponse is null.");
@@ -173,7 +603,7 @@ public abstract class FluentHttpMethodBuilder {
     public InputStream asStream() throws IOException {
         ResponseHandler getStream = new ResponseHandler() {
             @Override
-            public InputStream computeResult(DefaultHttpClient httpClient, HttpResponse response) throws IOException {
+            public InputStream computeResult(DefaultHttpClient httpClient, HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException {
                 if (response==null) {
                     logger.debug("{}.asStream({}) loaded: HttpResponse is null.", getClass().getSimpleName(), url);
                     throw new IOException("HttpResponse is null.");
@@ -185,7 +615,15 @@ public abstract class FluentHttpMethodBuilder {
                         HttpEntity httpEntity = response.getEntity();
                         if (httpEntity!=null) {
                             InputStream inputStream = httpEntity.getContent();
-                            MyEofSensorWatcher myEofSensorWatcher = new MyEofSensorWatcher(httpClient);
+                            // pooled connections are released by the entity stream itself
+                            MyEofSensorWatcher myEofSensorWatcher = new MyEofSensorWatcher(fluentHttpClient.isPooling() ? null : httpClient);
+                            if (fluentHttpClient.hasListeners()) {
+                                myEofSensorWatcher.reportCompletionTo(fluentHttpClient, request, response, httpContext);
+                            }
+                            StreamLeakReaper streamLeakReaper = fluentHttpClient.getStreamLeakReaper();
+                            if (streamLeakReaper!=null) {
+                                return streamLeakReaper.track(inputStream, myEofSensorWatcher, (HttpRequestBase) request, url);
+                            }
                             // Automatically shutdown the ConnectionManager when the calling client closes the returned FileInputStream
                             return new EofSensorInputStream(inputStream, myEofSensorWatcher);
                         }
@@ -205,6 +643,55 @@ public abstract class FluentHttpMethodBuilder {
         return (InputStream) executeAroundHttpMethod(getStream);
     }
 
+    /**
+     * Like asBytes(), but together with the status line and the headers.
+     */
+    public FluentHttpResponse asResponse() throws IOException {
+        ResponseHandler getResponse = new ResponseHandler() {
+            @Override
+            public FluentHttpResponse computeResult(DefaultHttpClient httpClient, HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException {
+                if (response==null) {
+                    logger.debug("{}.asResponse({}) loaded: HttpResponse is null.", getClass().getSimpleName(), url);
+                    throw new IOException("HttpResponse is null.");
+                } else {
+                    logger.debug("{}.asResponse({}) loaded: {}", getClass().getSimpleName(), url, response.getStatusLine());
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    if (isAllowedStatusCode(statusCode)) {
+                        HttpEntity httpEntity = response.getEntity();
+                        byte[] body = httpEntity==null ? null
+                                : EntityReader.toByteArray(httpEntity.getContent(), httpEntity.getContentLength(), fluentHttpClient.getBufferPool());
+                        return new FluentHttpResponse(FluentHttpMethodBuilder.this, response.getStatusLine(), response.getAllHeaders(), body);
+                    }
+
+                    // we return the status code with the exception for further processing by the calling client
+                    throw new FluentHttpClientStatusCodeException("Status line " + response.getStatusLine() + " was returned for " + url, response.getStatusLine().getStatusCode());
+                }
+            }
+
+            @Override
+            public boolean isHandlingConnectionShutdown() {
+                return false;
+            }
+        };
+
+        return (FluentHttpResponse) executeAroundHttpMethod(getResponse);
+    }
+
+    /**
+     * Reactive Streams view of asStream(): the body in chunks of up to 8 KB, read from the socket only
+     * as far as the subscriber has requested. Each subscription sends the request again.
+     */
+    public Publisher<ByteBuffer> asPublisher() {
+        return asPublisher(DEFAULT_PUBLISHER_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize maximum size of the emitted ByteBuffers, which are never reused
+     */
+    public Publisher<ByteBuffer> asPublisher(int chunkSize) {
+        return new BodyPublisher(this, fluentHttpClient.getPublisherExecutor(), chunkSize);
+    }
+
     public String asString() throws IOException {
         if (bytes==null) {
             bytes = asBytes();
@@ -212,43 +699,101 @@ public abstract class FluentHttpMethodBuilder {
         return bytes==null ? null : new String(bytes);
     }
     
+    /**
+     * Loads the body like asString() and computes its CRC32 while it is read, without an extra pass over the data.
+     *
+     * @return the CRC32 of the body, 0 if loading failed and exceptions are not rethrown
+     */
     public long asCRC32() throws IOException {
         if (bytes==null) {
-            bytes = asBytes();
+            String[] algorithms = digestAlgorithms;
+            if (!ArrayUtils.contains(algorithms, DigestingInputStream.CRC32)) {
+                digestAlgorithms = ArrayUtils.add(algorithms, DigestingInputStream.CRC32);
+            }
+            try {
+                bytes = asBytes();
+            } finally {
+                digestAlgorithms = algorithms;
+            }
+            String crc32 = bytes==null || digests==null ? null : digests.get(DigestingInputStream.CRC32);
+            if (crc32!=null) {
+                return Long.parseLong(crc32, 16);
+            }
+        }
+        if (bytes==null) {
+            return 0;
         }
         CRC32 crc32 = new CRC32();
         crc32.update(bytes);
         return crc32.getValue();
     }
 
+    /**
+     * @param algorithm as passed to withDigest(), e.g. "SHA-256"
+     * @return the hex encoded digest of the last response body, or null if the body has not been read completely
+     */
+    public String getDigest(String algorithm) {
+        return digests==null ? null : digests.get(DigestingInputStream.normalize(algorithm));
+    }
+
+    /** @return the hex encoded digests of the last response body per algorithm, empty until the body has been read completely */
+    public Map<String, String> getDigests() {
+        return digests==null ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(digests);
+    }
+
+    /**
+     * Lock-free, so a virtual thread closing the stream doesn't pin its carrier thread
+     * while the connection manager shuts down.
+     */
     protected static final class MyEofSensorWatcher implements EofSensorWatcher {
 
-        private DefaultHttpClient httpClient = null;
+        private final AtomicReference<DefaultHttpClient> httpClient;
+
+        private final AtomicReference<FluentHttpClient> listeningClient = new AtomicReference<FluentHttpClient>();
+        private volatile HttpRequest request;
+        private volatile HttpResponse response;
+        private volatile HttpContext httpContext;
 
         protected MyEofSensorWatcher(DefaultHttpClient httpClient) {
-            this.httpClient = httpClient;
+            this.httpClient = new AtomicReference<DefaultHttpClient>(httpClient);
+        }
+
+        protected void reportCompletionTo(FluentHttpClient listeningClient, HttpRequest request, HttpResponse response, HttpContext httpContext) {
+            this.request = request;
+            this.response = response;
+            this.httpContext = httpContext;
+            this.listeningClient.set(listeningClient);
+        }
+
+        private void fireResponseBodyCompleted() {
+            FluentHttpClient listeningClient = this.listeningClient.getAndSet(null);
+            if (listeningClient!=null) {
+                listeningClient.fireResponseBodyCompleted(request, response, httpContext);
+            }
         }
 
         @Override
-        public synchronized boolean eofDetected(InputStream inputStream) throws IOException {
+        public boolean eofDetected(InputStream inputStream) throws IOException {
             //System.out.println("EofSensorWatcher:.eofDetected()");
+            fireResponseBodyCompleted();
             return false;
         }
 
         @Override
-        public synchronized boolean streamClosed(InputStream inputStream) throws IOException {
+        public boolean streamClosed(InputStream inputStream) throws IOException {
             //System.out.println("EofSensorWatcher:.streamClosed()");
+            fireResponseBodyCompleted();
+            DefaultHttpClient httpClient = this.httpClient.getAndSet(null);
             if (httpClient!=null) {
                 // This really works!! HttpClient4 is great stuff !!!
                 //System.out.println("EofSensorWatcher: Calling httpClient.getConnectionManager().shutdown() on stream.closed ! ");
                 httpClient.getConnectionManager().shutdown();
-                httpClient = null;
             }
             return true;
         }
 
         @Override
-        public synchronized boolean streamAbort(InputStream inputStream) throws IOException {
+        public boolean streamAbort(InputStream inputStream) throws IOException {
             //System.out.println("EofSensorWatcher:.streamAbort()");
             return false;
         }
@@ -256,7 +801,7 @@ public abstract class FluentHttpMethodBuilder {
 
     protected interface ResponseHandler {
 
-        Object computeResult(DefaultHttpClient httpClient, HttpResponse response) throws IOException;
+        Object computeResult(DefaultHttpClient httpClient, HttpRequest request, HttpResponse response, HttpContext httpContext) throws IOException;
         boolean isHandlingConnectionShutdown();
 
     }
@@ -282,10 +827,42 @@ public abstract class FluentHttpMethodBuilder {
         return this;
     }
 
+    /** Sends the token, e.g. an OAuth2 access token, as "Authorization: Bearer token" */
+    public FluentHttpMethodBuilder withBearerToken(String token) {
+        return withHeader(AUTH.WWW_AUTH_RESP, BEARER + token);
+    }
+
+    /**
+     * Only relevant with FluentHttpClient.withConnectionPool(): an unread response body up to this size
+     * is downloaded to reuse the connection, bigger ones or ones of unknown length discard the connection.
+     *
+     * @param maxDrainBytes 0 always discards, Long.MAX_VALUE always drains bodies of known length
+     */
+    public FluentHttpMethodBuilder withDrainLimit(long maxDrainBytes) {
+        this.drainLimit = maxDrainBytes;
+        return this;
+    }
+
+    /**
+     * Computes the digests while the body is read by asBytes(), asStream() or any other result method, without
+     * an extra pass over the data. If the response has a Content-MD5 or Digest header for one of the algorithms,
+     * a mismatch is thrown as FluentHttpClientDigestException at the end of the body.
+     *
+     * @param algorithms "CRC32" or MessageDigest algorithms like "MD5", "SHA-1", "SHA-256"
+     * @see #getDigest(String)
+     */
+    public FluentHttpMethodBuilder withDigest(String... algorithms) {
+        this.digestAlgorithms = algorithms==null || algorithms.length==0 ? null : algorithms;
+        return this;
+    }
+
     public FluentHttpMethodBuilder withAllowedStatusCodes(int ... statusCodes) {
         if (statusCodes!=null) {
             if (allowedStatusCodes==null) {
                 allowedStatusCodes = new HashSet<Integer>(statusCodes.length);
+            } else if (allowedStatusCodesShared) {
+                allowedStatusCodes = new HashSet<Integer>(allowedStatusCodes);
+                allowedStatusCodesShared = false;
             }
             for (int statusCode : statusCodes) {
                 allowedStatusCodes.add(statusCode);
@@ -301,6 +878,7 @@ public abstract class FluentHttpMethodBuilder {
     /**
      * Method withAutoSystemProxy() is slow, so we may later decide to make class ProxyInfo public
      * and allow clients to reuse it for subsequent calls to the same urls.
+     * Meanwhile FluentHttpClient.template() resolves it once for all calls of a template.
      */
     /*public FluentHttpMethodBuilder withProxy(ProxyInfo proxyInfo) {
         this.proxyInfo = proxyInfo;
@@ -327,6 +905,30 @@ public abstract class FluentHttpMethodBuilder {
         return this;
     }
 
+    /** Like URI.getHost(), but without parsing the whole url, so it also works for FluentHttpRequestTemplate urls */
+    private static String hostOf(String url) {
+        int start = url.indexOf("://");
+        if (start<0) {
+            return null;
+        }
+        start += 3;
+        int end = start;
+        while (end<url.length() && "/?#".indexOf(url.charAt(end))<0) {
+            end++;
+        }
+        int userInfoEnd = url.lastIndexOf('@', end - 1);
+        if (userInfoEnd>=start) {
+            start = userInfoEnd + 1;
+        }
+        if (start<end && url.charAt(start)=='[') {
+            // IPv6 literal, URI.getHost() keeps the brackets
+            int bracket = url.indexOf(']', start);
+            return bracket<0 || bracket>=end ? null : url.substring(start, bracket + 1);
+        }
+        int colon = url.indexOf(':', start);
+        return url.substring(start, colon>=0 && colon<end ? colon : end);
+    }
+
     protected final class ProxyInfo {
         String proxyHost = null;
         int proxyPort = 0;
@@ -338,18 +940,18 @@ public abstract class FluentHttpMethodBuilder {
         }
 
         public ProxyInfo(String url) throws URISyntaxException {
-            URI uri = new URI(url);
+            String host = hostOf(url);
             boolean https = url.startsWith("https");
             if (!https) {
                 nonProxyHosts = StringUtils.split(StringUtils.defaultString(System.getProperty("http.nonProxyHosts")), '|');
-                if (nonProxyHosts==null || !ArrayUtils.contains(nonProxyHosts, uri.getHost())) {
+                if (nonProxyHosts==null || !ArrayUtils.contains(nonProxyHosts, host)) {
                     httpProxy();
                 } else {
                     logger.debug("Not using http proxy due to http.nonProxyHosts={}", System.getProperty("http.nonProxyHosts"));
                 }
             } else {
                 nonProxyHosts = StringUtils.split(StringUtils.defaultString(System.getProperty("https.nonProxyHosts")), '|');
-                if (nonProxyHosts==null || !ArrayUtils.contains(nonProxyHosts, uri.getHost())) {
+                if (nonProxyHosts==null || !ArrayUtils.contains(nonProxyHosts, host)) {
                     httpsProxy();
                 } else {
                     logger.debug("Not using https proxy due to https.nonProxyHosts={}", System.getProperty("https.nonProxyHosts"));
@@ -412,46 +1014,17 @@ public abstract class FluentHttpMethodBuilder {
     //### Authentication stuff
     //#################################
 
-    private static class PreemptiveAuthInterceptor implements HttpRequestInterceptor {
-
-        public void process(final HttpRequest request, final HttpContext context) throws HttpException, IOException {
-            AuthState authState = (AuthState) context.getAttribute(ClientContext.TARGET_AUTH_STATE);
-
-            // If no auth scheme avaialble yet, try to initialize it
-            // preemptively
-            if (authState.getAuthScheme() == null) {
-                AuthScheme authScheme = (AuthScheme) context.getAttribute("preemptive-auth");
-                CredentialsProvider credsProvider = (CredentialsProvider) context.getAttribute(ClientContext.CREDS_PROVIDER);
-                HttpHost targetHost = (HttpHost) context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
-                if (authScheme != null) {
-                    Credentials creds = credsProvider.getCredentials(new AuthScope(targetHost.getHostName(), targetHost.getPort()));
-                    if (creds == null) {
-                        throw new HttpException("No credentials for preemptive authentication");
-                    }
-                    authState.setAuthScheme(authScheme);
-                    authState.setCredentials(creds);
-                }
-            }
-
-        }
-
-    }
-
-    protected static HttpContext preemptiveBaseAuthentication(DefaultHttpClient httpClient, String login, String password) {
-        // http://stackoverflow.com/questions/2014700/preemptive-basic-authentication-with-apache-httpclient-4
-        Credentials credentials = new UsernamePasswordCredentials(login, password);
-        httpClient.getCredentialsProvider().setCredentials(AuthScope.ANY, credentials);
+    /**
+     * The client's RouteAuthCache lets HttpClient authenticate preemptively: Basic with a cached header,
+     * or the scheme the route challenged with before, e.g. Digest. The credentials answer new challenges.
+     */
+    protected HttpContext preemptiveAuthentication(DefaultHttpClient httpClient, HttpRequestBase httpMethod, String login, String password) {
+        httpClient.getCredentialsProvider().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(login, password));
+        RouteAuthCache authCache = fluentHttpClient.getAuthCache();
+        authCache.preempt(getRoute());
         HttpContext httpContext = new BasicHttpContext();
-        BasicScheme basicAuth = new BasicScheme();
-        httpContext.setAttribute("preemptive-auth", basicAuth);
-        httpClient.addRequestInterceptor(new PreemptiveAuthInterceptor(), 0);
+        httpContext.setAttribute(ClientContext.AUTH_CACHE, authCache);
         return httpContext;
-
-        // alternative impl.
-        //AuthCache authCache = new BasicAuthCache();
-        //BasicScheme basicAuth = new BasicScheme();
-        //HttpHost targetHost = new HttpHost("api.heroku.com", -1, "https");
-        //authCache.put(targetHost, basicAuth);
     }
 
     /* alternative impl.
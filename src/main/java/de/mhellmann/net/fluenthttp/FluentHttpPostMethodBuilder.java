@@ -1,20 +1,19 @@
 package de.mhellmann.net.fluenthttp;
 
-import org.apache.commons.lang3.CharEncoding;
-import org.apache.http.HttpResponse;
+import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.UnknownHostException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,113 +25,198 @@ import java.util.Map;
  *
  * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
  */
-public class FluentHttpPostMethodBuilder extends FluentHttpMethodBuilder {
+public class FluentHttpPostMethodBuilder extends FluentHttpGenericMethodBuilder {
 
     private Map<String, String> postParams;
-    private String requestBodyString;
+    private MultipartFormEntity multipartFormEntity;
+    /** postParams and multipartFormEntity belong to a FluentHttpRequestTemplate and are copied before changing them */
+    private boolean postParamsShared = false;
+    private boolean multipartFormEntityShared = false;
 
     FluentHttpPostMethodBuilder(FluentHttpClient httpClient, Logger logger, String url) {
-        super(httpClient, logger, url);
+        super(httpClient, logger, url, "POST");
     }
 
     public FluentHttpPostMethodBuilder withParams(Map<String, String> postParams) {
         this.postParams = postParams;
+        this.postParamsShared = false;
         return this;
     }
 
     public FluentHttpPostMethodBuilder withParam(String paramName, String paramValue) {
         if (postParams==null) {
             postParams = new LinkedHashMap<String, String>();
+        } else if (postParamsShared) {
+            postParams = new LinkedHashMap<String, String>(postParams);
+            postParamsShared = false;
         }
         postParams.put(paramName, paramValue);
         return this;
     }
 
-    public FluentHttpPostMethodBuilder withRequestBody(String requestBodyString) {
-        this.requestBodyString = requestBodyString;
+    /** Sends a multipart/form-data request, the params set by withParam() are added as fields. */
+    public FluentHttpPostMethodBuilder withMultipartField(String name, String value) {
+        multipartFormEntity().addField(name, value);
+        return this;
+    }
+
+    /** Adds a file part, which is streamed from the file while sending. */
+    public FluentHttpPostMethodBuilder withMultipartFile(String name, File file) {
+        return withMultipartFile(name, file, null);
+    }
+
+    public FluentHttpPostMethodBuilder withMultipartFile(String name, File file, String contentType) {
+        multipartFormEntity().addFile(name, file, contentType);
         return this;
     }
 
-    /** Applying the execute-around-pattern */
-    protected Object executeAroundHttpMethod(ResponseHandler responseHandler) throws IOException {
-        if (login==null) {
-            logger.debug("FluentHttpClient.post({}, {}, {})", url, proxyInfo, ignoreCookies);
-        } else {
-            logger.debug("FluentHttpClient.post({}, {}, {}, {}, {})", url, proxyInfo, ignoreCookies, login, password);
+    /**
+     * Adds a part which is streamed from the InputStream while sending, the caller closes it afterwards.
+     *
+     * @param length -1 if unknown, then the whole request is sent with chunked transfer encoding
+     */
+    public FluentHttpPostMethodBuilder withMultipartStream(String name, String fileName, InputStream inputStream, long length, String contentType) {
+        multipartFormEntity().addStream(name, fileName, inputStream, length, contentType);
+        return this;
+    }
+
+    private MultipartFormEntity multipartFormEntity() {
+        if (multipartFormEntity==null) {
+            multipartFormEntity = new MultipartFormEntity();
+        } else if (multipartFormEntityShared) {
+            multipartFormEntity = new MultipartFormEntity(Collections.<String, String>emptyMap(), multipartFormEntity);
+            multipartFormEntityShared = false;
         }
-        DefaultHttpClient httpClient = null;
-        try {
-            httpClient = fluentHttpClient.newHttpClient(proxyInfo, ignoreCookies);
-            HttpPost post = newPost(url, postParams);
-            HttpContext httpContext = handleAuthenticationCookiesAndHeaders(httpClient, post);
-
-            if (requestBodyString!=null) {
-                // example code for file upload:
-                //FileEntity fileEntity=new FileEntity(new File(filename),"multipart/form-data");
-                //StringEntity msgEntity = new StringEntity(msg, CharEncoding.UTF_8);
-                StringEntity requestBodyStringEntity = new StringEntity(requestBodyString, CharEncoding.UTF_8);
-
-                //post.setEntity(fileEntity);
-                //post.setEntity(msgEntity);
-                post.setEntity(requestBodyStringEntity);
-            }
+        return multipartFormEntity;
+    }
 
-            HttpResponse response;
-            if (httpContext==null) {
-                response = httpClient.execute(post);
-            } else {
-                response = httpClient.execute(post, httpContext);
-                if (ignoreCookies==null || !ignoreCookies) {
-                    fluentHttpClient.logCookies(httpContext);
-                }
-            }
-            fluentHttpClient.logResponseHeaders(response);
-            return responseHandler.computeResult(httpClient, response);
-
-        } catch (java.net.SocketTimeoutException e) {
-            return handleException(e, null);
-        } catch (UnknownHostException e) {
-            return handleException(e, "Unknown host or Offline.");
-        } catch (IOException e) {
-            return handleException(e, null);
-        } finally {
-            closeConnection(httpClient, responseHandler);
+    @Override
+    public FluentHttpPostMethodBuilder withRequestBody(String requestBodyString) {
+        super.withRequestBody(requestBodyString);
+        return this;
+    }
+
+    @Override
+    public FluentHttpPostMethodBuilder withRequestBody(String requestBodyString, String contentType) {
+        super.withRequestBody(requestBodyString, contentType);
+        return this;
+    }
+
+    @Override
+    public FluentHttpPostMethodBuilder withRequestBody(File file) {
+        super.withRequestBody(file);
+        return this;
+    }
+
+    @Override
+    public FluentHttpPostMethodBuilder withRequestBody(File file, String contentType) {
+        super.withRequestBody(file, contentType);
+        return this;
+    }
+
+    @Override
+    public FluentHttpPostMethodBuilder withRequestBody(InputStream inputStream, long length) {
+        super.withRequestBody(inputStream, length);
+        return this;
+    }
+
+    @Override
+    public FluentHttpPostMethodBuilder withRequestBody(InputStream inputStream, long length, String contentType) {
+        super.withRequestBody(inputStream, length, contentType);
+        return this;
+    }
+
+    @Override
+    public FluentHttpPostMethodBuilder withRequestBody(ByteBuffer byteBuffer) {
+        super.withRequestBody(byteBuffer);
+        return this;
+    }
+
+    @Override
+    public FluentHttpPostMethodBuilder withRequestBody(ByteBuffer byteBuffer, String contentType) {
+        super.withRequestBody(byteBuffer, contentType);
+        return this;
+    }
+
+    @Override
+    public <T> FluentHttpPostMethodBuilder withEncodedBody(T value, BodyCodec<T> codec) {
+        super.withEncodedBody(value, codec);
+        return this;
+    }
+
+    @Override
+    public FluentHttpPostMethodBuilder withJsonBody(Object value) {
+        super.withJsonBody(value);
+        return this;
+    }
+
+    @Override
+    public FluentHttpPostMethodBuilder withExpectContinue() {
+        super.withExpectContinue();
+        return this;
+    }
+
+    @Override
+    public FluentHttpPostMethodBuilder withExpectContinue(int waitMillis) {
+        super.withExpectContinue(waitMillis);
+        return this;
+    }
+
+    @Override
+    protected FluentHttpMethodBuilder newInstance(String url) {
+        return new FluentHttpPostMethodBuilder(fluentHttpClient, logger, url);
+    }
+
+    /** Multipart parts read from an InputStream can only be sent once, so they can't be shared */
+    @Override
+    void shareSettings() {
+        if (multipartFormEntity!=null && !multipartFormEntity.isRepeatable()) {
+            throw new IllegalArgumentException("A template can't share a streamed multipart part");
         }
+        super.shareSettings();
+        this.postParamsShared = true;
+        this.multipartFormEntityShared = true;
     }
 
-    protected Object handleException(IOException e, String msg) throws IOException {
-        if (fluentHttpClient.rethrowExceptions) {
-            throw e;
-        } else {
-            logger.error("FluentHttpClient.post({}): {}", url, (msg==null ? "" : msg), e);
+    @Override
+    protected void shareSettingsOf(FluentHttpMethodBuilder prototype) {
+        super.shareSettingsOf(prototype);
+        if (prototype instanceof FluentHttpPostMethodBuilder) {
+            FluentHttpPostMethodBuilder post = (FluentHttpPostMethodBuilder) prototype;
+            this.postParams = post.postParams;
+            this.multipartFormEntity = post.multipartFormEntity;
+            this.postParamsShared = true;
+            this.multipartFormEntityShared = true;
         }
-        return null;
     }
 
-    private void closeConnection(DefaultHttpClient httpClient, ResponseHandler responseHandler) {
-        try {
-            // When HttpClient instance is no longer needed,
-            // shut down the connection manager to ensure
-            // immediate deallocation of all system resources
-            if (httpClient!=null && !responseHandler.isHandlingConnectionShutdown()) {
-                httpClient.getConnectionManager().shutdown();
-            }
-        } catch (Exception e) {
-            logger.error("HttpClient4.post({}): Error in newHttpClient.getConnectionManager().shutdown()", url, e);
+    @Override
+    protected HttpRequestBase newHttpMethod() throws IOException {
+        HttpPost httpPost = new HttpPost(getRequestUri());
+        HttpEntity requestEntity = framed(newRequestEntity());
+        if (requestEntity!=null) {
+            httpPost.setEntity(requestEntity);
+            applyExpectContinue(httpPost);
         }
+        httpPost.setHeader("ContentType", "application/x-www-form-urlencoded");
+        return httpPost;
     }
 
-    private HttpPost newPost(String url, Map<String, String> postParams) throws UnsupportedEncodingException {
-        HttpPost httpPost = new HttpPost(url);
-        if (postParams!=null && postParams.size()>0) {
+    /** A request body set by withRequestBody() takes precedence over multipart parts and form params */
+    @Override
+    protected HttpEntity newRequestEntity() throws IOException {
+        HttpEntity requestEntity = super.newRequestEntity();
+        if (requestEntity==null && multipartFormEntity!=null) {
+            requestEntity = postParams==null ? multipartFormEntity : new MultipartFormEntity(postParams, multipartFormEntity);
+        }
+        if (requestEntity==null && postParams!=null && postParams.size()>0) {
             List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>(postParams.size());
             for (Map.Entry<String,String> entry : postParams.entrySet()) {
                 nameValuePairs.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
             }
-            httpPost.setEntity(new UrlEncodedFormEntity(nameValuePairs));
+            requestEntity = new UrlEncodedFormEntity(nameValuePairs);
         }
-        httpPost.setHeader("ContentType", "application/x-www-form-urlencoded");
-        return httpPost;
+        return requestEntity;
     }
 
 }
@@ -0,0 +1,67 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Builder for cheap status-only health checks, see FluentHttpClient.probe().
+ *
+ * A HEAD is sent first. If the server doesn't support HEAD (405 or 501), a GET is sent instead and its
+ * body is discarded right after the status line, unless it is small enough to be drained for reusing
+ * a pooled connection (see withDrainLimit()).
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public class FluentHttpProbeMethodBuilder extends FluentHttpMethodBuilder {
+
+    private static final int HTTP_405 = 405;
+    private static final int HTTP_501 = 501;
+
+    private boolean head = true;
+
+    FluentHttpProbeMethodBuilder(FluentHttpClient httpClient, Logger logger, String url) {
+        super(httpClient, logger, url);
+    }
+
+    /** Skips the HEAD for servers known to not support it. */
+    public FluentHttpProbeMethodBuilder withGet() {
+        this.head = false;
+        return this;
+    }
+
+    @Override
+    protected HttpRequestBase newHttpMethod() {
+        return head ? new HttpHead(getRequestUri()) : new HttpGet(getRequestUri());
+    }
+
+    @Override
+    protected FluentHttpMethodBuilder newInstance(String url) {
+        FluentHttpProbeMethodBuilder probe = new FluentHttpProbeMethodBuilder(fluentHttpClient, logger, url);
+        probe.head = head;
+        return probe;
+    }
+
+    @Override
+    protected String getMethodName() {
+        return head ? "head" : "get";
+    }
+
+    @Override
+    public StatusLine asStatusLine() throws IOException {
+        StatusLine statusLine = super.asStatusLine();
+        if (head && statusLine!=null
+                && (statusLine.getStatusCode()==HTTP_405 || statusLine.getStatusCode()==HTTP_501)) {
+            logger.debug("FluentHttpClient.probe({}): HEAD not supported, using GET.", url);
+            head = false;
+            statusLine = super.asStatusLine();
+        }
+        return statusLine;
+    }
+}
@@ -0,0 +1,137 @@
+package de.mhellmann.net.fluenthttp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A request configured once and sent many times, see FluentHttpClient.template():
+ * <pre>
+ * FluentHttpRequestTemplate&lt;FluentHttpMethodBuilder&gt; orders = client.template(
+ *         client.get("https://shop/users/{user}/orders?status={status}")
+ *                 .withHeader("Accept", "application/json")
+ *                 .withAutoSystemProxy());
+ * String json = orders.expand(4711, "open").asString();
+ * </pre>
+ * The url is split into its literal parts and variables once. Headers, proxy, authentication and the other
+ * settings of the prototype are shared by all expanded builders instead of being copied, withHeader() and
+ * withAllowedStatusCodes() on an expanded builder copy them first. So an expansion costs the url, the builder
+ * and what HttpClient allocates per request.
+ *
+ * Values are percent-encoded, as a single path segment in the path and as a parameter value in the query.
+ * The prototype must not be used anymore, a template is thread-safe.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class FluentHttpRequestTemplate<B extends FluentHttpMethodBuilder> {
+
+    private static final int ESTIMATED_VALUE_LENGTH = 16;
+
+    private final B prototype;
+    private final String urlTemplate;
+    /** literals[i] comes before the i-th variable, the last one after all variables */
+    private final String[] literals;
+    /** Index into names of the i-th variable in the url, a name may occur more than once */
+    private final int[] variables;
+    private final boolean[] inQuery;
+    private final String[] names;
+    private final int estimatedLength;
+
+    FluentHttpRequestTemplate(B prototype) {
+        this.prototype = prototype;
+        this.urlTemplate = prototype.getUnresolvedUrl();
+        prototype.shareSettings();
+
+        List<String> literalList = new ArrayList<String>();
+        List<Integer> variableList = new ArrayList<Integer>();
+        List<Boolean> inQueryList = new ArrayList<Boolean>();
+        List<String> nameList = new ArrayList<String>();
+        int queryStart = urlTemplate.indexOf('?');
+        int position = 0;
+        int open;
+        while ((open = urlTemplate.indexOf('{', position))>=0) {
+            int close = urlTemplate.indexOf('}', open);
+            if (close<0) {
+                throw new IllegalArgumentException("Unclosed variable in " + urlTemplate);
+            }
+            String name = urlTemplate.substring(open + 1, close);
+            int index = nameList.indexOf(name);
+            if (index<0) {
+                index = nameList.size();
+                nameList.add(name);
+            }
+            literalList.add(urlTemplate.substring(position, open));
+            variableList.add(index);
+            inQueryList.add(queryStart>=0 && open>queryStart);
+            position = close + 1;
+        }
+        literalList.add(urlTemplate.substring(position));
+
+        this.literals = literalList.toArray(new String[literalList.size()]);
+        this.names = nameList.toArray(new String[nameList.size()]);
+        this.variables = new int[variableList.size()];
+        this.inQuery = new boolean[variableList.size()];
+        for (int i = 0; i < variables.length; i++) {
+            variables[i] = variableList.get(i);
+            inQuery[i] = inQueryList.get(i);
+        }
+        this.estimatedLength = urlTemplate.length() + variables.length * ESTIMATED_VALUE_LENGTH;
+    }
+
+    /**
+     * @param values one per variable name, in the order they first occur in the url
+     */
+    public B expand(Object... values) {
+        if (values.length!=names.length) {
+            throw new IllegalArgumentException("Expected " + names.length + " values for " + urlTemplate + ", got " + values.length);
+        }
+        StringBuilder url = new StringBuilder(estimatedLength);
+        for (int i = 0; i < variables.length; i++) {
+            url.append(literals[i]);
+            appendValue(url, values[variables[i]], i);
+        }
+        url.append(literals[variables.length]);
+        return newBuilder(url.toString());
+    }
+
+    public B expand(Map<String, ?> values) {
+        StringBuilder url = new StringBuilder(estimatedLength);
+        for (int i = 0; i < variables.length; i++) {
+            url.append(literals[i]);
+            String name = names[variables[i]];
+            if (!values.containsKey(name)) {
+                throw new IllegalArgumentException("No value for {" + name + "} of " + urlTemplate);
+            }
+            appendValue(url, values.get(name), i);
+        }
+        url.append(literals[variables.length]);
+        return newBuilder(url.toString());
+    }
+
+    public String getUrlTemplate() {
+        return urlTemplate;
+    }
+
+    private void appendValue(StringBuilder url, Object value, int variable) {
+        CharSequence chars = value instanceof CharSequence ? (CharSequence) value : String.valueOf(value);
+        if (inQuery[variable]) {
+            PercentEncoder.appendQueryValue(url, chars);
+        } else {
+            PercentEncoder.appendPathSegment(url, chars);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private B newBuilder(String url) {
+        FluentHttpMethodBuilder builder = prototype.newInstance(url);
+        builder.shareSettingsOf(prototype);
+        return (B) builder;
+    }
+
+    @Override
+    public String toString() {
+        return "FluentHttpRequestTemplate[" + prototype.getMethodName() + " " + urlTemplate + "]";
+    }
+}
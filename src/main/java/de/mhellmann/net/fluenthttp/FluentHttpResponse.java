@@ -0,0 +1,100 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.http.Header;
+import org.apache.http.StatusLine;
+
+import java.io.IOException;
+
+/**
+ * A completely read response, see FluentHttpMethodBuilder.asResponse() and FluentHttpClient.execute(Publisher).
+ * A failed request of a batch is emitted with its exception instead of ending the whole batch.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class FluentHttpResponse {
+
+    private static final Header[] NO_HEADERS = new Header[0];
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final FluentHttpMethodBuilder request;
+    private final StatusLine statusLine;
+    private final Header[] headers;
+    private final byte[] body;
+    private final IOException exception;
+
+    FluentHttpResponse(FluentHttpMethodBuilder request, StatusLine statusLine, Header[] headers, byte[] body) {
+        this.request = request;
+        this.statusLine = statusLine;
+        this.headers = headers==null ? NO_HEADERS : headers;
+        this.body = body==null ? NO_BODY : body;
+        this.exception = null;
+    }
+
+    FluentHttpResponse(FluentHttpMethodBuilder request, IOException exception) {
+        this.request = request;
+        this.statusLine = null;
+        this.headers = NO_HEADERS;
+        this.body = NO_BODY;
+        this.exception = exception;
+    }
+
+    public FluentHttpMethodBuilder getRequest() {
+        return request;
+    }
+
+    public boolean isSuccess() {
+        return exception==null;
+    }
+
+    /** @return the reason of a failed request, null on success */
+    public IOException getException() {
+        return exception;
+    }
+
+    /** @return null if the request failed */
+    public StatusLine getStatusLine() {
+        return statusLine;
+    }
+
+    /**
+     * @return the status code, also of a FluentHttpClientStatusCodeException, otherwise -1 for a failed request
+     */
+    public int getStatusCode() {
+        if (statusLine!=null) {
+            return statusLine.getStatusCode();
+        }
+        return exception instanceof FluentHttpClientStatusCodeException ? ((FluentHttpClientStatusCodeException) exception).getStatusCode() : -1;
+    }
+
+    public Header[] getHeaders() {
+        return headers.clone();
+    }
+
+    /** @return the value of the first header with the given name, or null */
+    public String getHeader(String name) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /** @return the body, empty for a failed request or a response without body */
+    public byte[] getBody() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("url", request.url)
+                .append("statusLine", statusLine)
+                .append("bodyLength", body.length)
+                .append("exception", exception)
+                .toString();
+    }
+}
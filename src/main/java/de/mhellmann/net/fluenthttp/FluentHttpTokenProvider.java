@@ -0,0 +1,273 @@
+package de.mhellmann.net.fluenthttp;
+
+import de.mhellmann.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Caches a bearer token, e.g. an OAuth2 access token, see FluentHttpClient.withBearerTokens().
+ *
+ * The token is refreshed in the background before it expires, by default one minute, at most half its lifetime
+ * ahead. Requests keep using the current token meanwhile and only wait if there is no valid token at all,
+ * e.g. for the very first one. Concurrent refreshes are coalesced into a single call of the TokenFetcher,
+ * so the token endpoint never gets a stampede. If a background refresh fails it is retried every second
+ * as long as the current token is valid.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class FluentHttpTokenProvider {
+
+    public static final long DEFAULT_REFRESH_AHEAD_MILLIS = 60000;
+    private static final long RETRY_MILLIS = 1000;
+
+    /** Gets a new token, e.g. from an OAuth2 token endpoint, see clientCredentials() */
+    public interface TokenFetcher {
+        Token fetchToken() throws IOException;
+    }
+
+    public static final class Token {
+
+        private final String accessToken;
+        private final long issuedAtMillis;
+        private final long expiresAtMillis;
+
+        /**
+         * @param expiresInMillis lifetime from now, 0 or less if the token doesn't expire
+         */
+        public Token(String accessToken, long expiresInMillis) {
+            if (accessToken==null) {
+                throw new IllegalArgumentException("accessToken is null");
+            }
+            this.accessToken = accessToken;
+            this.issuedAtMillis = System.currentTimeMillis();
+            this.expiresAtMillis = expiresInMillis>0 ? issuedAtMillis + expiresInMillis : Long.MAX_VALUE;
+        }
+
+        public String getAccessToken() {
+            return accessToken;
+        }
+
+        public long getExpiresAtMillis() {
+            return expiresAtMillis;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis()>=expiresAtMillis;
+        }
+
+        @Override
+        public String toString() {
+            // never log the token itself
+            return "Token[expiresAtMillis=" + expiresAtMillis + "]";
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final TokenFetcher tokenFetcher;
+    private final AtomicReference<Token> token = new AtomicReference<Token>();
+    /** The refresh in progress, everybody needing a token while it runs waits for this one */
+    private final AtomicReference<FutureTask<Token>> refresh = new AtomicReference<FutureTask<Token>>();
+    private final AtomicLong fetchCount = new AtomicLong();
+    private final ScheduledThreadPoolExecutor scheduler;
+    private volatile ScheduledFuture<?> scheduledRefresh;
+    private volatile long refreshAheadMillis = DEFAULT_REFRESH_AHEAD_MILLIS;
+
+    private final Runnable backgroundRefresh = new Runnable() {
+        @Override
+        public void run() {
+            startRefresh(false);
+        }
+    };
+
+    public FluentHttpTokenProvider(TokenFetcher tokenFetcher) {
+        if (tokenFetcher==null) {
+            throw new IllegalArgumentException("tokenFetcher is null");
+        }
+        this.tokenFetcher = tokenFetcher;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, VirtualThreads.newDaemonThreadFactory("FluentHttpClient-token-refresh-"));
+    }
+
+    /**
+     * OAuth2 client credentials grant: posts grant_type=client_credentials with Basic authentication of the client
+     * and reads access_token and expires_in from the JSON response.
+     *
+     * @param scope null for the default scope
+     */
+    public static TokenFetcher clientCredentials(final FluentHttpClient fluentHttpClient, final String tokenUrl,
+                                                 final String clientId, final String clientSecret, final String scope) {
+        return new TokenFetcher() {
+            @Override
+            public Token fetchToken() throws IOException {
+                FluentHttpPostMethodBuilder post = fluentHttpClient.post(tokenUrl).withParam("grant_type", "client_credentials");
+                if (scope!=null) {
+                    post.withParam("scope", scope);
+                }
+                // Basic instead of a bearer token, so the token request never needs a token itself
+                post.withBaseAuthentication(clientId, clientSecret);
+                Map<?, ?> json = post.as(Map.class);
+                Object accessToken = json==null ? null : json.get("access_token");
+                if (accessToken==null) {
+                    throw new IOException("No access_token returned by " + tokenUrl);
+                }
+                Object expiresIn = json.get("expires_in");
+                long expiresInSeconds = expiresIn instanceof Number ? ((Number) expiresIn).longValue()
+                        : expiresIn==null ? 0 : Long.parseLong(expiresIn.toString());
+                return new Token(accessToken.toString(), TimeUnit.SECONDS.toMillis(expiresInSeconds));
+            }
+        };
+    }
+
+    /** How long before expiry the token is refreshed, at most half its lifetime */
+    public FluentHttpTokenProvider withRefreshAheadMillis(long refreshAheadMillis) {
+        this.refreshAheadMillis = refreshAheadMillis;
+        return this;
+    }
+
+    /**
+     * @return a valid token, only blocks if there is none, waiting for the running refresh or doing it
+     */
+    public String getAccessToken() throws IOException {
+        Token current = token.get();
+        if (current!=null && !current.isExpired()) {
+            if (System.currentTimeMillis()>=refreshAtMillis(current)) {
+                // the background refresh is late or failed, trigger one but don't wait for it
+                startRefresh(true);
+            }
+            return current.accessToken;
+        }
+        return awaitRefresh().accessToken;
+    }
+
+    /** Drops the token if it is still the current one, e.g. after a 401, so the next request gets a new one */
+    public void invalidate(String accessToken) {
+        Token current = token.get();
+        if (current!=null && current.accessToken.equals(accessToken)) {
+            token.compareAndSet(current, null);
+        }
+    }
+
+    /** @return how often the TokenFetcher has been called successfully */
+    public long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    /** Stops the background refresh */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    //#############################################################
+    //### internal impls ..
+    //#############################################################
+
+    private long refreshAtMillis(Token token) {
+        if (token.expiresAtMillis==Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        long lifetime = token.expiresAtMillis - token.issuedAtMillis;
+        return token.expiresAtMillis - Math.min(refreshAheadMillis, lifetime / 2);
+    }
+
+    private Token awaitRefresh() throws IOException {
+        FutureTask<Token> task = startRefresh(false);
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a token");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Fetching a token failed", cause);
+        }
+    }
+
+    /**
+     * Single flight: joins the running refresh or starts one, on the scheduler thread or on the calling thread.
+     */
+    private FutureTask<Token> startRefresh(boolean async) {
+        while (true) {
+            FutureTask<Token> running = refresh.get();
+            if (running!=null) {
+                return running;
+            }
+            FutureTask<Token> task = new FutureTask<Token>(new Callable<Token>() {
+                @Override
+                public Token call() throws IOException {
+                    return fetch();
+                }
+            }) {
+                @Override
+                protected void done() {
+                    refresh.compareAndSet(this, null);
+                }
+            };
+            if (refresh.compareAndSet(null, task)) {
+                if (!async) {
+                    task.run();
+                } else {
+                    try {
+                        scheduler.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        // shut down, the next request will fetch the token itself
+                        refresh.compareAndSet(task, null);
+                    }
+                }
+                return task;
+            }
+        }
+    }
+
+    private Token fetch() throws IOException {
+        try {
+            Token newToken = tokenFetcher.fetchToken();
+            if (newToken==null) {
+                throw new IOException("TokenFetcher returned no token");
+            }
+            token.set(newToken);
+            fetchCount.incrementAndGet();
+            logger.debug("FluentHttpTokenProvider: new token {}", newToken);
+            long refreshAtMillis = refreshAtMillis(newToken);
+            if (refreshAtMillis!=Long.MAX_VALUE) {
+                scheduleRefresh(refreshAtMillis - System.currentTimeMillis());
+            }
+            return newToken;
+        } catch (IOException e) {
+            Token current = token.get();
+            if (current!=null && !current.isExpired()) {
+                logger.error("FluentHttpTokenProvider: refreshing the token failed, retrying in {} ms", RETRY_MILLIS, e);
+                scheduleRefresh(RETRY_MILLIS);
+            }
+            throw e;
+        }
+    }
+
+    private void scheduleRefresh(long delayMillis) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        ScheduledFuture<?> previous = scheduledRefresh;
+        if (previous!=null) {
+            previous.cancel(false);
+        }
+        try {
+            scheduledRefresh = scheduler.schedule(backgroundRefresh, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down meanwhile
+        }
+    }
+}
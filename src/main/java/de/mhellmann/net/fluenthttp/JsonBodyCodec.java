@@ -0,0 +1,83 @@
+package de.mhellmann.net.fluenthttp;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming JSON codec based on Jackson. Responses are parsed straight from the entity stream
+ * and request bodies are generated straight into the connection.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public class JsonBodyCodec<T> implements BodyCodec<T> {
+
+    public static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+
+    /** ObjectMapper is thread safe and expensive to create, so all default codecs share this one */
+    private static final ObjectMapper DEFAULT_OBJECT_MAPPER = newObjectMapper();
+
+    private final ObjectMapper objectMapper;
+    private final JavaType type;
+
+    public JsonBodyCodec(Class<T> type) {
+        this(DEFAULT_OBJECT_MAPPER, type);
+    }
+
+    public JsonBodyCodec(ObjectMapper objectMapper, Class<T> type) {
+        this.objectMapper = objectMapper;
+        this.type = objectMapper.getTypeFactory().constructType(type);
+    }
+
+    /** Codec for generic types like List&lt;Foo&gt;, built with objectMapper.getTypeFactory() */
+    public JsonBodyCodec(ObjectMapper objectMapper, JavaType type) {
+        this.objectMapper = objectMapper;
+        this.type = type;
+    }
+
+    public static <T> JsonBodyCodec<T> of(Class<T> type) {
+        return new JsonBodyCodec<T>(type);
+    }
+
+    private static ObjectMapper newObjectMapper() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        // the stream belongs to the http connection
+        objectMapper.getFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        objectMapper.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return objectMapper;
+    }
+
+    @Override
+    public T decode(InputStream inputStream, Charset charset) throws IOException {
+        if (charset==null) {
+            // Jackson detects UTF-8/16/32 by itself
+            return objectMapper.readValue(inputStream, type);
+        }
+        return objectMapper.readValue(new InputStreamReader(inputStream, charset), type);
+    }
+
+    @Override
+    public void encode(T value, OutputStream outputStream) throws IOException {
+        objectMapper.writeValue(outputStream, value);
+    }
+
+    /** Jackson only knows the size after generating, so JSON bodies are sent chunked */
+    @Override
+    public long getContentLength(T value) {
+        return -1;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+}
@@ -0,0 +1,82 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.slf4j.Logger;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects resources which became unreachable without being released, logs where they have been allocated
+ * and reclaims what they were holding. Detection happens while tracking new resources, so no thread is needed.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+final class LeakDetector {
+
+    private final String resourceType;
+    private final ReferenceQueue<Object> referenceQueue = new ReferenceQueue<Object>();
+    /** Keeps the trackers themselves reachable until their resource got released or collected */
+    private final Set<Tracker> trackers = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+    private final AtomicLong leaks = new AtomicLong();
+
+    LeakDetector(String resourceType) {
+        this.resourceType = resourceType;
+    }
+
+    /**
+     * @param reclaim run if the resource leaked, it must not reference the resource itself
+     * @return the tracker, which has to be closed when the resource is released properly
+     */
+    Tracker track(Object resource, Runnable reclaim, Logger logger) {
+        reportLeaks();
+        Tracker tracker = new Tracker(resource, referenceQueue, reclaim, logger,
+                new Throwable(resourceType + " allocated in thread " + Thread.currentThread().getName()));
+        trackers.add(tracker);
+        return tracker;
+    }
+
+    /** @return the number of leaks found so far */
+    long getLeakCount() {
+        reportLeaks();
+        return leaks.get();
+    }
+
+    void reportLeaks() {
+        Tracker tracker;
+        while ((tracker = (Tracker) referenceQueue.poll())!=null) {
+            if (trackers.remove(tracker)) {
+                leaks.incrementAndGet();
+                tracker.logger.error("LEAK: {} was garbage collected without being released. Allocation site:",
+                        resourceType, tracker.allocationSite);
+                if (tracker.reclaim!=null) {
+                    tracker.reclaim.run();
+                }
+            }
+        }
+    }
+
+    final class Tracker extends PhantomReference<Object> {
+
+        private final Runnable reclaim;
+        private final Logger logger;
+        private final Throwable allocationSite;
+
+        private Tracker(Object resource, ReferenceQueue<Object> referenceQueue, Runnable reclaim, Logger logger, Throwable allocationSite) {
+            super(resource, referenceQueue);
+            this.reclaim = reclaim;
+            this.logger = logger;
+            this.allocationSite = allocationSite;
+        }
+
+        void close() {
+            trackers.remove(this);
+            clear();
+        }
+    }
+}
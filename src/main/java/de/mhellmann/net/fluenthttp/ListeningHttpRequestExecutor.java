@@ -0,0 +1,53 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.client.RequestWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+
+/**
+ * HttpRequestExecutor reporting the connection and wire level events to the listeners of a FluentHttpClient.
+ * It is only installed if at least one listener is registered, so the default path is left untouched.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+class ListeningHttpRequestExecutor extends HttpRequestExecutor {
+
+    private final FluentHttpClient fluentHttpClient;
+
+    ListeningHttpRequestExecutor(FluentHttpClient fluentHttpClient) {
+        this.fluentHttpClient = fluentHttpClient;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
+        fluentHttpClient.fireConnectionAcquired(original(request), conn, context);
+        return super.execute(request, conn, context);
+    }
+
+    @Override
+    protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
+        HttpResponse response = super.doSendRequest(request, conn, context);
+        fluentHttpClient.fireRequestHeadersSent(original(request), context);
+        return response;
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context) throws HttpException, IOException {
+        HttpResponse response = super.doReceiveResponse(request, conn, context);
+        fluentHttpClient.fireResponseHeadersReceived(original(request), response, context);
+        return response;
+    }
+
+    /** Listeners should see the request they got in requestStarted(), not HttpClient's internal wrapper */
+    static HttpRequest original(HttpRequest request) {
+        return request instanceof RequestWrapper ? ((RequestWrapper) request).getOriginal() : request;
+    }
+}
@@ -0,0 +1,325 @@
+package de.mhellmann.net.fluenthttp;
+
+import de.mhellmann.util.VirtualThreads;
+import org.apache.commons.lang3.CharEncoding;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Streaming multipart/form-data request entity (RFC 2388).
+ *
+ * The parts are written straight from their sources while sending, so the body never exists in memory.
+ * If the sizes of all parts are known, the Content-Length is computed up front,
+ * otherwise the entity is sent with chunked transfer encoding.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+class MultipartFormEntity extends AbstractHttpEntity {
+
+    private static final Charset UTF_8 = Charset.forName(CharEncoding.UTF_8);
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] DASHES = {'-', '-'};
+    private static final char[] BOUNDARY_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final int BUFFER_SIZE = 8192;
+    /** Larger bodies or bodies of unknown size are piped by getContent() instead of buffered */
+    private static final int MAX_BUFFERED_CONTENT = 1024 * 1024;
+    /** Virtual threads where available, getContent() blocks its writer on the pipe most of the time */
+    private static final ThreadFactory WRITER_THREAD_FACTORY = VirtualThreads.newThreadFactory("MultipartFormEntity-writer-");
+
+    private final List<Part> parts = new ArrayList<Part>();
+    private final byte[] boundary;
+
+    MultipartFormEntity() {
+        String boundary = newBoundary();
+        this.boundary = boundary.getBytes(UTF_8);
+        setContentType("multipart/form-data; boundary=" + boundary);
+    }
+
+    /** The fields come first, followed by the parts of the other entity */
+    MultipartFormEntity(Map<String, String> fields, MultipartFormEntity other) {
+        this();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            addField(field.getKey(), field.getValue());
+        }
+        parts.addAll(other.parts);
+    }
+
+    void addField(String name, String value) {
+        if (name==null || value==null) {
+            throw new IllegalArgumentException("Multipart field name and value may not be null");
+        }
+        parts.add(new BytesPart(name, null, "text/plain; charset=UTF-8", value.getBytes(UTF_8)));
+    }
+
+    /** The length is taken now, so a file growing until it is sent doesn't change the announced Content-Length */
+    void addFile(String name, File file, String contentType) {
+        if (file==null || !file.isFile()) {
+            throw new IllegalArgumentException("Multipart file doesn't exist: " + file);
+        }
+        parts.add(new FilePart(name, file, file.length(), contentType));
+    }
+
+    void addStream(String name, String fileName, InputStream inputStream, long length, String contentType) {
+        parts.add(new StreamPart(name, fileName, contentType, inputStream, length));
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        for (Part part : parts) {
+            if (!part.isRepeatable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return getContentLength()<0;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return !isRepeatable();
+    }
+
+    /** @return the exact body size, or -1 if the size of any part is unknown */
+    @Override
+    public long getContentLength() {
+        long length = 0;
+        for (Part part : parts) {
+            long partLength = part.getLength();
+            if (partLength<0) {
+                return -1;
+            }
+            length += DASHES.length + boundary.length + CRLF.length + part.headers.length + partLength + CRLF.length;
+        }
+        return length + DASHES.length + boundary.length + DASHES.length + CRLF.length;
+    }
+
+    /**
+     * Only for callers needing the content as stream, sending uses writeTo().
+     * Small bodies are written into a buffer, larger ones or those of unknown size are piped from a writer thread.
+     * Stream parts are consumed either way.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        long length = getContentLength();
+        if (length>=0 && length<=MAX_BUFFERED_CONTENT) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) length);
+            writeTo(outputStream);
+            return new ByteArrayInputStream(outputStream.toByteArray());
+        }
+        final PipedContentStream inputStream = new PipedContentStream();
+        final PipedOutputStream outputStream = new PipedOutputStream(inputStream);
+        Thread writer = WRITER_THREAD_FACTORY.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeTo(outputStream);
+                } catch (IOException e) {
+                    // surfaces at the reader's end of stream, a closed reader makes it fail as well
+                    inputStream.failure = e;
+                } finally {
+                    try {
+                        outputStream.close();
+                    } catch (IOException e) {
+                        // nothing left to tell the reader
+                    }
+                }
+            }
+        });
+        writer.start();
+        return inputStream;
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        if (outstream==null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (Part part : parts) {
+            outstream.write(DASHES);
+            outstream.write(boundary);
+            outstream.write(CRLF);
+            outstream.write(part.headers);
+            part.writeContentTo(outstream, buffer);
+            outstream.write(CRLF);
+        }
+        outstream.write(DASHES);
+        outstream.write(boundary);
+        outstream.write(DASHES);
+        outstream.write(CRLF);
+        outstream.flush();
+    }
+
+    private static String newBoundary() {
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder(40).append("FluentHttpClient");
+        for (int i = 0; i < 24; i++) {
+            sb.append(BOUNDARY_CHARS[random.nextInt(BOUNDARY_CHARS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int n;
+        while ((n = in.read(buffer))!=-1) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /** Never writes more than announced in the Content-Length, a body ending early fails */
+    private static void copy(InputStream in, OutputStream out, byte[] buffer, long length) throws IOException {
+        long remaining = length;
+        while (remaining>0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n==-1) {
+                throw new EOFException("Multipart part ended " + remaining + " bytes before its announced length");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    /** Reports a failure of the writer thread instead of a silently truncated body */
+    private static final class PipedContentStream extends PipedInputStream {
+        volatile IOException failure;
+
+        PipedContentStream() {
+            super(BUFFER_SIZE);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b==-1 && failure!=null) {
+                throw failure;
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n==-1 && failure!=null) {
+                throw failure;
+            }
+            return n;
+        }
+    }
+
+    private abstract static class Part {
+
+        /** Content-Disposition and Content-Type lines including the empty line, encoded once */
+        final byte[] headers;
+
+        Part(String name, String fileName, String contentType) {
+            StringBuilder sb = new StringBuilder(128)
+                    .append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+            if (fileName!=null) {
+                sb.append("; filename=\"").append(escape(fileName)).append('"');
+            }
+            sb.append("\r\n");
+            if (contentType!=null) {
+                sb.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            sb.append("\r\n");
+            headers = sb.toString().getBytes(UTF_8);
+        }
+
+        private static String escape(String s) {
+            return s.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+        }
+
+        abstract long getLength();
+        abstract boolean isRepeatable();
+        abstract void writeContentTo(OutputStream out, byte[] buffer) throws IOException;
+    }
+
+    private static final class BytesPart extends Part {
+        private final byte[] bytes;
+
+        BytesPart(String name, String fileName, String contentType, byte[] bytes) {
+            super(name, fileName, contentType);
+            this.bytes = bytes;
+        }
+
+        long getLength() {
+            return bytes.length;
+        }
+
+        boolean isRepeatable() {
+            return true;
+        }
+
+        void writeContentTo(OutputStream out, byte[] buffer) throws IOException {
+            out.write(bytes);
+        }
+    }
+
+    private static final class FilePart extends Part {
+        private final File file;
+        private final long length;
+
+        FilePart(String name, File file, long length, String contentType) {
+            super(name, file.getName(), contentType==null ? "application/octet-stream" : contentType);
+            this.file = file;
+            this.length = length;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        boolean isRepeatable() {
+            return true;
+        }
+
+        void writeContentTo(OutputStream out, byte[] buffer) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                copy(in, out, buffer, length);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static final class StreamPart extends Part {
+        private final InputStream inputStream;
+        private final long length;
+
+        StreamPart(String name, String fileName, String contentType, InputStream inputStream, long length) {
+            super(name, fileName, contentType==null ? "application/octet-stream" : contentType);
+            this.inputStream = inputStream;
+            this.length = length;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        boolean isRepeatable() {
+            return false;
+        }
+
+        void writeContentTo(OutputStream out, byte[] buffer) throws IOException {
+            if (length<0) {
+                copy(inputStream, out, buffer);
+            } else {
+                copy(inputStream, out, buffer, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read-only response body in direct memory, see FluentHttpMethodBuilder.asOffHeapBody().
+ * Meant for forwarding payloads without copying them into the heap.
+ *
+ * The body is reference counted: it starts with a count of 1, every retain() needs a matching release(),
+ * and the memory goes back to the pool when the count drops to 0. With debug logging enabled,
+ * bodies which are garbage collected without having been released are logged with their allocation site.
+ * Their memory only goes back to the pool if no views from buffers() or openStream() have been handed out,
+ * otherwise it is left to the garbage collector, because a leaked view could still read a recycled segment.
+ *
+ * The body is kept in segments, so it may be bigger than 2 GB.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class OffHeapBody {
+
+    static final LeakDetector LEAK_DETECTOR = new LeakDetector(OffHeapBody.class.getSimpleName());
+
+    private final Segments segments;
+    private final long size;
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+    private final LeakDetector.Tracker tracker;
+
+    OffHeapBody(ByteBufferPool pool, ByteBuffer[] buffers, long size, Logger logger) {
+        this.segments = new Segments(pool, buffers);
+        this.size = size;
+        this.tracker = logger!=null && logger.isDebugEnabled() ? LEAK_DETECTOR.track(this, segments, logger) : null;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return read-only views of the segments, positioned at their start
+     * @throws IllegalStateException if already released
+     */
+    public ByteBuffer[] buffers() {
+        segments.viewsHandedOut = true;
+        return views();
+    }
+
+    private ByteBuffer[] views() {
+        ByteBuffer[] buffers = checkNotReleased();
+        ByteBuffer[] views = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            views[i] = buffers[i].asReadOnlyBuffer();
+        }
+        return views;
+    }
+
+    /** Writes the whole body with gathering writes if the channel supports them, e.g. to a socket or file. */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer[] views = views();
+        long written = 0;
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gatheringChannel = (GatheringByteChannel) channel;
+            while (written<size) {
+                written += gatheringChannel.write(views);
+            }
+        } else {
+            for (ByteBuffer view : views) {
+                while (view.hasRemaining()) {
+                    written += channel.write(view);
+                }
+            }
+        }
+        return written;
+    }
+
+    /** Copies the body to the stream through a small pooled heap buffer. */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        InputStream inputStream = newStream(views());
+        ByteBuffer chunk = ByteBufferPool.DEFAULT.acquire(8192);
+        try {
+            byte[] bytes = chunk.array();
+            int n;
+            while ((n = inputStream.read(bytes, chunk.arrayOffset(), chunk.capacity()))!=-1) {
+                outputStream.write(bytes, chunk.arrayOffset(), n);
+            }
+        } finally {
+            ByteBufferPool.DEFAULT.release(chunk);
+        }
+    }
+
+    /** @return a stream reading the body, valid until the body is released */
+    public InputStream openStream() {
+        return newStream(buffers());
+    }
+
+    private static InputStream newStream(final ByteBuffer[] views) {
+        return new InputStream() {
+            private int index = 0;
+
+            private ByteBuffer current() {
+                while (index<views.length && !views[index].hasRemaining()) {
+                    index++;
+                }
+                return index<views.length ? views[index] : null;
+            }
+
+            @Override
+            public int read() {
+                ByteBuffer view = current();
+                return view==null ? -1 : view.get() & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (length==0) {
+                    return 0;
+                }
+                ByteBuffer view = current();
+                if (view==null) {
+                    return -1;
+                }
+                int n = Math.min(length, view.remaining());
+                view.get(bytes, offset, n);
+                return n;
+            }
+        };
+    }
+
+    public int referenceCount() {
+        return referenceCount.get();
+    }
+
+    public OffHeapBody retain() {
+        while (true) {
+            int count = referenceCount.get();
+            if (count<=0) {
+                throw new IllegalStateException("OffHeapBody has already been released.");
+            }
+            if (referenceCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /** @return true if this was the last reference and the memory has been given back */
+    public boolean release() {
+        while (true) {
+            int count = referenceCount.get();
+            if (count<=0) {
+                throw new IllegalStateException("OffHeapBody has already been released.");
+            }
+            if (referenceCount.compareAndSet(count, count - 1)) {
+                if (count==1) {
+                    if (tracker!=null) {
+                        tracker.close();
+                    }
+                    segments.recycle();
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    private ByteBuffer[] checkNotReleased() {
+        ByteBuffer[] buffers = segments.buffers;
+        if (buffers==null || referenceCount.get()<=0) {
+            throw new IllegalStateException("OffHeapBody has already been released.");
+        }
+        return buffers;
+    }
+
+    /** Gives the memory back, also used by the leak detector, so it must not reference the body */
+    private static final class Segments implements Runnable {
+        private final ByteBufferPool pool;
+        private volatile ByteBuffer[] buffers;
+        /** Views handed out may outlive a leaked body, the views used inside writeTo() can't */
+        private volatile boolean viewsHandedOut;
+
+        Segments(ByteBufferPool pool, ByteBuffer[] buffers) {
+            this.pool = pool;
+            this.buffers = buffers;
+        }
+
+        /** Reclaims a leaked body */
+        @Override
+        public void run() {
+            if (viewsHandedOut) {
+                // the segments are freed by the garbage collector together with the last view
+                buffers = null;
+            } else {
+                recycle();
+            }
+        }
+
+        void recycle() {
+            ByteBuffer[] buffers = this.buffers;
+            this.buffers = null;
+            if (buffers!=null) {
+                for (ByteBuffer buffer : buffers) {
+                    pool.release(buffer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package de.mhellmann.net.fluenthttp;
+
+/**
+ * RFC 3986 percent-encoding of UTF-8 in a single pass straight into a StringBuilder,
+ * without the intermediate byte arrays and Strings of URLEncoder.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+final class PercentEncoder {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    /** unreserved and sub-delims, ':' and '@', but not '/' so a value stays one path segment */
+    private static final boolean[] PATH_SEGMENT = new boolean[128];
+    /** unreserved only, so a value can't end a query parameter, e.g. with '&', '=' or '+' */
+    private static final boolean[] QUERY_VALUE = new boolean[128];
+
+    static {
+        for (char c = 'a'; c<='z'; c++) {
+            PATH_SEGMENT[c] = true;
+            PATH_SEGMENT[Character.toUpperCase(c)] = true;
+        }
+        for (char c = '0'; c<='9'; c++) {
+            PATH_SEGMENT[c] = true;
+        }
+        for (char c : "-._~".toCharArray()) {
+            PATH_SEGMENT[c] = true;
+        }
+        System.arraycopy(PATH_SEGMENT, 0, QUERY_VALUE, 0, PATH_SEGMENT.length);
+        for (char c : "!$&'()*+,;=:@".toCharArray()) {
+            PATH_SEGMENT[c] = true;
+        }
+    }
+
+    private PercentEncoder() {
+    }
+
+    static void appendPathSegment(StringBuilder target, CharSequence value) {
+        append(target, value, PATH_SEGMENT);
+    }
+
+    static void appendQueryValue(StringBuilder target, CharSequence value) {
+        append(target, value, QUERY_VALUE);
+    }
+
+    private static void append(StringBuilder target, CharSequence value, boolean[] allowed) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c<128) {
+                if (allowed[c]) {
+                    target.append(c);
+                } else {
+                    appendByte(target, c);
+                }
+            } else if (c<0x800) {
+                appendByte(target, 0xC0 | (c >> 6));
+                appendByte(target, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1<length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendByte(target, 0xF0 | (codePoint >> 18));
+                appendByte(target, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(target, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(target, 0x80 | (codePoint & 0x3F));
+            } else if (c>=Character.MIN_SURROGATE && c<=Character.MAX_SURROGATE) {
+                // unpaired surrogate, encoded as '?' like String.getBytes() does
+                appendByte(target, '?');
+            } else {
+                appendByte(target, 0xE0 | (c >> 12));
+                appendByte(target, 0x80 | ((c >> 6) & 0x3F));
+                appendByte(target, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static void appendByte(StringBuilder target, int b) {
+        target.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+}
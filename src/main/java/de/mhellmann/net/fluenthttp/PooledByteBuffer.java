@@ -0,0 +1,53 @@
+package de.mhellmann.net.fluenthttp;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A response body in a ByteBuffer borrowed from a ByteBufferPool, see FluentHttpMethodBuilder.asBuffer().
+ * Call release() (or close()) when done, afterwards the buffer must not be used anymore.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class PooledByteBuffer implements Closeable {
+
+    private final ByteBufferPool pool;
+    private ByteBuffer buffer;
+
+    PooledByteBuffer(ByteBufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return the body between position and limit
+     * @throws IllegalStateException if already released
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer buffer = this.buffer;
+        if (buffer==null) {
+            throw new IllegalStateException("PooledByteBuffer has already been released.");
+        }
+        return buffer;
+    }
+
+    public int size() {
+        return getBuffer().remaining();
+    }
+
+    /** Gives the buffer back to its pool, calling it twice does no harm. */
+    public void release() {
+        ByteBuffer buffer = this.buffer;
+        this.buffer = null;
+        if (buffer!=null) {
+            pool.release(buffer);
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,245 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends the requests of a publisher with at most maxConcurrency at a time and emits their responses in the order
+ * they complete, see FluentHttpClient.execute(Publisher).
+ *
+ * Requests in flight plus responses waiting for demand never exceed maxConcurrency, so a slow subscriber stops
+ * requests being taken from upstream and memory stays bounded by maxConcurrency responses.
+ * A failed request is emitted as FluentHttpResponse with its exception, only an upstream error ends the stream,
+ * after the requests in flight have been emitted.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+final class ResponsePublisher implements Publisher<FluentHttpResponse> {
+
+    private final Publisher<? extends FluentHttpMethodBuilder> requests;
+    private final Executor executor;
+    private final int maxConcurrency;
+
+    ResponsePublisher(Publisher<? extends FluentHttpMethodBuilder> requests, Executor executor, int maxConcurrency) {
+        if (maxConcurrency<1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.requests = requests;
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super FluentHttpResponse> subscriber) {
+        if (subscriber==null) {
+            throw new NullPointerException("subscriber");
+        }
+        Batch batch = new Batch(subscriber);
+        subscriber.onSubscribe(batch);
+        requests.subscribe(batch);
+    }
+
+    /** Subscription of the downstream subscriber and subscriber of the upstream requests at the same time */
+    private final class Batch implements Subscription, Subscriber<FluentHttpMethodBuilder> {
+
+        private final Subscriber<? super FluentHttpResponse> downstream;
+        private final AtomicReference<Subscription> upstream = new AtomicReference<Subscription>();
+        private final AtomicLong demand = new AtomicLong();
+        /** Number of signals to handle, only one thread at a time runs the drain loop and talks to downstream */
+        private final AtomicInteger wip = new AtomicInteger();
+        private final Queue<FluentHttpResponse> responses = new ConcurrentLinkedQueue<FluentHttpResponse>();
+        // requested from upstream but not received + executing + waiting for demand <= maxConcurrency
+        private final AtomicInteger upstreamPending = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger waiting = new AtomicInteger();
+        private volatile boolean upstreamDone = false;
+        private volatile Throwable upstreamError;
+        private volatile boolean cancelled = false;
+        private volatile IllegalArgumentException invalidRequest;
+
+        // only used by the draining thread
+        private boolean terminated = false;
+
+        private Batch(Subscriber<? super FluentHttpResponse> downstream) {
+            this.downstream = downstream;
+        }
+
+        //#############################################################
+        //### downstream subscription
+        //#############################################################
+
+        @Override
+        public void request(long n) {
+            if (n<=0) {
+                invalidRequest = new IllegalArgumentException("Rule 3.9: request(" + n + ") must be positive.");
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                } while (!demand.compareAndSet(current, current + n<0 ? Long.MAX_VALUE : current + n));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        //#############################################################
+        //### upstream subscriber
+        //#############################################################
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            if (!upstream.compareAndSet(null, subscription)) {
+                // rule 2.5: only one upstream subscription
+                subscription.cancel();
+                return;
+            }
+            if (cancelled) {
+                subscription.cancel();
+            }
+            drain();
+        }
+
+        @Override
+        public void onNext(final FluentHttpMethodBuilder request) {
+            inFlight.incrementAndGet();
+            upstreamPending.decrementAndGet();
+            if (cancelled) {
+                inFlight.decrementAndGet();
+                return;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        completed(send(request));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                completed(new FluentHttpResponse(request, new IOException("Request to " + request.url + " rejected: " + e.getMessage())));
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            upstreamError = throwable;
+            upstreamDone = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            upstreamDone = true;
+            drain();
+        }
+
+        //#############################################################
+        //### internal impls ..
+        //#############################################################
+
+        private FluentHttpResponse send(FluentHttpMethodBuilder request) {
+            try {
+                FluentHttpResponse response = request.asResponse();
+                if (response==null) {
+                    // exceptions are not rethrown, the client has logged it
+                    return new FluentHttpResponse(request, new IOException("Request to " + request.url + " failed, see the log."));
+                }
+                return response;
+            } catch (IOException e) {
+                return new FluentHttpResponse(request, e);
+            } catch (RuntimeException e) {
+                return new FluentHttpResponse(request, new IOException("Request to " + request.url + " failed: " + e, e));
+            }
+        }
+
+        private void completed(FluentHttpResponse response) {
+            // counted as waiting before it stops being in flight, so the sum never drops too early
+            waiting.incrementAndGet();
+            inFlight.decrementAndGet();
+            if (cancelled) {
+                waiting.decrementAndGet();
+            } else {
+                responses.offer(response);
+            }
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement()!=0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!terminated) {
+                    drainOnce();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed!=0);
+        }
+
+        private void drainOnce() {
+            while (!cancelled && invalidRequest==null && demand.get()>0) {
+                FluentHttpResponse response = responses.poll();
+                if (response==null) {
+                    break;
+                }
+                demand.decrementAndGet();
+                downstream.onNext(response);
+                waiting.decrementAndGet();
+            }
+            if (cancelled) {
+                terminate();
+                return;
+            }
+            if (invalidRequest!=null) {
+                terminate();
+                downstream.onError(invalidRequest);
+                return;
+            }
+            if (upstreamDone) {
+                if (inFlight.get()==0 && waiting.get()==0) {
+                    terminated = true;
+                    if (upstreamError==null) {
+                        downstream.onComplete();
+                    } else {
+                        downstream.onError(upstreamError);
+                    }
+                }
+                return;
+            }
+            Subscription subscription = upstream.get();
+            if (subscription!=null) {
+                int free = maxConcurrency - upstreamPending.get() - inFlight.get() - waiting.get();
+                if (free>0) {
+                    upstreamPending.addAndGet(free);
+                    subscription.request(free);
+                }
+            }
+        }
+
+        private void terminate() {
+            terminated = true;
+            responses.clear();
+            Subscription subscription = upstream.get();
+            if (subscription!=null) {
+                subscription.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.AuthenticationException;
+import org.apache.http.auth.Credentials;
+import org.apache.http.client.AuthCache;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The auth schemes of all routes of a FluentHttpClient, shared by its requests through the HttpContext,
+ * so HttpClient's own RequestAuthCache authenticates preemptively and ResponseAuthCache remembers the scheme
+ * a server asked for. A route that challenged with Digest gets Digest right away from then on, without
+ * the 401 round trip, all other routes get Basic.
+ *
+ * Basic schemes cache the Authorization header of the last credentials instead of encoding it for every request.
+ * Unlike BasicAuthCache this one is thread-safe. A cached DigestScheme is shared by concurrent requests,
+ * which may make the server reject a reused nonce, HttpClient then answers the new challenge.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+final class RouteAuthCache implements AuthCache {
+
+    private static final int HTTP_PORT = 80;
+    private static final int HTTPS_PORT = 443;
+
+    private final ConcurrentMap<HttpHost, AuthScheme> schemes = new ConcurrentHashMap<HttpHost, AuthScheme>();
+
+    /** Makes sure the route is authenticated preemptively, with Basic unless it is known to want something else */
+    void preempt(HttpHost host) {
+        if (host==null) {
+            return;
+        }
+        HttpHost route = route(host);
+        if (!schemes.containsKey(route)) {
+            schemes.putIfAbsent(route, new CachedBasicScheme());
+        }
+    }
+
+    @Override
+    public void put(HttpHost host, AuthScheme authScheme) {
+        if (authScheme==null) {
+            return;
+        }
+        if (authScheme instanceof BasicScheme && !(authScheme instanceof CachedBasicScheme)) {
+            authScheme = new CachedBasicScheme();
+        }
+        schemes.put(route(host), authScheme);
+    }
+
+    @Override
+    public AuthScheme get(HttpHost host) {
+        return schemes.get(route(host));
+    }
+
+    @Override
+    public void remove(HttpHost host) {
+        schemes.remove(route(host));
+    }
+
+    @Override
+    public void clear() {
+        schemes.clear();
+    }
+
+    /** Same key with and without the default port */
+    private static HttpHost route(HttpHost host) {
+        if (host.getPort()>0) {
+            return host;
+        }
+        int port = "https".equalsIgnoreCase(host.getSchemeName()) ? HTTPS_PORT : HTTP_PORT;
+        return new HttpHost(host.getHostName(), port, host.getSchemeName());
+    }
+
+    /** Preemptive Basic, encoding the header only when the credentials change */
+    static final class CachedBasicScheme extends BasicScheme {
+
+        private volatile CachedHeader cachedHeader;
+
+        @Override
+        public Header authenticate(Credentials credentials, HttpRequest request, HttpContext context) throws AuthenticationException {
+            CachedHeader cachedHeader = this.cachedHeader;
+            if (cachedHeader==null || !cachedHeader.isFor(credentials)) {
+                cachedHeader = new CachedHeader(credentials, super.authenticate(credentials, request, context));
+                this.cachedHeader = cachedHeader;
+            }
+            return cachedHeader.header;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public Header authenticate(Credentials credentials, HttpRequest request) throws AuthenticationException {
+            return authenticate(credentials, request, null);
+        }
+    }
+
+    private static final class CachedHeader {
+
+        private final String name;
+        private final String password;
+        private final Header header;
+
+        private CachedHeader(Credentials credentials, Header header) {
+            this.name = credentials.getUserPrincipal().getName();
+            this.password = credentials.getPassword();
+            this.header = header;
+        }
+
+        /** UsernamePasswordCredentials.equals() ignores the password */
+        private boolean isFor(Credentials credentials) {
+            return name.equals(credentials.getUserPrincipal().getName())
+                    && (password==null ? credentials.getPassword()==null : password.equals(credentials.getPassword()));
+        }
+    }
+}
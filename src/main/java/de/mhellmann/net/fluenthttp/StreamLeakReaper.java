@@ -0,0 +1,171 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Finds streams returned by asStream() which have been neither read nor closed for longer than the idle timeout,
+ * aborts their requests so the connections are freed, counts and logs them. A forgotten close() would otherwise
+ * keep the connection forever and, with pooling, starve the pool.
+ *
+ * A stream blocked in read() is never reaped, the socket timeout takes care of a slow server.
+ * The allocation site is recorded for one in n streams if debug logging is enabled, as it costs a stack trace.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+final class StreamLeakReaper implements Runnable {
+
+    private static final long MIN_SCAN_INTERVAL_MILLIS = 10;
+    private static final long MAX_SCAN_INTERVAL_MILLIS = 1000;
+
+    private final Logger logger;
+    private final long idleTimeoutNanos;
+    private final int allocationSiteSampleRate;
+    private final Set<TrackedStream> streams = Collections.newSetFromMap(new ConcurrentHashMap<TrackedStream, Boolean>());
+    private final AtomicLong leaks = new AtomicLong();
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+
+    StreamLeakReaper(Logger logger, long idleTimeoutMillis, int allocationSiteSampleRate) {
+        this.logger = logger;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.allocationSiteSampleRate = allocationSiteSampleRate;
+    }
+
+    /** @return the stream to hand out instead of a plain EofSensorInputStream */
+    InputStream track(InputStream inputStream, EofSensorWatcher watcher, HttpRequestBase httpMethod, String url) {
+        Throwable allocationSite = null;
+        if (allocationSiteSampleRate>0 && logger.isDebugEnabled()
+                && sampleCounter.getAndIncrement() % allocationSiteSampleRate==0) {
+            allocationSite = new Throwable("Stream of " + url + " opened in thread " + Thread.currentThread().getName());
+        }
+        TrackedStream trackedStream = new TrackedStream(inputStream, watcher, httpMethod, url, allocationSite);
+        streams.add(trackedStream);
+        startThread();
+        return trackedStream;
+    }
+
+    long getLeakCount() {
+        return leaks.get();
+    }
+
+    void shutdown() {
+        Thread reaper = thread.getAndSet(null);
+        if (reaper!=null) {
+            reaper.interrupt();
+        }
+    }
+
+    private void startThread() {
+        if (thread.get()==null) {
+            Thread reaper = new Thread(this, "FluentHttpClient-stream-reaper");
+            reaper.setDaemon(true);
+            if (thread.compareAndSet(null, reaper)) {
+                reaper.start();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long scanIntervalMillis = Math.max(MIN_SCAN_INTERVAL_MILLIS,
+                Math.min(MAX_SCAN_INTERVAL_MILLIS, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 4));
+        while (thread.get()==Thread.currentThread()) {
+            try {
+                Thread.sleep(scanIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            reapIdleStreams();
+        }
+    }
+
+    void reapIdleStreams() {
+        long now = System.nanoTime();
+        for (TrackedStream stream : streams) {
+            if (!stream.reading && now - stream.lastActivityNanos>idleTimeoutNanos && streams.remove(stream)) {
+                leaks.incrementAndGet();
+                if (stream.allocationSite==null) {
+                    logger.error("LEAK: stream of {} was neither read nor closed for {} ms, aborting its connection. "
+                            + "Enable debug logging to see where it was opened.", stream.url, TimeUnit.NANOSECONDS.toMillis(now - stream.lastActivityNanos));
+                } else {
+                    logger.error("LEAK: stream of {} was neither read nor closed for {} ms, aborting its connection. Opened at:",
+                            stream.url, TimeUnit.NANOSECONDS.toMillis(now - stream.lastActivityNanos), stream.allocationSite);
+                }
+                // abort() is meant to be called from other threads, the owner gets an IOException on its next read
+                stream.httpMethod.abort();
+            }
+        }
+    }
+
+    /** EofSensorInputStream recording when it was last used, released from tracking at EOF or close */
+    private final class TrackedStream extends EofSensorInputStream {
+
+        private final HttpRequestBase httpMethod;
+        private final String url;
+        private final Throwable allocationSite;
+        private volatile long lastActivityNanos = System.nanoTime();
+        private volatile boolean reading = false;
+
+        private TrackedStream(InputStream in, EofSensorWatcher watcher, HttpRequestBase httpMethod, String url, Throwable allocationSite) {
+            super(in, watcher);
+            this.httpMethod = httpMethod;
+            this.url = url;
+            this.allocationSite = allocationSite;
+        }
+
+        @Override
+        public int read() throws IOException {
+            reading = true;
+            try {
+                return released(super.read());
+            } finally {
+                reading = false;
+                lastActivityNanos = System.nanoTime();
+            }
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            reading = true;
+            try {
+                return released(super.read(bytes, offset, length));
+            } finally {
+                reading = false;
+                lastActivityNanos = System.nanoTime();
+            }
+        }
+
+        @Override
+        public int read(byte[] bytes) throws IOException {
+            return read(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            streams.remove(this);
+            super.close();
+        }
+
+        private int released(int n) {
+            if (n==-1) {
+                // the connection is released at EOF, even if the caller never closes
+                streams.remove(this);
+            }
+            return n;
+        }
+    }
+}
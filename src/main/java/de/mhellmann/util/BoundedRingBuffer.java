@@ -0,0 +1,97 @@
+package de.mhellmann.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and consumers based on a ring buffer
+ * with a sequence number per slot (see Dmitry Vyukov's bounded MPMC queue).
+ *
+ * offer() never blocks but returns false if the buffer is full, so the caller decides
+ * whether to drop the element or to retry.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class BoundedRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /** @param capacity is rounded up to the next power of two */
+    public BoundedRingBuffer(int capacity) {
+        if (capacity<1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size<capacity) {
+            size <<= 1;
+        }
+        buffer = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    public boolean offer(E element) {
+        if (element==null) {
+            throw new NullPointerException("element");
+        }
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff==0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(index, element);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff<0) {
+                // the consumers did not yet free this slot: full
+                return false;
+            }
+        }
+    }
+
+    /** @return the oldest element or null if the buffer is empty */
+    public E poll() {
+        while (true) {
+            long pos = head.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff==0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E element = buffer.get(index);
+                    buffer.lazySet(index, null);
+                    sequences.set(index, pos + mask + 1);
+                    return element;
+                }
+            } else if (diff<0) {
+                // the producers did not yet fill this slot: empty
+                return null;
+            }
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /** Only a snapshot while producers and consumers are running */
+    public int size() {
+        long size = tail.get() - head.get();
+        return size<0 ? 0 : (int) Math.min(size, capacity());
+    }
+
+    public boolean isEmpty() {
+        return size()==0;
+    }
+}
@@ -1,10 +1,22 @@
 package de.mhellmann.util;
 
 import org.apache.log4j.*;
+import org.apache.log4j.helpers.OnlyOnceErrorHandler;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.ErrorHandler;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * - Allows adding a ConsoleAppender to given slf4j or log4j instances for debug and development purposes.
  * - Allows to programmatically change the log level on slf4j or log4j instances.
+ * - Allows adding an asynchronous ConsoleAppender, so logging threads never wait for System.out.
  *
  * Date: 20.04.2014.
  * 
@@ -16,6 +28,9 @@ public final class Log4JUtils {
 
     private static final Logger LOG = Logger.getLogger(Log4JUtils.class);
 
+    /** Not synchronized, a virtual thread logging the info below would pin its carrier thread */
+    private static final Lock CONFIGURATION_LOCK = new ReentrantLock();
+
     // Setting SYSTEM_OUT_LOGGING_ENABLED = false, will remove all system outs for all Loggers !!
     public static boolean systemOutLoggingEnabled = true;
 
@@ -56,7 +71,8 @@ public final class Log4JUtils {
 
     public static void addConsoleAppender(Logger logger, Level level) {
         if (systemOutLoggingEnabled && logger != null && logger.getAppender(CONSOLE_APPENDER_NAME) == null) {
-            synchronized (Log4JUtils.class) {
+            CONFIGURATION_LOCK.lock();
+            try {
                 if (logger.getAppender(CONSOLE_APPENDER_NAME)==null) {
                     MyConsoleAppender appender = new MyConsoleAppender();
                     logger.addAppender(appender);
@@ -65,10 +81,68 @@ public final class Log4JUtils {
                         logger.setLevel(level);
                     }
                 }
+            } finally {
+                CONFIGURATION_LOCK.unlock();
             }
         }
     }
 
+    /** What an asynchronous appender does with new events while its buffer is full */
+    public enum OverflowPolicy {
+        /** Drop the event and count it, the logging thread never waits */
+        DROP,
+        /** Wait until the writer thread freed a slot, no event gets lost */
+        BLOCK
+    }
+
+    public static final int DEFAULT_ASYNC_BUFFER_SIZE = 8192;
+
+    public static void addAsyncConsoleAppender(org.slf4j.Logger slf4jLogger, Level level) {
+        addAsyncConsoleAppender(slf4jLogger, level, DEFAULT_ASYNC_BUFFER_SIZE, OverflowPolicy.DROP);
+    }
+
+    public static void addAsyncConsoleAppender(org.slf4j.Logger slf4jLogger, Level level, int bufferSize, OverflowPolicy overflowPolicy) {
+        if (slf4jLogger!=null) {
+            addAsyncConsoleAppender(Logger.getLogger(slf4jLogger.getName()), level, bufferSize, overflowPolicy);
+        }
+    }
+
+    /**
+     * Like addConsoleAppender(), but the events are handed over to a bounded lock-free ring buffer
+     * and written to System.out by a background thread.
+     * The appender itself takes no lock, but log4j 1.2 calls the appenders of a logger while holding that logger's
+     * monitor, so threads logging through the same logger still take turns there. With OverflowPolicy.BLOCK a full
+     * buffer therefore stalls every thread logging through that logger, and pins virtual threads while waiting.
+     */
+    public static void addAsyncConsoleAppender(Logger logger, Level level, int bufferSize, OverflowPolicy overflowPolicy) {
+        if (systemOutLoggingEnabled && logger != null && logger.getAppender(CONSOLE_APPENDER_NAME) == null) {
+            CONFIGURATION_LOCK.lock();
+            try {
+                if (logger.getAppender(CONSOLE_APPENDER_NAME)==null) {
+                    MyAsyncConsoleAppender appender = new MyAsyncConsoleAppender(bufferSize, overflowPolicy);
+                    logger.addAppender(appender);
+                    LOG.info("LOG4J: Added async ConsoleAppender for " + logger.getName() + " to enable System.out logging for development purposes.");
+                    if (level!=null) {
+                        logger.setLevel(level);
+                    }
+                }
+            } finally {
+                CONFIGURATION_LOCK.unlock();
+            }
+        }
+    }
+
+    /** @return the number of events dropped by the async console appender of this logger, 0 if there is none */
+    public static long getDroppedEventCount(org.slf4j.Logger slf4jLogger) {
+        if (slf4jLogger!=null) {
+            Appender appender = Logger.getLogger(slf4jLogger.getName()).getAppender(CONSOLE_APPENDER_NAME);
+            if (appender instanceof MyAsyncConsoleAppender) {
+                return ((MyAsyncConsoleAppender) appender).getDroppedEventCount();
+            }
+        }
+        return 0;
+    }
+
     public static void setConsoleLogLevel(org.slf4j.Logger slf4jLogger, Level level) {
         if (slf4jLogger!=null) {
             Logger logger = Logger.getLogger(slf4jLogger.getName());
@@ -82,9 +156,11 @@ public final class Log4JUtils {
         if (slf4jLogger!=null) {
             Logger logger = Logger.getLogger(slf4jLogger.getName());
             if (logger!=null) {
-                MyConsoleAppender consoleAppender = (MyConsoleAppender)logger.getAppender(CONSOLE_APPENDER_NAME);
-                if (consoleAppender!=null) {
-                    consoleAppender.setThreshold(level);
+                Appender consoleAppender = logger.getAppender(CONSOLE_APPENDER_NAME);
+                if (consoleAppender instanceof AppenderSkeleton) {
+                    ((AppenderSkeleton) consoleAppender).setThreshold(level);
+                } else if (consoleAppender instanceof MyAsyncConsoleAppender) {
+                    ((MyAsyncConsoleAppender) consoleAppender).setThreshold(level);
                 }
             }
         }
@@ -99,4 +175,200 @@ public final class Log4JUtils {
         }
     }
 
+    /**
+     * Implements Appender itself instead of extending AppenderSkeleton, whose synchronized doAppend()
+     * would serialize all logging threads on the appender before they reach the ring buffer.
+     */
+    private static final class MyAsyncConsoleAppender implements Appender {
+
+        private static final long FULL_PARK_NANOS = 10000L;
+
+        private final BoundedRingBuffer<LoggingEvent> buffer;
+        private final OverflowPolicy overflowPolicy;
+        private final AtomicLong droppedEvents = new AtomicLong();
+        private final PrintStream out = System.out;
+        private final Thread writer;
+        private volatile String name;
+        private volatile Layout layout;
+        private volatile Priority threshold;
+        private volatile ErrorHandler errorHandler = new OnlyOnceErrorHandler();
+        /** Copy-on-write, the filters are only changed while configuring */
+        private volatile Filter[] filters = new Filter[0];
+        private volatile boolean closing = false;
+        /** The writer found the buffer empty and parks until the next append() unparks it */
+        private volatile boolean idle = false;
+
+        public MyAsyncConsoleAppender(int bufferSize, OverflowPolicy overflowPolicy) {
+            this.buffer = new BoundedRingBuffer<LoggingEvent>(bufferSize);
+            this.overflowPolicy = overflowPolicy==null ? OverflowPolicy.DROP : overflowPolicy;
+            setLayout(new PatternLayout("%p %t %m%n"));
+            setName(CONSOLE_APPENDER_NAME);
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeEvents();
+                }
+            }, "Log4JUtils-" + CONSOLE_APPENDER_NAME);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        public void doAppend(LoggingEvent event) {
+            if (closing || !isAsSevereAsThreshold(event.getLevel())) {
+                return;
+            }
+            for (Filter filter : filters) {
+                int decision = filter.decide(event);
+                if (decision==Filter.DENY) {
+                    return;
+                } else if (decision==Filter.ACCEPT) {
+                    break;
+                }
+            }
+            // capture everything depending on the logging thread before handing the event over
+            event.getThreadName();
+            event.getNDC();
+            event.getMDCCopy();
+            event.getRenderedMessage();
+            event.getThrowableStrRep();
+
+            while (!buffer.offer(event)) {
+                if (overflowPolicy==OverflowPolicy.DROP || closing) {
+                    droppedEvents.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+            if (idle) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        /**
+         * Parks without timeout while there is nothing to write. The writer announces it is idle before checking
+         * the buffer a last time, and append() checks idle after offering, so no event is left behind.
+         */
+        private void writeEvents() {
+            while (!closing || !buffer.isEmpty()) {
+                LoggingEvent event = buffer.poll();
+                if (event!=null) {
+                    write(event);
+                    continue;
+                }
+                out.flush();
+                idle = true;
+                if (buffer.isEmpty() && !closing) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+            out.flush();
+        }
+
+        private void write(LoggingEvent event) {
+            Layout layout = this.layout;
+            try {
+                out.print(layout.format(event));
+                if (layout.ignoresThrowable()) {
+                    String[] throwableLines = event.getThrowableStrRep();
+                    if (throwableLines!=null) {
+                        for (String line : throwableLines) {
+                            out.println(line);
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                // keeps the writer thread alive for the next events
+                errorHandler.error("Failed to write event", e, ErrorCode.WRITE_FAILURE, event);
+            }
+        }
+
+        public long getDroppedEventCount() {
+            return droppedEvents.get();
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (droppedEvents.get()>0) {
+                out.println("LOG4J: " + CONSOLE_APPENDER_NAME + " dropped " + droppedEvents.get() + " events because its buffer was full.");
+            }
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return true;
+        }
+
+        private boolean isAsSevereAsThreshold(Priority priority) {
+            Priority threshold = this.threshold;
+            return threshold==null || priority.isGreaterOrEqual(threshold);
+        }
+
+        public void setThreshold(Priority threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public synchronized void addFilter(Filter filter) {
+            Filter[] filters = new Filter[this.filters.length + 1];
+            System.arraycopy(this.filters, 0, filters, 0, this.filters.length);
+            filters[this.filters.length] = filter;
+            if (this.filters.length>0) {
+                this.filters[this.filters.length - 1].setNext(filter);
+            }
+            this.filters = filters;
+        }
+
+        @Override
+        public Filter getFilter() {
+            Filter[] filters = this.filters;
+            return filters.length==0 ? null : filters[0];
+        }
+
+        @Override
+        public synchronized void clearFilters() {
+            this.filters = new Filter[0];
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Layout getLayout() {
+            return layout;
+        }
+
+        @Override
+        public void setLayout(Layout layout) {
+            this.layout = layout;
+        }
+
+        @Override
+        public ErrorHandler getErrorHandler() {
+            return errorHandler;
+        }
+
+        @Override
+        public void setErrorHandler(ErrorHandler errorHandler) {
+            if (errorHandler!=null) {
+                this.errorHandler = errorHandler;
+            }
+        }
+    }
+
 }
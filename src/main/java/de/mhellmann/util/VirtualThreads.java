@@ -0,0 +1,97 @@
+package de.mhellmann.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Virtual threads (Java 21+) looked up by reflection, so the code still compiles and runs on older JVMs,
+ * where daemon platform threads are used instead. The lookup is probed once by creating a factory and an executor,
+ * so Java 19 and 20 without --enable-preview fall back to platform threads as well.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builderName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            // Java 19 and 20 have the methods as preview API, which throws without --enable-preview
+            ThreadFactory probe = (ThreadFactory) builderFactory.invoke(builderName.invoke(ofVirtual.invoke(null), "VirtualThreads-probe-", 1L));
+            ((ExecutorService) newThreadPerTaskExecutor.invoke(null, probe)).shutdown();
+        } catch (Exception e) {
+            // before Java 21, or a preview without --enable-preview
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return OF_VIRTUAL!=null;
+    }
+
+    /** @return a factory for virtual threads named prefix + number, or for daemon platform threads before Java 21 */
+    public static ThreadFactory newThreadFactory(String namePrefix) {
+        if (OF_VIRTUAL!=null) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 1L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (Exception e) {
+                throw new IllegalStateException("Can't create virtual threads", e);
+            }
+        }
+        return newDaemonThreadFactory(namePrefix);
+    }
+
+    /** @return a factory for daemon platform threads named prefix + number */
+    public static ThreadFactory newDaemonThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @return an executor starting a new virtual thread per task,
+     *         or a cached pool of daemon platform threads before Java 21
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        if (OF_VIRTUAL!=null) {
+            try {
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, newThreadFactory(namePrefix));
+            } catch (Exception e) {
+                throw new IllegalStateException("Can't create virtual threads", e);
+            }
+        }
+        return Executors.newCachedThreadPool(newDaemonThreadFactory(namePrefix));
+    }
+}
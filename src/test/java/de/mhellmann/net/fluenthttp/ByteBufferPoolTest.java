@@ -0,0 +1,144 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.log4j.Level;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public class ByteBufferPoolTest {
+
+    @Test
+    public void testAcquireRoundsUpToSizeClassAndReuses() {
+        ByteBufferPool pool = new ByteBufferPool(false);
+        ByteBuffer buffer = pool.acquire(3000);
+        assertEquals("Size class", 4096, buffer.capacity());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        ByteBuffer reused = pool.acquire(4000);
+        assertSame("Buffer not reused", buffer, reused);
+        assertEquals("Reused buffer not cleared", 0, reused.position());
+    }
+
+    @Test
+    public void testBuffersBiggerThanMaxAreNotPooled() {
+        ByteBufferPool pool = new ByteBufferPool(true, 64 * 1024, 1024 * 1024);
+        ByteBuffer buffer = pool.acquire(100 * 1000);
+        assertTrue("Direct", buffer.isDirect());
+        assertEquals("Exact size", 100 * 1000, buffer.capacity());
+        pool.release(buffer);
+        assertNotSame("Unpooled buffer reused", buffer, pool.acquire(100 * 1000));
+    }
+
+    @Test
+    public void testEntityReaderWithUnknownAndWrongContentLength() throws IOException {
+        ByteBufferPool pool = new ByteBufferPool(false);
+        byte[] body = new byte[50000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        assertArrayEquals("Unknown length", body, EntityReader.toByteArray(new ByteArrayInputStream(body), -1, pool));
+        assertArrayEquals("Exact length", body, EntityReader.toByteArray(new ByteArrayInputStream(body), body.length, pool));
+        assertArrayEquals("Too short length", body, EntityReader.toByteArray(new ByteArrayInputStream(body), 100, pool));
+        assertThat("Too long length", EntityReader.toByteArray(new ByteArrayInputStream(body), 60000, pool).length, is(body.length));
+
+        PooledByteBuffer pooled = EntityReader.toPooledBuffer(new ByteArrayInputStream(body), -1, pool);
+        assertEquals("Pooled size", body.length, pooled.size());
+        assertEquals("Pooled content", body[4711], pooled.getBuffer().get(4711));
+        pooled.release();
+        pooled.release();
+    }
+
+    @Test
+    public void testOffHeapBodySegmentsAndReferenceCount() throws IOException {
+        ByteBufferPool pool = new ByteBufferPool(true, 4096, 64 * 1024);
+        byte[] body = new byte[10000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        OffHeapBody offHeapBody = EntityReader.toOffHeapBody(new ByteArrayInputStream(body), -1, pool, null);
+        assertEquals("Size", body.length, offHeapBody.size());
+        assertThat("Segments", offHeapBody.buffers().length, is(3));
+        assertTrue("Read-only", offHeapBody.buffers()[0].isReadOnly());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        offHeapBody.writeTo(outputStream);
+        assertArrayEquals("Content", body, outputStream.toByteArray());
+
+        assertFalse("Released too early", offHeapBody.retain().release());
+        assertTrue("Not released", offHeapBody.release());
+        try {
+            offHeapBody.buffers();
+            fail("Released body still readable");
+        } catch (IllegalStateException expected) {
+            // released
+        }
+    }
+
+    @Test
+    public void testLeakedBodyIsOnlyRecycledIfNoViewsWereHandedOut() throws Exception {
+        Logger logger = LoggerFactory.getLogger(ByteBufferPoolTest.class.getName() + ".leaks");
+        // the leak detector only tracks bodies with debug logging enabled
+        org.apache.log4j.Logger.getLogger(logger.getName()).setLevel(Level.DEBUG);
+        byte[] body = new byte[4000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i % 100 + 1);
+        }
+
+        ByteBufferPool viewPool = new ByteBufferPool(true, 4096, 64 * 1024);
+        WeakReference<OffHeapBody> leakedWithView = new WeakReference<OffHeapBody>(
+                EntityReader.toOffHeapBody(new ByteArrayInputStream(body), body.length, viewPool, logger));
+        ByteBuffer view = leakedWithView.get().buffers()[0];
+        awaitCollected(leakedWithView);
+        ByteBuffer acquired = viewPool.acquire(4096);
+        assertFalse("Segment recycled while a view is reachable", startsWith(acquired, body));
+        acquired.put(new byte[4096]);
+        assertTrue("View still reads the body", startsWith(view, body));
+
+        ByteBufferPool pool = new ByteBufferPool(true, 4096, 64 * 1024);
+        WeakReference<OffHeapBody> leaked = new WeakReference<OffHeapBody>(
+                EntityReader.toOffHeapBody(new ByteArrayInputStream(body), body.length, pool, logger));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        leaked.get().writeTo(outputStream);
+        awaitCollected(leaked);
+        assertTrue("Segment of a body without views recycled", startsWith(pool.acquire(4096), body));
+    }
+
+    /** Waits until the body is collected and its leak has been reclaimed */
+    private static void awaitCollected(WeakReference<OffHeapBody> reference) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (reference.get()!=null && System.currentTimeMillis()<deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("Body not collected", reference.get());
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(10);
+            OffHeapBody.LEAK_DETECTOR.reportLeaks();
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        for (byte b : bytes) {
+            if (view.get()!=b) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,1164 @@
+package de.mhellmann.net.fluenthttp;
+
+import de.mhellmann.net.fluenthttp.LocalTestServer.Response;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Offline tests of the pool, retry and timeout paths against LocalTestServer.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public class FluentHttpClientLocalTest {
+
+    private LocalTestServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = LocalTestServer.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void testBasicAuthAndCookies() throws IOException {
+        server.withBasicAuth("/secure", "login", "secret")
+                .when("/secure", Response.ok("welcome").withCookie("session", "4711"));
+        FluentHttpClient client = new FluentHttpClient().withReusingLastCookieStore(true);
+        String content = client.get(server.url("/secure"))
+                .withBaseAuthentication("login", "secret")
+                .withIgnoringCookies(false)
+                .asString();
+        assertEquals("Content", "welcome", content);
+        client.get(server.url("/secure"))
+                .withBaseAuthentication("login", "secret")
+                .withIgnoringCookies(false)
+                .asString();
+        assertThat("Session cookie not sent back", server.getRequests("/secure").get(1).getHeader("Cookie"), containsString("session=4711"));
+    }
+
+    @Test
+    public void testBasicAuthIsPreemptiveWithoutChallenge() throws IOException {
+        server.withBasicAuth("/secure", "login", "secret")
+                .when("/secure", Response.ok("welcome"));
+        FluentHttpClient client = new FluentHttpClient();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Content", "welcome", client.get(server.url("/secure")).withBaseAuthentication("login", "secret").asString());
+        }
+        assertEquals("Requests, no 401 round trips", 3, server.getRequests("/secure").size());
+        try {
+            client.get(server.url("/secure")).withBaseAuthentication("login", "wrong").asString();
+            fail("Wrong password accepted");
+        } catch (FluentHttpClientStatusCodeException e) {
+            assertEquals("Status code", 401, e.getStatusCode());
+        }
+        assertEquals("Cached header replaced", "welcome", client.get(server.url("/secure")).withBaseAuthentication("login", "secret").asString());
+    }
+
+    @Test
+    public void testWireLoggingIsSampledOncePerRequestAndRedacted() throws IOException {
+        server.when("/wire", Response.ok("logged"));
+        server.when("/broken", Response.ok(new byte[1000]).withResetAfter(10));
+        FluentHttpClient client = new FluentHttpClient("wire").withLoggingHeaders().withLoggingSampleRate(2);
+        org.apache.log4j.Logger log4jLogger = org.apache.log4j.Logger.getLogger(FluentHttpClient.class.getName() + ".wire");
+        CapturingAppender appender = new CapturingAppender();
+        log4jLogger.addAppender(appender);
+        log4jLogger.setLevel(Level.DEBUG);
+        try {
+            try {
+                client.get(server.url("/broken")).withBearerToken("secret-token").asBytes();
+                fail("Reset body not reported");
+            } catch (IOException e) {
+                // counted once for sampling, although it failed after the response headers
+            }
+            client.get(server.url("/wire")).withBearerToken("secret-token").asString();
+            client.get(server.url("/wire")).withBearerToken("secret-token").asString();
+        } finally {
+            log4jLogger.removeAppender(appender);
+        }
+        assertEquals("Logged requests, 1 in 2 of 3", 1, appender.count("RequestHeaders: "));
+        assertEquals("Redacted", 1, appender.count(" RequestHeader Authorization = ***"));
+        assertEquals("Token logged", 0, appender.count("secret-token"));
+    }
+
+    @Test
+    public void testBearerTokenIsRenewedAfter401() throws IOException {
+        server.when("/token", Response.ok("{\"access_token\":\"first\",\"expires_in\":3600}").withHeader("Content-Type", "application/json"),
+                Response.ok("{\"access_token\":\"second\",\"expires_in\":3600}").withHeader("Content-Type", "application/json"));
+        server.when("/api", Response.status(401), Response.ok("data"), Response.ok("more data"));
+        FluentHttpClient client = new FluentHttpClient();
+        client.withBearerTokens(FluentHttpTokenProvider.clientCredentials(client, server.url("/token"), "client", "secret", null));
+        try {
+            assertEquals("Content", "data", client.get(server.url("/api")).asString());
+            assertEquals("Content", "more data", client.get(server.url("/api")).asString());
+            assertEquals("Token requests", 2, server.getRequests("/token").size());
+            List<LocalTestServer.RecordedRequest> apiRequests = server.getRequests("/api");
+            assertEquals("First try", "Bearer first", apiRequests.get(0).getHeader("Authorization"));
+            assertEquals("Retry", "Bearer second", apiRequests.get(1).getHeader("Authorization"));
+            assertEquals("Cached", "Bearer second", apiRequests.get(2).getHeader("Authorization"));
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testTokenRefreshIsSingleFlightAndAhead() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        final FluentHttpTokenProvider tokenProvider = new FluentHttpTokenProvider(new FluentHttpTokenProvider.TokenFetcher() {
+            @Override
+            public FluentHttpTokenProvider.Token fetchToken() throws IOException {
+                sleep(200);
+                return new FluentHttpTokenProvider.Token("token" + fetches.incrementAndGet(), 1000);
+            }
+        }).withRefreshAheadMillis(300);
+        try {
+            ExecutorService executorService = Executors.newFixedThreadPool(10);
+            List<Future<String>> tokens = new ArrayList<Future<String>>();
+            for (int i = 0; i < 10; i++) {
+                tokens.add(executorService.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return tokenProvider.getAccessToken();
+                    }
+                }));
+            }
+            for (Future<String> token : tokens) {
+                assertEquals("Token", "token1", token.get());
+            }
+            executorService.shutdown();
+            assertEquals("Fetches", 1, fetches.get());
+            // refreshed in the background 300 ms before expiry, no request has to wait
+            Thread.sleep(1000);
+            assertEquals("Fetches", 2, fetches.get());
+            long startNanos = System.nanoTime();
+            assertEquals("Token", "token2", tokenProvider.getAccessToken());
+            assertThat("Blocked", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), lessThan(100L));
+        } finally {
+            tokenProvider.shutdown();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testRetryAfterConnectionReset() throws IOException {
+        server.when("/flaky", Response.connectionReset(), Response.ok("second try"));
+        String content = new FluentHttpClient().withRetries(3)
+                .get(server.url("/flaky"))
+                .asString();
+        assertEquals("Content", "second try", content);
+        assertEquals("Requests", 2, server.getRequests("/flaky").size());
+    }
+
+    @Test
+    public void testListenerEventsOfRetriedAndFailedRequests() throws IOException {
+        server.when("/flaky", Response.connectionReset(), Response.ok("second try"));
+        server.when("/missing", Response.status(404));
+        EventRecorder events = new EventRecorder();
+        FluentHttpClient client = new FluentHttpClient().withRetries(3).withListener(events);
+
+        assertEquals("Content", "second try", client.get(server.url("/flaky")).asString());
+        assertEquals("Retried request", Arrays.asList("started", "connection", "sent", "retried 1",
+                "connection", "sent", "headers 200", "completed"), events.events);
+
+        events.events.clear();
+        try {
+            client.get(server.url("/missing")).asBytes();
+            fail("404 not reported");
+        } catch (FluentHttpClientStatusCodeException e) {
+            assertEquals("Status code", 404, e.getStatusCode());
+        }
+        assertEquals("Failed request", Arrays.asList("started", "connection", "sent", "headers 404",
+                "failed FluentHttpClientStatusCodeException"), events.events);
+    }
+
+    @Test
+    public void testRetryAfterStatusCode() throws IOException {
+        server.when("/busy", Response.retryAfter(503, 1));
+        try {
+            new FluentHttpClient().get(server.url("/busy")).asBytes();
+            fail("503 not reported");
+        } catch (FluentHttpClientStatusCodeException e) {
+            assertEquals("Status code", 503, e.getStatusCode());
+        }
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void testSocketTimeoutOnSlowResponse() throws IOException {
+        server.when("/slow", Response.ok("late").withDelayMillis(2000));
+        new FluentHttpClient().withSocketTimeoutMillis(200)
+                .get(server.url("/slow"))
+                .asString();
+    }
+
+    @Test
+    public void testGenericMethodsShareThePipeline() throws IOException {
+        server.when("/resource", Response.ok("done").withHeader("Allow", "GET, PUT, PATCH, DELETE, HEAD, OPTIONS"));
+        FluentHttpClient client = new FluentHttpClient();
+        assertEquals("PUT", "done", client.put(server.url("/resource")).withRequestBody("{\"a\":1}", "application/json").asString());
+        assertEquals("PATCH", "done", client.patch(server.url("/resource")).withRequestBody("b=2").asString());
+        assertEquals("DELETE", "done", client.delete(server.url("/resource")).withHeader("X-Reason", "test").asString());
+        assertEquals("HEAD", 200, client.head(server.url("/resource")).asStatusLine().getStatusCode());
+        assertEquals("PROPFIND", 200, client.method("propfind", server.url("/resource")).asStatusLine().getStatusCode());
+        FluentHttpResponse options = client.options(server.url("/resource")).asResponse();
+        assertThat("Allow", options.getHeader("Allow"), containsString("PATCH"));
+        try {
+            client.head(server.url("/resource")).withRequestBody("not allowed").asStatusLine();
+            fail("HEAD with a body sent");
+        } catch (IllegalStateException e) {
+            // HEAD and TRACE must not have a body
+        }
+
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/resource");
+        assertEquals("Requests", 6, requests.size());
+        String[] methods = {"PUT", "PATCH", "DELETE", "HEAD", "PROPFIND", "OPTIONS"};
+        for (int i = 0; i < methods.length; i++) {
+            assertEquals("Method", methods[i], requests.get(i).getMethod());
+        }
+        assertEquals("PUT body", "{\"a\":1}", requests.get(0).getBodyAsString());
+        assertThat("PUT content type", requests.get(0).getHeader("Content-Type"), startsWith("application/json"));
+        assertEquals("PATCH body", "b=2", requests.get(1).getBodyAsString());
+        assertEquals("DELETE header", "test", requests.get(2).getHeader("X-Reason"));
+        assertEquals("DELETE body", 0, requests.get(2).getBody().length);
+    }
+
+    @Test
+    public void testStreamingRequestBodies() throws IOException {
+        server.when("/upload", Response.ok("stored"));
+        byte[] content = new byte[50000];
+        new Random(42).nextBytes(content);
+        File file = File.createTempFile("upload", ".bin");
+        file.deleteOnExit();
+        FileUtils.writeByteArrayToFile(file, content);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(content, 1000, 2000);
+        FluentHttpClient client = new FluentHttpClient();
+
+        // the POST builder keeps its type through all body variants
+        assertEquals("File", "stored", client.post(server.url("/upload")).withRequestBody(file).withParam("ignored", "x").asString());
+        assertEquals("Stream", "stored", client.post(server.url("/upload"))
+                .withRequestBody(new ByteArrayInputStream(content), content.length, "application/x-test").withParam("ignored", "x").asString());
+        assertEquals("Chunked stream", "stored", client.put(server.url("/upload")).withRequestBody(new ByteArrayInputStream(content), -1).asString());
+        assertEquals("ByteBuffer", "stored", client.post(server.url("/upload")).withRequestBody(byteBuffer).withParam("ignored", "x").asString());
+        assertEquals("ByteBuffer sent again", "stored", client.put(server.url("/upload")).withRequestBody(byteBuffer).asString());
+
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/upload");
+        assertArrayEquals("File body", content, requests.get(0).getBody());
+        assertEquals("File length", String.valueOf(content.length), requests.get(0).getHeader("Content-Length"));
+        assertArrayEquals("Stream body", content, requests.get(1).getBody());
+        assertEquals("Stream content type", "application/x-test", requests.get(1).getHeader("Content-Type"));
+        assertArrayEquals("Chunked body", content, requests.get(2).getBody());
+        assertEquals("Unknown length", "chunked", requests.get(2).getHeader("Transfer-Encoding"));
+        assertArrayEquals("ByteBuffer body", Arrays.copyOfRange(content, 1000, 3000), requests.get(3).getBody());
+        assertArrayEquals("ByteBuffer position unchanged", requests.get(3).getBody(), requests.get(4).getBody());
+        assertEquals("ByteBuffer position", 1000, byteBuffer.position());
+    }
+
+    @Test
+    public void testExpectContinueSendsTheBodyAfter100Continue() throws IOException {
+        server.when("/upload", Response.ok("stored"));
+        FluentHttpClient client = new FluentHttpClient();
+
+        long started = System.currentTimeMillis();
+        // the long wait only passes quickly if the body goes out right after the server's 100 Continue
+        assertEquals("PUT", "stored", client.put(server.url("/upload")).withRequestBody("a=1", "text/plain").withExpectContinue(10000).asString());
+        assertEquals("POST", "stored", client.post(server.url("/upload")).withParam("b", "2").withExpectContinue(10000).asString());
+        assertThat("Duration", System.currentTimeMillis() - started, lessThan(5000L));
+        assertEquals("Without handshake", "stored", client.put(server.url("/upload")).withRequestBody("c=3", "text/plain").asString());
+        assertEquals("Without body", "stored", client.delete(server.url("/upload")).withExpectContinue().asString());
+
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/upload");
+        assertEquals("PUT expect", "100-continue", requests.get(0).getHeader("Expect"));
+        assertEquals("PUT body", "a=1", requests.get(0).getBodyAsString());
+        assertEquals("POST expect", "100-continue", requests.get(1).getHeader("Expect"));
+        assertEquals("POST body", "b=2", requests.get(1).getBodyAsString());
+        assertNull("Expect without handshake", requests.get(2).getHeader("Expect"));
+        assertEquals("Body without handshake", "c=3", requests.get(2).getBodyAsString());
+        assertNull("Expect without body", requests.get(3).getHeader("Expect"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testJsonRoundTrip() throws IOException {
+        server.when("/json", Response.ok("{\"name\":\"fluent\",\"tags\":[\"a\",\"b\"],\"count\":2}")
+                .withHeader("Content-Type", "application/json; charset=UTF-8"));
+        Map<String, Object> value = new LinkedHashMap<String, Object>();
+        value.put("name", "fluent");
+        value.put("tags", Arrays.asList("a", "b"));
+        value.put("count", 2);
+        FluentHttpClient client = new FluentHttpClient();
+
+        Map<String, Object> result = client.post(server.url("/json")).withJsonBody(value).as(Map.class);
+        assertEquals("Decoded", value, result);
+        assertEquals("JSON null", "fluent", client.put(server.url("/json")).withJsonBody(null).as(Map.class).get("name"));
+
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/json");
+        assertEquals("Encoded", "{\"name\":\"fluent\",\"tags\":[\"a\",\"b\"],\"count\":2}", requests.get(0).getBodyAsString());
+        assertEquals("Content type", JsonBodyCodec.CONTENT_TYPE, requests.get(0).getHeader("Content-Type"));
+        assertEquals("Size unknown before encoding", "chunked", requests.get(0).getHeader("Transfer-Encoding"));
+        assertEquals("Null body", "null", requests.get(1).getBodyAsString());
+    }
+
+    @Test
+    public void testCodecKnowingTheSizeSendsContentLength() throws IOException {
+        server.when("/text", Response.ok("stored"));
+        BodyCodec<String> codec = new BodyCodec<String>() {
+            private final Charset utf8 = Charset.forName("UTF-8");
+
+            @Override
+            public String decode(InputStream inputStream, Charset charset) throws IOException {
+                return IOUtils.toString(inputStream, charset==null ? utf8 : charset);
+            }
+
+            @Override
+            public void encode(String value, OutputStream outputStream) throws IOException {
+                outputStream.write(value.getBytes(utf8));
+            }
+
+            @Override
+            public long getContentLength(String value) {
+                return value.getBytes(utf8).length;
+            }
+
+            @Override
+            public String getContentType() {
+                return "text/plain; charset=UTF-8";
+            }
+        };
+
+        assertEquals("Decoded", "stored", new FluentHttpClient().put(server.url("/text")).withEncodedBody("gr\u00fc\u00dfe", codec).as(codec));
+
+        LocalTestServer.RecordedRequest request = server.getRequests("/text").get(0);
+        assertEquals("Content length", "7", request.getHeader("Content-Length"));
+        assertNull("Not chunked", request.getHeader("Transfer-Encoding"));
+        assertEquals("Body", "gr\u00fc\u00dfe", new String(request.getBody(), "UTF-8"));
+    }
+
+    @Test
+    public void testMultipartForm() throws IOException {
+        server.when("/form", Response.ok("stored"));
+        byte[] content = new byte[20000];
+        new Random(7).nextBytes(content);
+        File file = File.createTempFile("form", ".bin");
+        file.deleteOnExit();
+        FileUtils.writeByteArrayToFile(file, content);
+        FluentHttpClient client = new FluentHttpClient();
+
+        assertEquals("Known length", "stored", client.post(server.url("/form"))
+                .withParam("a", "1")
+                .withMultipartField("text", "fluent & fast")
+                .withMultipartFile("file", file)
+                .withMultipartStream("stream", "stream.bin", new ByteArrayInputStream(content), content.length, null)
+                .asString());
+        assertEquals("Unknown length", "stored", client.post(server.url("/form"))
+                .withMultipartStream("stream", "stream.bin", new ByteArrayInputStream(content), -1, "application/x-test")
+                .asString());
+
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/form");
+        String contentType = requests.get(0).getHeader("Content-Type");
+        assertThat("Content type", contentType, startsWith("multipart/form-data; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        String body = new String(requests.get(0).getBody(), "ISO-8859-1");
+        assertEquals("Content length", String.valueOf(requests.get(0).getBody().length), requests.get(0).getHeader("Content-Length"));
+        assertThat("Param field", body, containsString("--" + boundary + "\r\nContent-Disposition: form-data; name=\"a\"\r\n"));
+        assertThat("Text field", body, containsString("name=\"text\"\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\nfluent & fast\r\n"));
+        assertThat("File part", body, containsString("name=\"file\"; filename=\"" + file.getName() + "\""));
+        assertThat("File content", body, containsString(new String(content, "ISO-8859-1") + "\r\n--" + boundary + "\r\n"));
+        assertThat("Closing boundary", body, endsWith("\r\n--" + boundary + "--\r\n"));
+        assertEquals("Chunked", "chunked", requests.get(1).getHeader("Transfer-Encoding"));
+        assertThat("Streamed content", new String(requests.get(1).getBody(), "ISO-8859-1"),
+                containsString("Content-Type: application/x-test\r\n\r\n" + new String(content, "ISO-8859-1") + "\r\n"));
+    }
+
+    @Test
+    public void testMultipartContentMatchesTheSentBody() throws IOException {
+        byte[] content = new byte[20000];
+        new Random(11).nextBytes(content);
+        MultipartFormEntity buffered = new MultipartFormEntity();
+        buffered.addField("text", "value");
+        buffered.addStream("stream", "stream.bin", new ByteArrayInputStream(content), content.length, null);
+        MultipartFormEntity piped = new MultipartFormEntity();
+        piped.addField("text", "value");
+        piped.addStream("stream", "stream.bin", new ByteArrayInputStream(content), -1, null);
+
+        byte[] bufferedContent = IOUtils.toByteArray(buffered.getContent());
+        assertEquals("Buffered length", buffered.getContentLength(), bufferedContent.length);
+        byte[] pipedContent = IOUtils.toByteArray(piped.getContent());
+        String boundary = buffered.getContentType().getValue().substring(buffered.getContentType().getValue().indexOf('=') + 1);
+        String pipedBoundary = piped.getContentType().getValue().substring(piped.getContentType().getValue().indexOf('=') + 1);
+        // same parts, only the random boundaries differ
+        assertEquals("Piped content", new String(bufferedContent, "ISO-8859-1").replace(boundary, pipedBoundary),
+                new String(pipedContent, "ISO-8859-1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMultipartFieldMustNotBeNull() {
+        new FluentHttpClient().post(server.url("/form")).withMultipartField("text", null);
+    }
+
+    @Test
+    public void testMultipartFileGrowingBeforeSendingKeepsItsLength() throws IOException {
+        server.when("/form", Response.ok("stored"));
+        File file = File.createTempFile("form", ".txt");
+        file.deleteOnExit();
+        FileUtils.writeStringToFile(file, "first", "UTF-8");
+        FluentHttpPostMethodBuilder post = new FluentHttpClient().post(server.url("/form")).withMultipartFile("file", file);
+        FileUtils.writeStringToFile(file, "first and more", "UTF-8");
+        assertEquals("Content", "stored", post.asString());
+
+        LocalTestServer.RecordedRequest request = server.getRequests("/form").get(0);
+        String contentType = request.getHeader("Content-Type");
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        assertThat("Body cut at the announced length", request.getBodyAsString(), endsWith("\r\n\r\nfirst\r\n--" + boundary + "--\r\n"));
+    }
+
+    @Test
+    public void testMultipartFileMustExist() {
+        FluentHttpPostMethodBuilder post = new FluentHttpClient().post(server.url("/form"));
+        try {
+            post.withMultipartFile("file", new File("does-not-exist.bin"));
+            fail("Missing file accepted");
+        } catch (IllegalArgumentException e) {
+            assertThat("Message", e.getMessage(), containsString("does-not-exist.bin"));
+        }
+        try {
+            post.withMultipartFile("file", null);
+            fail("Null file accepted");
+        } catch (IllegalArgumentException e) {
+            // like a null field
+        }
+    }
+
+    @Test
+    public void testHugeContentLengthWithShortBodyIsNotAllocatedUpFront() throws IOException {
+        byte[] content = new byte[3000];
+        new Random(3).nextBytes(content);
+        // a byte array of this size can never be allocated, trusting the header fails with an OutOfMemoryError
+        long hugeContentLength = Integer.MAX_VALUE - 1;
+        server.when("/short", Response.ok(content).withContentLength(hugeContentLength));
+        FluentHttpClient client = new FluentHttpClient();
+        try {
+            client.get(server.url("/short")).asBytes();
+            fail("Premature end of the body expected");
+        } catch (IOException e) {
+            assertThat("Failure", e.getMessage(), containsString("Premature end"));
+        }
+        try {
+            client.get(server.url("/short")).asBuffer();
+            fail("Premature end of the body expected");
+        } catch (IOException e) {
+            assertThat("Failure", e.getMessage(), containsString("Premature end"));
+        }
+
+        ByteBufferPool pool = new ByteBufferPool(false);
+        assertArrayEquals("Bytes", content, EntityReader.toByteArray(new ByteArrayInputStream(content), hugeContentLength, pool));
+        PooledByteBuffer buffer = EntityReader.toPooledBuffer(new ByteArrayInputStream(content), hugeContentLength, pool);
+        try {
+            assertEquals("Buffered size", content.length, buffer.size());
+            assertThat("Capacity", buffer.getBuffer().capacity(), lessThanOrEqualTo(pool.getMaxBufferSize()));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testCRC32AndDigestsAreComputedWhileReading() throws IOException {
+        String fox = "The quick brown fox jumps over the lazy dog";
+        server.when("/fox", Response.ok(fox)
+                .withHeader("Content-MD5", "nhB9nTcrtoJr2B01QqQZ1g==")
+                .withHeader("Digest", "SHA-256=16j7swfXgJRpypq8sAguT41WUeRtPNt2LQLQvzfJ5ZI="));
+        server.when("/tampered", Response.ok(fox.toUpperCase(Locale.ENGLISH)).withHeader("Content-MD5", "nhB9nTcrtoJr2B01QqQZ1g=="));
+        FluentHttpClient client = new FluentHttpClient();
+
+        FluentHttpMethodBuilder builder = client.get(server.url("/fox")).withDigest("MD5", "SHA-256");
+        assertEquals("CRC32", 0x414fa339L, builder.asCRC32());
+        assertEquals("Body loaded once", fox, builder.asString());
+        assertEquals("CRC32 again", 0x414fa339L, builder.asCRC32());
+        assertEquals("Requests", 1, server.getRequests("/fox").size());
+        assertEquals("MD5", "9e107d9d372bb6826bd81d3542a419d6", builder.getDigest("MD5"));
+        assertEquals("SHA-256", "d7a8fbb307d7809469ca9abcb0082e4f8d5651e46d3cdb762d02d0bf37c9e592", builder.getDigest("SHA-256"));
+
+        // byte by byte
+        FluentHttpMethodBuilder streamed = client.get(server.url("/fox")).withDigest("CRC32", "MD5");
+        InputStream inputStream = streamed.asStream();
+        try {
+            while (inputStream.read()!=-1) {
+                // digested while reading
+            }
+        } finally {
+            inputStream.close();
+        }
+        assertEquals("Streamed CRC32", "414fa339", streamed.getDigest("CRC32"));
+        assertEquals("Streamed MD5", "9e107d9d372bb6826bd81d3542a419d6", streamed.getDigest("MD5"));
+
+        try {
+            client.get(server.url("/tampered")).withDigest("MD5").asCRC32();
+            fail("Digest mismatch expected");
+        } catch (FluentHttpClientDigestException e) {
+            assertEquals("Algorithm", "MD5", e.getAlgorithm());
+        }
+        FluentHttpClient quietClient = new FluentHttpClient().withRethrowingExceptions(false);
+        assertEquals("Mismatch not rethrown", 0, quietClient.get(server.url("/tampered")).withDigest("MD5").asCRC32());
+        assertEquals("Missing not rethrown", 0, quietClient.get(server.url("/missing")).asCRC32());
+        server.when("/empty", Response.status(204));
+        assertEquals("No entity not rethrown", 0, quietClient.get(server.url("/empty")).withDigest("MD5").asCRC32());
+    }
+
+    @Test
+    public void testSegmentedDownloadSendsIfRange() throws IOException {
+        byte[] content = randomBytes(3500000, 1);
+        server.when("/file", Response.resource(content, "\"v1\""));
+        File file = newDownloadFile();
+
+        assertSame("File", file, new FluentHttpClient().get(server.url("/file")).asFile(file).withSegments(3).download());
+
+        assertArrayEquals("Content", content, FileUtils.readFileToByteArray(file));
+        assertFalse("State file deleted", new File(file.getPath() + FluentHttpFileDownload.STATE_FILE_SUFFIX).exists());
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/file");
+        assertEquals("Probe and 3 segments", 4, requests.size());
+        assertEquals("Probe", "bytes=0-0", requests.get(0).getHeader("Range"));
+        assertNull("Probe without If-Range", requests.get(0).getHeader("If-Range"));
+        Set<String> ranges = new HashSet<String>();
+        for (LocalTestServer.RecordedRequest request : requests.subList(1, 4)) {
+            ranges.add(request.getHeader("Range"));
+            assertEquals("If-Range", "\"v1\"", request.getHeader("If-Range"));
+        }
+        assertEquals("Ranges", new HashSet<String>(Arrays.asList("bytes=0-1166665", "bytes=1166666-2333331", "bytes=2333332-3499999")), ranges);
+    }
+
+    @Test
+    public void testInterruptedDownloadResumes() throws IOException {
+        byte[] content = randomBytes(1500000, 2);
+        File file = newDownloadFile();
+        interruptDownload(file, content);
+
+        server.when("/file", Response.resource(content, "\"v1\""));
+        new FluentHttpClient().get(server.url("/file")).asFile(file).download();
+
+        assertArrayEquals("Content", content, FileUtils.readFileToByteArray(file));
+        LocalTestServer.RecordedRequest resumed = last(server.getRequests("/file"));
+        assertThat("Resumed range", resumed.getHeader("Range"), not(startsWith("bytes=0-")));
+        assertThat("Resumed range", resumed.getHeader("Range"), endsWith("-1499999"));
+        assertEquals("If-Range from the state file", "\"v1\"", resumed.getHeader("If-Range"));
+        assertFalse("State file deleted", new File(file.getPath() + FluentHttpFileDownload.STATE_FILE_SUFFIX).exists());
+    }
+
+    @Test
+    public void testDownloadIsDigested() throws Exception {
+        byte[] content = randomBytes(2500000, 9);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        String md5Base64 = Base64.encodeBase64String(md5.digest(content));
+        byte[] sha256Bytes = sha256.digest(content);
+        server.when("/whole", Response.ok(content).withHeader("Content-MD5", md5Base64));
+        server.when("/ranges", Response.resource(content, "\"v1\"").withHeader("Digest", "SHA-256=" + Base64.encodeBase64String(sha256Bytes)));
+        server.when("/corrupt", Response.resource(content, "\"v1\"").withHeader("Digest", "SHA-256=" + md5Base64));
+        FluentHttpClient client = new FluentHttpClient();
+        File file = newDownloadFile();
+
+        FluentHttpGetMethodBuilder whole = client.get(server.url("/whole")).withDigest("MD5");
+        whole.asFile(file).download();
+        assertArrayEquals("Whole content", content, FileUtils.readFileToByteArray(file));
+        assertEquals("Whole MD5", Hex.encodeHexString(md5.digest(content)), whole.getDigest("MD5"));
+
+        FluentHttpGetMethodBuilder ranges = client.get(server.url("/ranges")).withDigest("SHA-256");
+        ranges.asFile(file).withSegments(2).download();
+        assertEquals("Segments", 3, server.getRequests("/ranges").size());
+        assertEquals("Segmented SHA-256", Hex.encodeHexString(sha256Bytes), ranges.getDigest("SHA-256"));
+
+        try {
+            client.get(server.url("/corrupt")).withDigest("SHA-256").asFile(file).withSegments(2).download();
+            fail("Digest mismatch expected");
+        } catch (FluentHttpClientDigestException e) {
+            assertEquals("Algorithm", "SHA-256", e.getAlgorithm());
+        }
+        assertFalse("State file deleted", new File(file.getPath() + FluentHttpFileDownload.STATE_FILE_SUFFIX).exists());
+    }
+
+    @Test
+    public void testChangedResourceIsDownloadedFromScratch() throws IOException {
+        File file = newDownloadFile();
+        interruptDownload(file, randomBytes(1500000, 3));
+        int before = server.getRequests("/file").size();
+
+        byte[] changed = randomBytes(1200000, 4);
+        server.when("/file", Response.resource(changed, "\"v2\""));
+        new FluentHttpClient().get(server.url("/file")).asFile(file).download();
+
+        assertArrayEquals("Changed content", changed, FileUtils.readFileToByteArray(file));
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/file");
+        assertEquals("Resume with the old validator", "\"v1\"", requests.get(before).getHeader("If-Range"));
+        assertEquals("New probe", "bytes=0-0", requests.get(before + 1).getHeader("Range"));
+        assertEquals("New validator", "\"v2\"", last(requests).getHeader("If-Range"));
+        assertEquals("Requests", before + 3, requests.size());
+    }
+
+    @Test
+    public void testSegmentIsRetriedAfter503() throws IOException {
+        byte[] content = randomBytes(100000, 5);
+        server.when("/file", Response.resource(content, null).withHeader("Last-Modified", "Sun, 18 Oct 2026 12:00:00 GMT"),
+                Response.retryAfter(503, 1),
+                Response.resource(content, null).withHeader("Last-Modified", "Sun, 18 Oct 2026 12:00:00 GMT"));
+        File file = newDownloadFile();
+
+        long started = System.currentTimeMillis();
+        new FluentHttpClient().get(server.url("/file")).asFile(file).withMaxRetries(1).download();
+
+        assertThat("Waited for Retry-After", System.currentTimeMillis() - started, greaterThanOrEqualTo(900L));
+        assertArrayEquals("Content", content, FileUtils.readFileToByteArray(file));
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/file");
+        assertEquals("Requests", 3, requests.size());
+        assertEquals("Last-Modified as If-Range", "Sun, 18 Oct 2026 12:00:00 GMT", requests.get(2).getHeader("If-Range"));
+    }
+
+    /** Leaves a state file of a partly downloaded resource with ETag "v1" */
+    private void interruptDownload(File file, byte[] content) {
+        // the segment breaks off, the retry finds the server gone
+        server.when("/file", Response.resource(content, "\"v1\""), Response.resource(content, "\"v1\"").withResetAfter(300000), Response.connectionReset());
+        try {
+            new FluentHttpClient().get(server.url("/file")).asFile(file).withMaxRetries(0).download();
+            fail("Interrupted download expected");
+        } catch (IOException e) {
+            assertTrue("State file kept", new File(file.getPath() + FluentHttpFileDownload.STATE_FILE_SUFFIX).isFile());
+        }
+    }
+
+    private static File newDownloadFile() throws IOException {
+        File file = File.createTempFile("download", ".bin");
+        file.deleteOnExit();
+        new File(file.getPath() + FluentHttpFileDownload.STATE_FILE_SUFFIX).deleteOnExit();
+        return file;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static <T> T last(List<T> list) {
+        return list.get(list.size() - 1);
+    }
+
+    @Test
+    public void testHttp10SendsContentLengthInsteadOfChunks() throws IOException {
+        server.when("/old", Response.ok("stored"));
+        byte[] content = randomBytes(20000, 6);
+        FluentHttpClient client = new FluentHttpClient().withProtocolVersion(HttpVersion.HTTP_1_0);
+
+        assertEquals("GET", "stored", client.get(server.url("/old")).asString());
+        assertEquals("Stream", "stored", client.put(server.url("/old")).withRequestBody(new ByteArrayInputStream(content), -1).asString());
+        assertEquals("JSON", "stored", client.post(server.url("/old")).withJsonBody(Collections.singletonMap("a", 1)).asString());
+        assertEquals("Multipart", "stored", client.post(server.url("/old"))
+                .withMultipartStream("stream", "stream.bin", new ByteArrayInputStream(content), -1, null).asString());
+        assertEquals("HTTP/1.1", "stored", new FluentHttpClient().put(server.url("/old")).withRequestBody(new ByteArrayInputStream(content), -1).asString());
+
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/old");
+        for (LocalTestServer.RecordedRequest request : requests.subList(0, 4)) {
+            assertEquals("Request line of " + request, "HTTP/1.0", request.getProtocol());
+            assertNull("Chunked " + request, request.getHeader("Transfer-Encoding"));
+        }
+        assertArrayEquals("Stream body", content, requests.get(1).getBody());
+        assertEquals("Stream length", String.valueOf(content.length), requests.get(1).getHeader("Content-Length"));
+        assertEquals("JSON body", "{\"a\":1}", requests.get(2).getBodyAsString());
+        assertEquals("JSON length", "7", requests.get(2).getHeader("Content-Length"));
+        assertEquals("Multipart length", String.valueOf(requests.get(3).getBody().length), requests.get(3).getHeader("Content-Length"));
+        assertEquals("Default protocol", "HTTP/1.1", requests.get(4).getProtocol());
+        assertEquals("Chunked with HTTP/1.1", "chunked", requests.get(4).getHeader("Transfer-Encoding"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHttp2IsRejected() {
+        new FluentHttpClient().withProtocolVersion(new HttpVersion(2, 0));
+    }
+
+    @Test
+    public void testProbeFallsBackToGetIfHeadIsNotSupported() throws IOException {
+        server.when("/no-head", Response.status(405), Response.ok("alive"));
+        server.when("/not-implemented", Response.status(501), Response.ok("alive"));
+        server.when("/head", Response.ok("alive"));
+        FluentHttpClient client = new FluentHttpClient();
+        assertEquals("405", 200, client.probe(server.url("/no-head")).asStatusLine().getStatusCode());
+        assertEquals("501", 200, client.probe(server.url("/not-implemented")).asStatusLine().getStatusCode());
+        assertEquals("HEAD", 200, client.probe(server.url("/head")).asStatusLine().getStatusCode());
+        assertEquals("withGet()", 200, client.probe(server.url("/head")).withGet().asStatusLine().getStatusCode());
+
+        assertEquals("Fallback", Arrays.asList("HEAD", "GET"), methods(server.getRequests("/no-head")));
+        assertEquals("Fallback", Arrays.asList("HEAD", "GET"), methods(server.getRequests("/not-implemented")));
+        assertEquals("No fallback", Arrays.asList("HEAD", "GET"), methods(server.getRequests("/head")));
+    }
+
+    private static List<String> methods(List<LocalTestServer.RecordedRequest> requests) {
+        List<String> methods = new ArrayList<String>();
+        for (LocalTestServer.RecordedRequest request : requests) {
+            methods.add(request.getMethod());
+        }
+        return methods;
+    }
+
+    @Test
+    public void testUnreadBodyIsDrainedUpToTheLimitOtherwiseDiscarded() throws IOException {
+        server.when("/small", Response.ok(new byte[1000]));
+        server.when("/big", Response.ok(new byte[100000]));
+        FluentHttpClient client = new FluentHttpClient().withConnectionPool(1, 1);
+        try {
+            client.get(server.url("/small")).asStatusLine();
+            client.get(server.url("/small")).asStatusLine();
+            assertEquals("Drained connection reused", 1, server.getConnectionCount());
+            client.get(server.url("/big")).asStatusLine();
+            client.get(server.url("/small")).asStatusLine();
+            assertEquals("Connection of the big body discarded", 2, server.getConnectionCount());
+            client.get(server.url("/small")).withDrainLimit(0).asStatusLine();
+            client.probe(server.url("/small")).asStatusLine();
+            assertEquals("Drain limit 0 discards", 3, server.getConnectionCount());
+            assertEquals("Leased", 0, client.getPoolStats().getLeased());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testPooledConnectionIsReusedForDrippingChunkedStreams() throws IOException {
+        byte[] body = new byte[20000];
+        server.when("/drip", Response.ok(body).withChunked().withDrip(4096, 5));
+        FluentHttpClient client = new FluentHttpClient().withConnectionPool(2, 2);
+        try {
+            for (int i = 0; i < 3; i++) {
+                InputStream inputStream = client.get(server.url("/drip")).asStream();
+                long length = 0;
+                while (inputStream.read()!=-1) {
+                    length++;
+                }
+                inputStream.close();
+                assertEquals("Body length", body.length, length);
+            }
+            assertEquals("Connections", 1, server.getConnectionCount());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testForgottenStreamIsReaped() throws Exception {
+        server.when("/big", Response.ok(new byte[100000]));
+        FluentHttpClient client = new FluentHttpClient()
+                .withConnectionPool(1, 1)
+                .withConnectionTimeoutMillis(5000)
+                .withStreamLeakDetection(200);
+        try {
+            InputStream forgotten = client.get(server.url("/big")).asStream();
+            forgotten.read();
+            Thread.sleep(600);
+            assertEquals("Leaks", 1, client.getLeakedStreamCount());
+            // the only pooled connection is free again
+            assertEquals("Body length", 100000, client.get(server.url("/big")).asBytes().length);
+            assertEquals("Connections", 2, server.getConnectionCount());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testPublisherReadsOnlyWhatIsRequested() throws Exception {
+        server.when("/chunks", Response.ok(new byte[100000]));
+        FluentHttpClient client = new FluentHttpClient();
+        try {
+            CollectingSubscriber<ByteBuffer> subscriber = new CollectingSubscriber<ByteBuffer>();
+            client.get(server.url("/chunks")).asPublisher(1000).subscribe(subscriber);
+            assertEquals("Request sent before demand", 0, server.getRequests("/chunks").size());
+            subscriber.subscription.request(3);
+            Thread.sleep(300);
+            assertEquals("Chunks", 3, subscriber.items.size());
+            subscriber.subscription.request(Long.MAX_VALUE);
+            assertTrue("Not completed", subscriber.done.await(5, TimeUnit.SECONDS));
+            assertNull("Error", subscriber.error);
+            long length = 0;
+            for (ByteBuffer chunk : subscriber.items) {
+                assertThat("Chunk size", chunk.remaining(), lessThanOrEqualTo(1000));
+                length += chunk.remaining();
+            }
+            assertEquals("Body length", 100000, length);
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testExecuteBatchWithBoundedConcurrency() throws Exception {
+        server.when("/batch", Response.ok("ok").withDelayMillis(100));
+        server.when("/missing", Response.status(404));
+        FluentHttpClient client = new FluentHttpClient().withConnectionPool(10, 10);
+        try {
+            List<FluentHttpMethodBuilder> requests = new ArrayList<FluentHttpMethodBuilder>();
+            for (int i = 0; i < 9; i++) {
+                requests.add(client.get(server.url("/batch")));
+            }
+            requests.add(client.get(server.url("/missing")));
+            CollectingSubscriber<FluentHttpResponse> subscriber = new CollectingSubscriber<FluentHttpResponse>();
+            client.execute(new IterablePublisher<FluentHttpMethodBuilder>(requests), 2).subscribe(subscriber);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            assertTrue("Not completed", subscriber.done.await(10, TimeUnit.SECONDS));
+            assertEquals("Responses", 10, subscriber.items.size());
+            int failed = 0;
+            for (FluentHttpResponse response : subscriber.items) {
+                if (!response.isSuccess()) {
+                    failed++;
+                    assertEquals("Status code", 404, response.getStatusCode());
+                }
+            }
+            assertEquals("Failed", 1, failed);
+            assertThat("Connections", server.getConnectionCount(), lessThanOrEqualTo(2));
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailingEndpointIsEjectedAndProbedAgain() throws Exception {
+        LocalTestServer failing = LocalTestServer.start();
+        try {
+            server.when("/work", Response.ok("done"));
+            failing.when("/work", Response.status(500), Response.status(500), Response.ok("recovered"));
+            FluentHttpClient client = new FluentHttpClient().withEndpoints("svc",
+                    Arrays.asList(URI.create(server.url("")), URI.create(failing.url(""))), FluentHttpLoadBalancer.Strategy.ROUND_ROBIN);
+            client.getLoadBalancer("svc").withEjection(2, 300);
+            int failures = 0;
+            for (int i = 0; i < 10; i++) {
+                try {
+                    assertEquals("Content", "done", client.get("svc://work").asString());
+                } catch (FluentHttpClientStatusCodeException e) {
+                    failures++;
+                }
+            }
+            assertEquals("Failures until ejected", 2, failures);
+            assertEquals("Requests to the ejected endpoint", 2, failing.getRequests("/work").size());
+            Thread.sleep(400);
+            assertEquals("Probe", "recovered", client.get("svc://work").asString());
+            assertFalse("Still ejected", client.getLoadBalancer("svc").getEndpoints().get(1).isEjected());
+        } finally {
+            failing.close();
+        }
+    }
+
+    @Test
+    public void testEndpointIsSelectedPerExecution() throws Exception {
+        LocalTestServer failing = LocalTestServer.start();
+        try {
+            server.when("/work", Response.ok("done"));
+            failing.when("/work", Response.status(500), Response.ok("recovered"));
+            FluentHttpClient client = new FluentHttpClient().withEndpoints("svc",
+                    Arrays.asList(URI.create(server.url("")), URI.create(failing.url(""))), FluentHttpLoadBalancer.Strategy.ROUND_ROBIN);
+            client.getLoadBalancer("svc").withEjection(1, 300);
+
+            // builders which are never executed don't take an endpoint
+            client.get("svc://work");
+            FluentHttpMethodBuilder builder = client.get("svc://work");
+            List<String> results = new ArrayList<String>();
+            for (int i = 0; i < 4; i++) {
+                try {
+                    results.add(new String(builder.asBytes(), "UTF-8"));
+                } catch (FluentHttpClientStatusCodeException e) {
+                    results.add("failed");
+                }
+            }
+            assertEquals("Executions of one builder", Arrays.asList("done", "failed", "done", "done"), results);
+            assertEquals("Requests to the ejected endpoint", 1, failing.getRequests("/work").size());
+
+            Thread.sleep(400);
+            // the prototype is never executed, so the probe goes to the first real request
+            FluentHttpRequestTemplate<FluentHttpGetMethodBuilder> template = client.template(client.get("svc://work"));
+            assertEquals("Probe", "recovered", template.expand().asString());
+        } finally {
+            failing.close();
+        }
+    }
+
+    @Test
+    public void testPowerOfTwoChoicesAvoidsSlowEndpoint() throws Exception {
+        LocalTestServer slow = LocalTestServer.start();
+        try {
+            server.when("/work", Response.ok("fast"));
+            slow.when("/work", Response.ok("slow").withDelayMillis(100));
+            FluentHttpClient client = new FluentHttpClient().withEndpoints("svc",
+                    Arrays.asList(URI.create(server.url("/")), URI.create(slow.url("/"))));
+            for (int i = 0; i < 30; i++) {
+                client.get("svc://work").asString();
+            }
+            assertThat("Requests to the slow endpoint", slow.getRequests("/work").size(), lessThanOrEqualTo(3));
+        } finally {
+            slow.close();
+        }
+    }
+
+    @Test
+    public void testTemplateEncodesVariablesAndSharesHeaders() throws Exception {
+        server.when("/users/a%2Fb%20c/orders", Response.ok("orders"));
+        FluentHttpClient client = new FluentHttpClient();
+        FluentHttpRequestTemplate<FluentHttpMethodBuilder> template = client.template(
+                client.get(server.url("/users/{user}/orders?status={status}&user={user}"))
+                        .withHeader("Accept", "application/json"));
+        assertEquals("Content", "orders", template.expand("a/b c", "open&new").asString());
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("user", "a/b c");
+        values.put("status", "\u00e4");
+        template.expand(values).withHeader("X-Extra", "1").asString();
+        template.expand("a/b c", "done").asString();
+
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/users/a%2Fb%20c/orders");
+        assertEquals("Requests", 3, requests.size());
+        assertThat("Query", requests.get(0).getUri(), endsWith("?status=open%26new&user=a%2Fb%20c"));
+        assertThat("UTF-8", requests.get(1).getUri(), containsString("status=%C3%A4"));
+        assertEquals("Shared header", "application/json", requests.get(2).getHeader("Accept"));
+        assertEquals("Extra header", "1", requests.get(1).getHeader("X-Extra"));
+        assertNull("Extra header leaked into the template", requests.get(2).getHeader("X-Extra"));
+    }
+
+    @Test
+    public void testPostTemplateSharesParamsAndBody() throws Exception {
+        server.when("/forms/1", Response.ok("form"));
+        server.when("/docs/1", Response.ok("doc"));
+        FluentHttpClient client = new FluentHttpClient();
+        FluentHttpRequestTemplate<FluentHttpPostMethodBuilder> forms = client.template(
+                client.post(server.url("/forms/{id}")).withParam("a", "1").withExpectContinue(10000));
+        assertEquals("Content", "form", forms.expand(1).asString());
+        assertEquals("Content", "form", forms.expand(1).withParam("b", "2").asString());
+        assertEquals("Content", "form", forms.expand(1).asString());
+        FluentHttpRequestTemplate<FluentHttpPostMethodBuilder> docs = client.template(
+                client.post(server.url("/docs/{id}")).withRequestBody("{\"x\":1}", "application/json"));
+        assertEquals("Content", "doc", docs.expand(1).asString());
+        assertEquals("Content", "doc", docs.expand(1).asString());
+
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/forms/1");
+        assertEquals("Requests", 3, requests.size());
+        assertEquals("Shared param", "a=1", requests.get(0).getBodyAsString());
+        assertEquals("Shared expect", "100-continue", requests.get(0).getHeader("Expect"));
+        assertEquals("Extra param", "a=1&b=2", requests.get(1).getBodyAsString());
+        assertEquals("Extra param leaked into the template", "a=1", requests.get(2).getBodyAsString());
+        for (LocalTestServer.RecordedRequest request : server.getRequests("/docs/1")) {
+            assertEquals("Shared body", "{\"x\":1}", request.getBodyAsString());
+            assertThat("Shared content type", request.getHeader("Content-Type"), startsWith("application/json"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTemplateRejectsStreamedBody() {
+        FluentHttpClient client = new FluentHttpClient();
+        client.template(client.put("http://localhost/{id}").withRequestBody(new ByteArrayInputStream(new byte[1]), 1));
+    }
+
+    @Test
+    public void testQueryParamsAreEncoded() throws Exception {
+        server.when("/search", Response.ok("found"));
+        FluentHttpClient client = new FluentHttpClient();
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put("page", 2);
+        params.put("flag", null);
+        FluentHttpGetMethodBuilder get = client.get(server.url("/search?lang=de"))
+                .withQueryParam("q", "a&b c")
+                .withQueryParam("näme", "x=y")
+                .withQueryParams(params);
+        assertEquals("Content", "found", get.asString());
+        get.withQueryParam("more", "1").asBytes();
+
+        List<LocalTestServer.RecordedRequest> requests = server.getRequests("/search");
+        assertEquals("Requests", 2, requests.size());
+        assertThat("Query", requests.get(0).getUri(), endsWith("/search?lang=de&q=a%26b%20c&n%C3%A4me=x%3Dy&page=2&flag"));
+        assertThat("Appended after sending", requests.get(1).getUri(), endsWith("&flag&more=1"));
+    }
+
+    @Test
+    public void testHttps() throws IOException {
+        LocalTestServer httpsServer = LocalTestServer.startHttps();
+        try {
+            httpsServer.when("/tls", Response.ok("secure").withGzip());
+            byte[] bytes = new FluentHttpClient().withAvoidingSSLPeerUnverifiedException()
+                    .get(httpsServer.url("/tls"))
+                    .asBytes();
+            // the client doesn't decode the Content-Encoding, the body arrives as sent
+            assertThat("gzip magic", bytes[0] & 0xff, is(0x1f));
+            assertEquals("Decoded body", "secure", IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(bytes)), "UTF-8"));
+        } finally {
+            httpsServer.close();
+        }
+    }
+
+    /** Collects the rendered log messages */
+    private static final class CapturingAppender extends AppenderSkeleton {
+
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        protected void append(LoggingEvent event) {
+            messages.add(event.getRenderedMessage());
+        }
+
+        private int count(String part) {
+            int count = 0;
+            synchronized (messages) {
+                for (String message : messages) {
+                    if (message.contains(part)) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+
+    /** Records the listener callbacks in the order they arrive */
+    private static final class EventRecorder implements FluentHttpListener {
+
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void requestStarted(HttpRequest request, HttpContext httpContext) {
+            events.add("started");
+        }
+
+        @Override
+        public void connectionAcquired(HttpRequest request, HttpClientConnection connection, HttpContext httpContext) {
+            events.add("connection");
+        }
+
+        @Override
+        public void requestHeadersSent(HttpRequest request, HttpContext httpContext) {
+            events.add("sent");
+        }
+
+        @Override
+        public void responseHeadersReceived(HttpRequest request, HttpResponse response, HttpContext httpContext) {
+            events.add("headers " + response.getStatusLine().getStatusCode());
+        }
+
+        @Override
+        public void responseBodyCompleted(HttpRequest request, HttpResponse response, HttpContext httpContext) {
+            events.add("completed");
+        }
+
+        @Override
+        public void requestFailed(HttpRequest request, IOException e, HttpContext httpContext) {
+            events.add("failed " + e.getClass().getSimpleName());
+        }
+
+        @Override
+        public void requestRetried(HttpRequest request, IOException e, int executionCount, HttpContext httpContext) {
+            events.add("retried " + executionCount);
+        }
+    }
+
+    /** Emits the items on the thread calling request(n), enough for the tests */
+    private static final class IterablePublisher<T> implements Publisher<T> {
+
+        private final Iterable<T> iterable;
+
+        private IterablePublisher(Iterable<T> iterable) {
+            this.iterable = iterable;
+        }
+
+        @Override
+        public void subscribe(final Subscriber<? super T> subscriber) {
+            final Iterator<T> iterator = iterable.iterator();
+            subscriber.onSubscribe(new Subscription() {
+                private boolean done = false;
+
+                @Override
+                public synchronized void request(long n) {
+                    for (long i = 0; i < n && iterator.hasNext(); i++) {
+                        subscriber.onNext(iterator.next());
+                    }
+                    if (!iterator.hasNext() && !done) {
+                        done = true;
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public synchronized void cancel() {
+                    done = true;
+                }
+            });
+        }
+    }
+
+    private static final class CollectingSubscriber<T> implements Subscriber<T> {
+
+        private final List<T> items = Collections.synchronizedList(new ArrayList<T>());
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Subscription subscription;
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+}
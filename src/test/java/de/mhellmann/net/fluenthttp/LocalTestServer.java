@@ -0,0 +1,641 @@
+package de.mhellmann.net.fluenthttp;
+
+import org.apache.commons.codec.binary.Base64;
+import de.mhellmann.util.VirtualThreads;
+import org.apache.commons.io.IOUtils;
+
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Scriptable HTTP/1.1 stand-in server on localhost for offline tests and load runs.
+ *
+ * Each path gets a script of responses, which are returned one after the other, the last one repeats:
+ * <pre>
+ * LocalTestServer server = LocalTestServer.start();
+ * server.when("/flaky", Response.retryAfter(503, 1), Response.ok("finally"));
+ * server.when("/slow", Response.ok(bytes).withDelayMillis(500).withDrip(1024, 10));
+ * ...
+ * server.close();
+ * </pre>
+ * Besides latency and slow bodies, responses can be chunked, gzipped or end with a connection reset.
+ * Paths may require basic authentication, and all requests are recorded for assertions
+ * unless withoutRecording() was called, e.g. for benchmarks and load tests.
+ *
+ * It is a plain socket server instead of com.sun.net.httpserver, because that one can neither reset
+ * connections nor control how and when the body bytes go out.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public final class LocalTestServer implements Closeable {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String KEYSTORE = "/localhost.jks";
+    private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+    private static final int CHUNK_SIZE = 8192;
+
+    private final ServerSocket serverSocket;
+    private final String scheme;
+    private final ExecutorService executorService;
+    private final Map<String, Script> scripts = new ConcurrentHashMap<String, Script>();
+    private final Map<String, String> basicAuthentications = new ConcurrentHashMap<String, String>();
+    private final List<RecordedRequest> requests = new CopyOnWriteArrayList<RecordedRequest>();
+    private final Set<Socket> openSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile boolean recording = true;
+    private volatile boolean closed = false;
+
+    private LocalTestServer(ServerSocketFactory serverSocketFactory, String scheme) throws IOException {
+        this.serverSocket = serverSocketFactory.createServerSocket(0, 256, InetAddress.getByName("127.0.0.1"));
+        this.scheme = scheme;
+        // virtual threads on Java 21+, so a load test can keep many thousand connections open
+        this.executorService = VirtualThreads.newThreadPerTaskExecutor("LocalTestServer-");
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public static LocalTestServer start() throws IOException {
+        return new LocalTestServer(ServerSocketFactory.getDefault(), "http");
+    }
+
+    /** The certificate for "localhost" is self-signed, use FluentHttpClient.withAvoidingSSLPeerUnverifiedException(). */
+    public static LocalTestServer startHttps() throws IOException {
+        return new LocalTestServer(newSslContext().getServerSocketFactory(), "https");
+    }
+
+    public String url(String path) {
+        return scheme + "://localhost:" + serverSocket.getLocalPort() + path;
+    }
+
+    /** @param responses are returned in this order, the last one for all further requests */
+    public LocalTestServer when(String path, Response... responses) {
+        if (responses.length==0) {
+            throw new IllegalArgumentException("No responses for " + path);
+        }
+        scripts.put(path, new Script(responses));
+        return this;
+    }
+
+    /** Requests to this path without these credentials get a 401 with a Basic challenge. */
+    public LocalTestServer withBasicAuth(String path, String login, String password) {
+        basicAuthentications.put(path, "Basic " + Base64.encodeBase64String((login + ":" + password).getBytes(UTF_8)));
+        return this;
+    }
+
+    /** Requests are no longer kept, so a long load test doesn't fill the heap. getRequests() stays empty. */
+    public LocalTestServer withoutRecording() {
+        recording = false;
+        return this;
+    }
+
+    public List<RecordedRequest> getRequests() {
+        return Collections.unmodifiableList(requests);
+    }
+
+    public List<RecordedRequest> getRequests(String path) {
+        List<RecordedRequest> matching = new ArrayList<RecordedRequest>();
+        for (RecordedRequest request : requests) {
+            if (request.getPath().equals(path)) {
+                matching.add(request);
+            }
+        }
+        return matching;
+    }
+
+    /** @return the number of accepted connections, e.g. to check connection reuse */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /** @return the connections which are still open, e.g. to check for leaks */
+    public int getOpenConnectionCount() {
+        return openSockets.size();
+    }
+
+    public void reset() {
+        scripts.clear();
+        basicAuthentications.clear();
+        requests.clear();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        IOUtils.closeQuietly(serverSocket);
+        for (Socket socket : openSockets) {
+            IOUtils.closeQuietly(socket);
+        }
+        executorService.shutdownNow();
+    }
+
+    private static SSLContext newSslContext() throws IOException {
+        InputStream in = LocalTestServer.class.getResourceAsStream(KEYSTORE);
+        if (in==null) {
+            throw new IOException("Missing " + KEYSTORE);
+        }
+        try {
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(in, KEYSTORE_PASSWORD);
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            return sslContext;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Can't load " + KEYSTORE, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    //###################################################################
+    //### Connection handling
+    //#######################
+
+    private void accept() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connectionCount.incrementAndGet();
+                openSockets.add(socket);
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // closed
+            } catch (RejectedExecutionException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            boolean keepAlive = true;
+            while (keepAlive && !closed) {
+                RecordedRequest request = readRequest(in, out);
+                if (request==null) {
+                    break;
+                }
+                if (recording) {
+                    requests.add(request);
+                }
+                keepAlive = write(respond(request), request, socket, out);
+            }
+        } catch (IOException e) {
+            // the client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            openSockets.remove(socket);
+            IOUtils.closeQuietly(socket);
+        }
+    }
+
+    private Response respond(RecordedRequest request) {
+        String expectedAuthorization = basicAuthentications.get(request.getPath());
+        if (expectedAuthorization!=null && !expectedAuthorization.equals(request.getHeader("Authorization"))) {
+            return Response.status(401).withHeader("WWW-Authenticate", "Basic realm=\"LocalTestServer\"");
+        }
+        Script script = scripts.get(request.getPath());
+        return script==null ? Response.status(404) : script.next();
+    }
+
+    /** @return null at the end of the stream */
+    private static RecordedRequest readRequest(InputStream in, OutputStream out) throws IOException {
+        String requestLine = readLine(in);
+        while (requestLine!=null && requestLine.isEmpty()) {
+            requestLine = readLine(in);
+        }
+        if (requestLine==null) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length!=3) {
+            throw new IOException("Bad request line: " + requestLine);
+        }
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        String line;
+        while ((line = readLine(in))!=null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon>0) {
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                List<String> values = headers.get(name);
+                if (values==null) {
+                    values = new ArrayList<String>(1);
+                    headers.put(name, values);
+                }
+                values.add(line.substring(colon + 1).trim());
+            }
+        }
+        RecordedRequest request = new RecordedRequest(parts[0], parts[1], parts[2], headers);
+        if ("100-continue".equalsIgnoreCase(request.getHeader("Expect"))) {
+            out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(ISO_8859_1));
+            out.flush();
+        }
+        String transferEncoding = request.getHeader("Transfer-Encoding");
+        String contentLength = request.getHeader("Content-Length");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (transferEncoding!=null && transferEncoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+            int size;
+            while ((size = Integer.parseInt(stripExtensions(readLine(in)), 16))>0) {
+                copy(in, body, size);
+                readLine(in);
+            }
+            while ((line = readLine(in))!=null && !line.isEmpty()) {
+                // trailers
+            }
+        } else if (contentLength!=null) {
+            copy(in, body, Long.parseLong(contentLength));
+        }
+        request.body = body.toByteArray();
+        return request;
+    }
+
+    private static String stripExtensions(String chunkSizeLine) throws IOException {
+        if (chunkSizeLine==null) {
+            throw new EOFException("Chunked request body ended early");
+        }
+        int semicolon = chunkSizeLine.indexOf(';');
+        return (semicolon<0 ? chunkSizeLine : chunkSizeLine.substring(0, semicolon)).trim();
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        while (length>0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n==-1) {
+                throw new EOFException("Request body ended early");
+            }
+            out.write(buffer, 0, n);
+            length -= n;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int b;
+        while ((b = in.read())!=-1) {
+            if (b=='\n') {
+                int length = sb.length();
+                return length>0 && sb.charAt(length - 1)=='\r' ? sb.substring(0, length - 1) : sb.toString();
+            }
+            sb.append((char) b);
+        }
+        return sb.length()==0 ? null : sb.toString();
+    }
+
+    /** @return whether the connection stays open */
+    private static boolean write(Response response, RecordedRequest request, Socket socket, OutputStream out) throws IOException, InterruptedException {
+        if (response.delayMillis>0) {
+            Thread.sleep(response.delayMillis);
+        }
+        if (response.resetAfterBytes==0) {
+            reset(socket);
+            return false;
+        }
+        int status = response.status;
+        byte[] body = response.body;
+        String contentRange = null;
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (response.ranges && range!=null && range.startsWith("bytes=") && (ifRange==null || ifRange.equals(response.eTag) || ifRange.equals(response.header("Last-Modified")))) {
+            // a single range "first-last" or "first-"
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            long first = Long.parseLong(bounds[0].trim());
+            long last = bounds[1].trim().isEmpty() ? body.length - 1 : Math.min(Long.parseLong(bounds[1].trim()), body.length - 1);
+            if (first>=body.length) {
+                status = 416;
+                contentRange = "bytes */" + body.length;
+                body = new byte[0];
+            } else {
+                status = 206;
+                contentRange = "bytes " + first + "-" + last + "/" + body.length;
+                body = Arrays.copyOfRange(body, (int) first, (int) last + 1);
+            }
+        }
+        if (response.gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed);
+            gzipOutputStream.write(body);
+            gzipOutputStream.close();
+            body = compressed.toByteArray();
+        }
+        boolean keepAlive = !response.closeConnection && !"close".equalsIgnoreCase(request.getHeader("Connection"))
+                && "HTTP/1.1".equals(request.getProtocol());
+        boolean head = "HEAD".equals(request.getMethod());
+        boolean noBody = head || status==204 || status==304;
+
+        StringBuilder sb = new StringBuilder(256)
+                .append("HTTP/1.1 ").append(status).append(' ').append(reasonPhrase(status)).append("\r\n");
+        for (String[] header : response.headers) {
+            sb.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        if (contentRange!=null) {
+            sb.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        if (response.gzip) {
+            sb.append("Content-Encoding: gzip\r\n");
+        }
+        if (!noBody || head) {
+            if (response.chunked) {
+                sb.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                sb.append("Content-Length: ").append(response.contentLength>=0 ? response.contentLength : body.length).append("\r\n");
+            }
+        }
+        if (!keepAlive) {
+            sb.append("Connection: close\r\n");
+        }
+        sb.append("\r\n");
+        out.write(sb.toString().getBytes(ISO_8859_1));
+        if (!noBody) {
+            int limit = response.resetAfterBytes<0 ? body.length : Math.min(body.length, response.resetAfterBytes);
+            int pieceSize = response.dripBytes>0 ? response.dripBytes : CHUNK_SIZE;
+            for (int offset = 0; offset < limit; offset += pieceSize) {
+                int length = Math.min(pieceSize, limit - offset);
+                if (response.chunked) {
+                    out.write((Integer.toHexString(length) + "\r\n").getBytes(ISO_8859_1));
+                    out.write(body, offset, length);
+                    out.write("\r\n".getBytes(ISO_8859_1));
+                } else {
+                    out.write(body, offset, length);
+                }
+                if (response.dripBytes>0) {
+                    out.flush();
+                    Thread.sleep(response.dripPauseMillis);
+                }
+            }
+            if (response.resetAfterBytes>0) {
+                out.flush();
+                reset(socket);
+                return false;
+            }
+            if (response.chunked) {
+                out.write("0\r\n\r\n".getBytes(ISO_8859_1));
+            }
+        }
+        out.flush();
+        return keepAlive;
+    }
+
+    /** Closes with a TCP RST instead of a FIN, the client sees "Connection reset" */
+    private static void reset(Socket socket) throws IOException {
+        try {
+            socket.setSoLinger(true, 0);
+        } catch (SocketException e) {
+            // already closed
+        }
+        socket.close();
+    }
+
+    private static String reasonPhrase(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "Status " + status;
+        }
+    }
+
+    //###################################################################
+    //### Scripts
+    //#######################
+
+    private static final class Script {
+        private final Response[] responses;
+        private final AtomicInteger index = new AtomicInteger();
+
+        private Script(Response[] responses) {
+            this.responses = responses;
+        }
+
+        private Response next() {
+            int i = index.getAndIncrement();
+            return responses[Math.min(i, responses.length - 1)];
+        }
+    }
+
+    /** Scripted response, configure it with the chained with-methods before passing it to when() */
+    public static final class Response {
+
+        private final int status;
+        private final List<String[]> headers = new ArrayList<String[]>();
+        private byte[] body = new byte[0];
+        private long delayMillis = 0;
+        private int dripBytes = 0;
+        private long dripPauseMillis = 0;
+        private boolean chunked = false;
+        private boolean gzip = false;
+        private boolean closeConnection = false;
+        private int resetAfterBytes = -1;
+        private long contentLength = -1;
+        private boolean ranges = false;
+        private String eTag;
+
+        private Response(int status) {
+            this.status = status;
+        }
+
+        public static Response status(int status) {
+            return new Response(status);
+        }
+
+        public static Response ok(String body) {
+            return new Response(200).withBody(body);
+        }
+
+        public static Response ok(byte[] body) {
+            return new Response(200).withBody(body);
+        }
+
+        /** e.g. 429 or 503 with a Retry-After header */
+        public static Response retryAfter(int status, int seconds) {
+            return new Response(status).withHeader("Retry-After", String.valueOf(seconds));
+        }
+
+        /**
+         * 200 with the whole body, or 206 with the requested range and 416 beyond its end.
+         * A range is only sent if the request's If-Range matches the ETag, which may be null, or the Last-Modified header.
+         */
+        public static Response resource(byte[] body, String eTag) {
+            Response response = new Response(200).withBody(body).withHeader("Accept-Ranges", "bytes");
+            response.ranges = true;
+            response.eTag = eTag;
+            return eTag==null ? response : response.withHeader("ETag", eTag);
+        }
+
+        /** No response at all, the connection is reset right after the request has been read */
+        public static Response connectionReset() {
+            return new Response(0).withResetAfter(0);
+        }
+
+        public Response withBody(String body) {
+            return withBody(body.getBytes(UTF_8)).withHeader("Content-Type", "text/plain; charset=UTF-8");
+        }
+
+        public Response withBody(byte[] body) {
+            this.body = body;
+            return this;
+        }
+
+        public Response withHeader(String name, String value) {
+            headers.add(new String[] {name, value});
+            return this;
+        }
+
+        public Response withCookie(String name, String value) {
+            return withHeader("Set-Cookie", name + "=" + value + "; Path=/");
+        }
+
+        /** Latency before the status line is sent */
+        public Response withDelayMillis(long delayMillis) {
+            this.delayMillis = delayMillis;
+            return this;
+        }
+
+        /** Sends the body in pieces of this size with a pause after each one */
+        public Response withDrip(int bytes, long pauseMillis) {
+            this.dripBytes = bytes;
+            this.dripPauseMillis = pauseMillis;
+            return this;
+        }
+
+        public Response withChunked() {
+            this.chunked = true;
+            return this;
+        }
+
+        /** The body is compressed and sent with Content-Encoding: gzip */
+        public Response withGzip() {
+            this.gzip = true;
+            return this;
+        }
+
+        public Response withConnectionClose() {
+            this.closeConnection = true;
+            return this;
+        }
+
+        /** Announces this Content-Length whatever the body's size, the connection is closed after the body */
+        public Response withContentLength(long contentLength) {
+            this.contentLength = contentLength;
+            this.closeConnection = true;
+            return this;
+        }
+
+        /** Resets the connection after this many body bytes, 0 resets it before the status line */
+        public Response withResetAfter(int bodyBytes) {
+            this.resetAfterBytes = bodyBytes;
+            return this;
+        }
+
+        private String header(String name) {
+            for (String[] header : headers) {
+                if (header[0].equalsIgnoreCase(name)) {
+                    return header[1];
+                }
+            }
+            return null;
+        }
+    }
+
+    /** A request as received by the server, header names are case-insensitive */
+    public static final class RecordedRequest {
+
+        private final String method;
+        private final String uri;
+        private final String protocol;
+        private final Map<String, List<String>> headers;
+        private byte[] body;
+
+        private RecordedRequest(String method, String uri, String protocol, Map<String, List<String>> headers) {
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.headers = headers;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        /** @return path and query */
+        public String getUri() {
+            return uri;
+        }
+
+        public String getPath() {
+            int question = uri.indexOf('?');
+            return question<0 ? uri : uri.substring(0, question);
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        /** @return the first value or null */
+        public String getHeader(String name) {
+            List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+            return values==null ? null : values.get(0);
+        }
+
+        public List<String> getHeaders(String name) {
+            List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+            return values==null ? Collections.<String>emptyList() : values;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getBodyAsString() {
+            return new String(body, UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + uri;
+        }
+    }
+}
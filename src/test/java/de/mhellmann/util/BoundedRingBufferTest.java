@@ -0,0 +1,200 @@
+package de.mhellmann.util;
+
+import org.apache.log4j.Level;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * BoundedRingBuffer and the async console appender of Log4JUtils, which hands its events over through it.
+ *
+ * Date: 18.10.2026
+ *
+ * @author <a href="mailto:marten.hellmann@web.de"><strong>Marten Hellmann</strong></a>
+ */
+public class BoundedRingBufferTest {
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertEquals("Capacity", 8, new BoundedRingBuffer<String>(5).capacity());
+        assertEquals("Capacity", 8, new BoundedRingBuffer<String>(8).capacity());
+        assertEquals("Capacity", 1, new BoundedRingBuffer<String>(1).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePositive() {
+        new BoundedRingBuffer<String>(0);
+    }
+
+    @Test
+    public void testFullBufferRejectsUntilPolled() {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<Integer>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue("Offer " + i, buffer.offer(i));
+        }
+        assertFalse("Offer to full buffer", buffer.offer(4));
+        assertEquals("Size", 4, buffer.size());
+        assertEquals("Oldest", Integer.valueOf(0), buffer.poll());
+        assertTrue("Offer after poll", buffer.offer(4));
+        assertFalse("Offer to full buffer", buffer.offer(5));
+    }
+
+    @Test
+    public void testEmptyBufferReturnsNull() {
+        BoundedRingBuffer<String> buffer = new BoundedRingBuffer<String>(2);
+        assertNull("Poll from empty buffer", buffer.poll());
+        assertTrue("Empty", buffer.isEmpty());
+        buffer.offer("a");
+        assertEquals("Element", "a", buffer.poll());
+        assertNull("Poll after last element", buffer.poll());
+    }
+
+    @Test
+    public void testWrapAroundKeepsOrder() {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<Integer>(4);
+        int next = 0;
+        int expected = 0;
+        // the sequences go around the 4 slots many times, with 1 to 3 elements in flight
+        for (int round = 0; round < 1000; round++) {
+            int count = 1 + round % 3;
+            for (int i = 0; i < count; i++) {
+                assertTrue("Offer " + next, buffer.offer(next++));
+            }
+            for (int i = 0; i < count; i++) {
+                assertEquals("FIFO", Integer.valueOf(expected++), buffer.poll());
+            }
+        }
+        assertTrue("Empty", buffer.isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullIsRejected() {
+        new BoundedRingBuffer<String>(2).offer(null);
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumersDeliverEachElementOnce() throws Exception {
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 50000;
+        final int total = producers * perProducer;
+        final BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<Integer>(64);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+        final AtomicLong received = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(producers + consumers);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int p = 0; p < producers; p++) {
+                final int first = p * perProducer;
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        start.await();
+                        for (int i = first; i < first + perProducer; i++) {
+                            while (!buffer.offer(i)) {
+                                Thread.yield();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int c = 0; c < consumers; c++) {
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        start.await();
+                        while (received.get()<total) {
+                            Integer element = buffer.poll();
+                            if (element==null) {
+                                Thread.yield();
+                            } else {
+                                seen.incrementAndGet(element);
+                                received.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        assertEquals("Received", total, received.get());
+        for (int i = 0; i < total; i++) {
+            assertEquals("Deliveries of " + i, 1, seen.get(i));
+        }
+        assertTrue("Empty", buffer.isEmpty());
+    }
+
+    @Test
+    public void testAsyncAppenderWriterParksWithoutTimeoutWhenIdle() throws Exception {
+        Logger logger = LoggerFactory.getLogger(BoundedRingBufferTest.class.getName() + ".async");
+        Log4JUtils.addAsyncConsoleAppender(logger, Level.DEBUG);
+        for (int i = 0; i < 100; i++) {
+            logger.debug("async event {}", i);
+        }
+        Thread writer = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis()<deadline) {
+            writer = findThread("Log4JUtils-" + Log4JUtils.CONSOLE_APPENDER_NAME);
+            if (writer!=null && writer.getState()==Thread.State.WAITING) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertNotNull("Writer thread", writer);
+        // WAITING is park() without timeout, a polling writer would be TIMED_WAITING or RUNNABLE
+        assertEquals("Idle writer", Thread.State.WAITING, writer.getState());
+        logger.debug("wakes the writer up");
+        assertEquals("Dropped", 0, Log4JUtils.getDroppedEventCount(logger));
+    }
+
+    @Test
+    public void testAsyncAppenderTakesNoMonitorAndHonorsThreshold() throws Exception {
+        final Logger logger = LoggerFactory.getLogger(BoundedRingBufferTest.class.getName() + ".unsynchronized");
+        Log4JUtils.addAsyncConsoleAppender(logger, Level.DEBUG, 2, Log4JUtils.OverflowPolicy.DROP);
+        final org.apache.log4j.Appender appender = org.apache.log4j.Logger.getLogger(logger.getName()).getAppender(Log4JUtils.CONSOLE_APPENDER_NAME);
+        Log4JUtils.setLogLevel(logger, Level.WARN);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            // a synchronized doAppend() would wait for this thread to leave the monitor
+            synchronized (appender) {
+                executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 1000; i++) {
+                            logger.debug("below the threshold {}", i);
+                        }
+                        logger.warn("above the threshold");
+                    }
+                }).get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        assertEquals("Dropped, the debug events never reached the buffer", 0, Log4JUtils.getDroppedEventCount(logger));
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) {
+                return thread;
+            }
+        }
+        return null;
+    }
+}